@@ -1,10 +1,14 @@
 package org.jwat.tools.gui;
 
+import java.awt.GraphicsEnvironment;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
+import java.beans.PropertyVetoException;
+import java.io.File;
+import java.util.Arrays;
 
 import javax.swing.JDesktopPane;
 import javax.swing.JFrame;
@@ -14,7 +18,11 @@ import javax.swing.JMenuItem;
 import javax.swing.KeyStroke;
 import javax.swing.UIManager;
 
+import org.jwat.tools.gui.cluster.ClusterCoordinator;
+import org.jwat.tools.gui.cluster.ClusterWorker;
+import org.jwat.tools.gui.library.ArchiveCatalog;
 import org.jwat.tools.gui.library.ArchiveLibraryFrame;
+import org.jwat.tools.gui.queue.HashingQueueFrame;
 
 
 /*
@@ -38,10 +46,16 @@ public class Desktop extends JFrame implements WindowListener, ActionListener {
 
 	public static ArchiveLibraryFrame archiveLibraryFrame;
 
+	public static HashingQueueFrame hashingQueueFrame;
+
+	public static ArchiveCatalog archiveCatalog;
+
 	public static ScannerThread scannerThread;
 
 	public static ValidatorThreadPool validatorThread;
 
+	public static ClusterCoordinator clusterCoordinator;
+
 	public Desktop() {
 		super( "Java Web Archive eXplorer" );
 
@@ -78,13 +92,23 @@ public class Desktop extends JFrame implements WindowListener, ActionListener {
 
 		setVisible( true );
 
-		scannerThread = new ScannerThread();
+		archiveCatalog = new ArchiveCatalog( new File( Settings.getSettingsDir(), "catalog.dat" ) );
+		archiveCatalog.load();
+
+		validatorThread = new ValidatorThreadPool( archiveCatalog );
 
-		validatorThread = new ValidatorThreadPool();
+		clusterCoordinator = ClusterCoordinator.startIfEnabled( validatorThread, 0 );
 
 		archiveLibraryFrame = new ArchiveLibraryFrame();
 		desktop.add( archiveLibraryFrame );
 		archiveLibraryFrame.setVisible( true );
+
+		scannerThread = new ScannerThread( archiveCatalog, validatorThread, archiveLibraryFrame, true );
+
+		hashingQueueFrame = new HashingQueueFrame();
+		desktop.add( hashingQueueFrame );
+
+		scannerThread.restoreCatalog();
 	}
 
 	private void createMenus() {
@@ -156,16 +180,39 @@ public class Desktop extends JFrame implements WindowListener, ActionListener {
 		if ( "desktop.quit".equals( cmd ) ) {
 			desktopClose();
 		}
+		else if ( "hashing.queue".equals( cmd ) ) {
+			hashingQueueFrame.setVisible( true );
+			hashingQueueFrame.toFront();
+			try {
+				hashingQueueFrame.setSelected( true );
+			}
+			catch (PropertyVetoException e1) {
+			}
+		}
 	}
 
 	private void desktopClose() {
 		setVisible( false );
 		dispose();
 
+		scannerThread.exit();
+		if ( clusterCoordinator != null ) {
+			clusterCoordinator.exit();
+		}
 		validatorThread.exit();
+		archiveCatalog.close();
+		UriIndex.closeInstance();
 	}
 
 	public static void main(String[] args) {
+		if ( Arrays.asList( args ).contains( "--worker" ) ) {
+			ClusterWorker.main( args );
+			return;
+		}
+		if ( GraphicsEnvironment.isHeadless() || Arrays.asList( args ).contains( "--headless" ) ) {
+			HeadlessValidator.main( args );
+			return;
+		}
         try {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());
         } catch (Exception e) {
@@ -0,0 +1,292 @@
+package org.jwat.tools.gui;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.jwat.common.Base16;
+import org.jwat.common.Base32;
+import org.jwat.common.Diagnosis;
+import org.jwat.common.DiagnosisType;
+import org.jwat.common.Payload;
+import org.jwat.common.PayloadWithHeaderAbstract;
+import org.jwat.warc.WarcDigest;
+import org.jwat.warc.WarcRecord;
+
+/**
+ * Verifies WARC-Block-Digest and WARC-Payload-Digest headers on a separate
+ * hashing thread. The parsing thread reads each record's block into pooled
+ * buffers and hands them to the hashing thread through a bounded queue, so
+ * it only blocks when hashing falls behind. Results are delivered as
+ * futures holding the digest mismatches of each record.
+ *
+ * Hashing runs on a pool shared by all pipelines, with a worker per
+ * processor, so parsing many small archives does not start a thread each.
+ * A pipeline started while all workers are busy waits for a free one.
+ *
+ * Enabled with <code>jwattools.digest.verify</code> (default false), in
+ * which case the jwat readers' own single threaded digests stay disabled.
+ */
+public class DigestPipeline implements Runnable {
+
+	public static final boolean bEnabled = Settings.getBoolean( "jwattools.digest.verify", false );
+
+	/** Size of the buffers handed to the hashing thread. */
+	protected static final int CHUNK_SIZE = 64 * 1024;
+
+	/** Number of buffers which may be waiting for the hashing thread. */
+	protected static final int QUEUE_SIZE = 32;
+
+	/** Work queued for the hashing thread. */
+	protected BlockingQueue<Chunk> queue = new ArrayBlockingQueue<Chunk>( QUEUE_SIZE );
+
+	/** Buffers returned by the hashing thread for reuse. */
+	protected BlockingQueue<byte[]> freeBuffers = new ArrayBlockingQueue<byte[]>( QUEUE_SIZE + 2 );
+
+	/** Hashing workers shared by all pipelines. */
+	protected static ExecutorService hashExecutor;
+
+	/** The hashing task of this pipeline. */
+	protected Future<?> task;
+
+	/** Marker which stops the hashing thread. */
+	protected static final Chunk SHUTDOWN = new Chunk( null, null, 0, false );
+
+	static class Chunk {
+		RecordDigests record;
+		byte[] buffer;
+		int len;
+		boolean bPayload;
+		Chunk(RecordDigests record, byte[] buffer, int len, boolean bPayload) {
+			this.record = record;
+			this.buffer = buffer;
+			this.len = len;
+			this.bPayload = bPayload;
+		}
+	}
+
+	static class RecordDigests {
+		WarcDigest expectedBlock;
+		WarcDigest expectedPayload;
+		MessageDigest blockMd;
+		MessageDigest payloadMd;
+		CompletableFuture<List<Diagnosis>> future = new CompletableFuture<List<Diagnosis>>();
+	}
+
+	public DigestPipeline() {
+		task = getExecutor().submit( this );
+	}
+
+	protected static synchronized ExecutorService getExecutor() {
+		if ( hashExecutor == null ) {
+			hashExecutor = ThreadFactories.newTaskExecutor( "Digest-Pipeline", Runtime.getRuntime().availableProcessors() );
+		}
+		return hashExecutor;
+	}
+
+	/**
+	 * Read the block of a WARC record and queue it for digest verification.
+	 * The record's payload is consumed, but not closed. A record without a
+	 * payload has an empty block, whose block digest is still verified.
+	 * @param warcRecord WARC record positioned at the start of its block
+	 * @return future list of digest mismatches, empty if all digests match or none are present
+	 * @throws IOException if an I/O error occurs while reading the record
+	 */
+	public CompletableFuture<List<Diagnosis>> submit(WarcRecord warcRecord) throws IOException {
+		RecordDigests record = new RecordDigests();
+		record.expectedBlock = warcRecord.header.warcBlockDigest;
+		record.expectedPayload = warcRecord.header.warcPayloadDigest;
+		record.blockMd = newDigest( record.expectedBlock );
+		record.payloadMd = newDigest( record.expectedPayload );
+		Payload payload = warcRecord.getPayload();
+		if ( payload == null ) {
+			// Nothing to hash, the digest of the empty block is checked right away.
+			record.payloadMd = null;
+			record.future.complete( verify( record ) );
+			return record.future;
+		}
+		if ( record.blockMd == null && record.payloadMd == null ) {
+			record.future.complete( new ArrayList<Diagnosis>() );
+			return record.future;
+		}
+		PayloadWithHeaderAbstract payloadHeader = payload.getPayloadHeaderWrapped();
+		if ( payloadHeader != null ) {
+			byte[] header = payloadHeader.getHeader();
+			put( new Chunk( record, header, header.length, false ) );
+		}
+		InputStream in = warcRecord.getPayloadContent();
+		byte[] buffer;
+		int read;
+		try {
+			while ( true ) {
+				buffer = freeBuffers.poll();
+				if ( buffer == null ) {
+					buffer = new byte[ CHUNK_SIZE ];
+				}
+				read = readFully( in, buffer );
+				if ( read <= 0 ) {
+					freeBuffers.offer( buffer );
+					break;
+				}
+				put( new Chunk( record, buffer, read, true ) );
+			}
+		}
+		finally {
+			// Zero length chunk completes the record.
+			put( new Chunk( record, null, 0, true ) );
+		}
+		return record.future;
+	}
+
+	protected static int readFully(InputStream in, byte[] buffer) throws IOException {
+		int offset = 0;
+		int read;
+		while ( offset < buffer.length && (read = in.read( buffer, offset, buffer.length - offset )) != -1 ) {
+			offset += read;
+		}
+		return offset;
+	}
+
+	protected void put(Chunk chunk) {
+		boolean bDone = false;
+		while ( !bDone ) {
+			try {
+				queue.put( chunk );
+				bDone = true;
+			}
+			catch (InterruptedException e) {
+			}
+		}
+	}
+
+	/**
+	 * Stop the hashing task once all queued records have been verified.
+	 */
+	public void close() {
+		put( SHUTDOWN );
+		try {
+			task.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public void run() {
+		Chunk chunk;
+		RecordDigests record;
+		while ( true ) {
+			try {
+				chunk = queue.take();
+			}
+			catch (InterruptedException e) {
+				continue;
+			}
+			if ( chunk == SHUTDOWN ) {
+				break;
+			}
+			record = chunk.record;
+			if ( chunk.buffer == null ) {
+				record.future.complete( verify( record ) );
+			}
+			else {
+				if ( record.blockMd != null ) {
+					record.blockMd.update( chunk.buffer, 0, chunk.len );
+				}
+				if ( chunk.bPayload ) {
+					if ( record.payloadMd != null ) {
+						record.payloadMd.update( chunk.buffer, 0, chunk.len );
+					}
+					freeBuffers.offer( chunk.buffer );
+				}
+			}
+		}
+	}
+
+	protected static List<Diagnosis> verify(RecordDigests record) {
+		List<Diagnosis> diagnoses = new ArrayList<Diagnosis>();
+		if ( record.blockMd != null ) {
+			compare( record.expectedBlock, record.blockMd.digest(), "WARC-Block-Digest", diagnoses );
+		}
+		if ( record.payloadMd != null ) {
+			compare( record.expectedPayload, record.payloadMd.digest(), "WARC-Payload-Digest", diagnoses );
+		}
+		return diagnoses;
+	}
+
+	protected static void compare(WarcDigest expected, byte[] computed, String entity, List<Diagnosis> diagnoses) {
+		byte[] expectedBytes = decode( expected, computed.length );
+		if ( expectedBytes == null || !MessageDigest.isEqual( expectedBytes, computed ) ) {
+			diagnoses.add( new Diagnosis( DiagnosisType.INVALID_EXPECTED, entity,
+					expected.digestString, Base32.encodeArray( computed ) ) );
+		}
+	}
+
+	/**
+	 * Decode the digest value of a header, guessing the encoding from its length if it is not given.
+	 * @param digest parsed digest header
+	 * @param length expected digest length in bytes
+	 * @return decoded digest or null if it could not be decoded
+	 */
+	protected static byte[] decode(WarcDigest digest, int length) {
+		String value = digest.digestString;
+		if ( value == null ) {
+			return null;
+		}
+		String encoding = digest.encoding;
+		byte[] bytes = null;
+		if ( "base16".equalsIgnoreCase( encoding ) || (encoding == null && value.length() == length * 2) ) {
+			bytes = Base16.decodeToArray( value );
+		}
+		else if ( "base64".equalsIgnoreCase( encoding ) ) {
+			try {
+				bytes = java.util.Base64.getDecoder().decode( value );
+			}
+			catch (IllegalArgumentException e) {
+			}
+		}
+		else {
+			bytes = Base32.decodeToArray( value, true );
+		}
+		return bytes;
+	}
+
+	/**
+	 * Returns a message digest for the algorithm of a digest header or null
+	 * if there is no header or the algorithm is unsupported.
+	 * @param digest parsed digest header
+	 * @return message digest or null
+	 */
+	protected static MessageDigest newDigest(WarcDigest digest) {
+		if ( digest == null || digest.algorithm == null ) {
+			return null;
+		}
+		String algorithm = digest.algorithm.toLowerCase();
+		if ( "sha1".equals( algorithm ) ) {
+			algorithm = "SHA-1";
+		}
+		else if ( algorithm.startsWith( "sha" ) && !algorithm.startsWith( "sha-" ) ) {
+			algorithm = "SHA-" + algorithm.substring( 3 );
+		}
+		try {
+			return MessageDigest.getInstance( algorithm.toUpperCase() );
+		}
+		catch (NoSuchAlgorithmException e) {
+			return null;
+		}
+	}
+
+}
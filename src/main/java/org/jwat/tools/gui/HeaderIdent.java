@@ -0,0 +1,113 @@
+package org.jwat.tools.gui;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.GZIPInputStream;
+
+import org.jwat.archive.FileIdent;
+
+/**
+ * Cheap alternative to <code>FileIdent.ident</code> which identifies a file
+ * from its name and a single positional read of its first bytes.
+ * Compressed files are identified by inflating the start of the first
+ * gzip member from the same bytes.
+ */
+public class HeaderIdent {
+
+	/** Number of bytes read from the start of each file. */
+	protected static final int HEADER_SIZE = 1024;
+
+	/** Filename suffixes of files commonly stored next to archives which are never archives. */
+	protected static final String[] NON_ARCHIVE_SUFFIXES = {
+		".cdx", ".cdxj", ".log", ".txt", ".xml", ".json", ".html", ".csv",
+		".md5", ".sha1", ".sha256", ".idx", SidecarIndex.EXTENSION, ".lck"
+	};
+
+	protected static final byte[] WARC_MAGIC = { 'W', 'A', 'R', 'C', '/' };
+
+	protected static final byte[] ARC_MAGIC = { 'f', 'i', 'l', 'e', 'd', 'e', 's', 'c', ':', '/', '/' };
+
+	protected HeaderIdent() {
+	}
+
+	/**
+	 * Identify a file using one of the <code>FileIdent.FILEID_*</code> constants.
+	 * @param file file to identify
+	 * @return <code>FileIdent</code> file id
+	 */
+	public static int ident(File file) {
+		String name = file.getName().toLowerCase();
+		for ( int i=0; i<NON_ARCHIVE_SUFFIXES.length; ++i ) {
+			if ( name.endsWith( NON_ARCHIVE_SUFFIXES[ i ] ) ) {
+				return FileIdent.FILEID_UNKNOWN;
+			}
+		}
+		ByteBuffer bb = ByteBuffer.allocate( HEADER_SIZE );
+		try (FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ )) {
+			while ( bb.hasRemaining() && channel.read( bb, bb.position() ) != -1 ) {
+			}
+		}
+		catch (IOException e) {
+			return FileIdent.FILEID_ERROR;
+		}
+		byte[] header = bb.array();
+		int len = bb.position();
+		if ( len >= 3 && (header[ 0 ] & 255) == 0x1f && (header[ 1 ] & 255) == 0x8b && header[ 2 ] == 8 ) {
+			byte[] inflated = new byte[ ARC_MAGIC.length ];
+			int inflatedLen = inflateHead( header, len, inflated );
+			if ( startsWith( inflated, inflatedLen, WARC_MAGIC ) ) {
+				return FileIdent.FILEID_WARC_GZ;
+			}
+			else if ( startsWith( inflated, inflatedLen, ARC_MAGIC ) ) {
+				return FileIdent.FILEID_ARC_GZ;
+			}
+			return FileIdent.FILEID_GZIP;
+		}
+		else if ( startsWith( header, len, WARC_MAGIC ) ) {
+			return FileIdent.FILEID_WARC;
+		}
+		else if ( startsWith( header, len, ARC_MAGIC ) ) {
+			return FileIdent.FILEID_ARC;
+		}
+		return FileIdent.FILEID_UNKNOWN;
+	}
+
+	/**
+	 * Inflate as much of the start of the first gzip member as fits in the output array.
+	 * @param compressed compressed bytes
+	 * @param len number of valid compressed bytes
+	 * @param out output array
+	 * @return number of bytes inflated into the output array
+	 */
+	protected static int inflateHead(byte[] compressed, int len, byte[] out) {
+		int offset = 0;
+		int read;
+		try (InputStream in = new GZIPInputStream( new ByteArrayInputStream( compressed, 0, len ), len )) {
+			while ( offset < out.length && (read = in.read( out, offset, out.length - offset )) != -1 ) {
+				offset += read;
+			}
+		}
+		catch (IOException e) {
+			// Truncated input is expected since only the head of the file is read.
+		}
+		return offset;
+	}
+
+	protected static boolean startsWith(byte[] bytes, int len, byte[] magic) {
+		if ( len < magic.length ) {
+			return false;
+		}
+		for ( int i=0; i<magic.length; ++i ) {
+			if ( bytes[ i ] != magic[ i ] ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
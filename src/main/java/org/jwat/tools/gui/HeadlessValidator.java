@@ -0,0 +1,312 @@
+package org.jwat.tools.gui;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+
+import org.jwat.tools.gui.cluster.ClusterCoordinator;
+import org.jwat.tools.gui.library.ArchiveCatalog;
+import org.jwat.tools.gui.library.ArchiveFileBase;
+import org.jwat.tools.gui.library.ArchiveSink;
+import org.jwat.tools.gui.library.ValidationJob;
+import org.jwat.tools.gui.library.ValidationListener;
+
+/**
+ * Batch validation without a GUI, for servers where the archives live.
+ * Scans the given files and directories with the <code>ScannerThread</code>,
+ * validates the archives with the <code>ValidatorThreadPool</code> and
+ * writes one result line per archive, as JSON lines or CSV, while it runs.
+ * A summary goes to stderr when everything is done.
+ *
+ * No per archive state outlives the archive's validation. The scanner
+ * blocks once <code>--max-pending</code> archives are queued or running,
+ * so memory use does not grow with the number of archives. The ident cache
+ * is not used, and the catalog only when <code>--catalog</code> is given.
+ *
+ * Exit code 0 if all archives validated without errors, 1 if any archive
+ * had errors or failed and 2 on invalid arguments.
+ */
+public class HeadlessValidator implements ArchiveSink, ValidationListener {
+
+	protected static final int DEFAULT_MAX_PENDING = 256;
+
+	protected PrintWriter out;
+
+	protected boolean bCsv;
+
+	/** Bounds the number of archives handed to the pool but not yet done. */
+	protected Semaphore pendingPermits;
+
+	/** Number of archives handed to the pool, only changed by walker threads. */
+	protected long submitted = 0;
+
+	protected long done = 0;
+
+	protected long files = 0;
+
+	protected long cachedFiles = 0;
+
+	protected long failedFiles = 0;
+
+	protected long bytes = 0;
+
+	protected long records = 0;
+
+	protected long errors = 0;
+
+	protected long warnings = 0;
+
+	protected long exceptions = 0;
+
+	public HeadlessValidator(PrintWriter out, boolean bCsv, int maxPending) {
+		this.out = out;
+		this.bCsv = bCsv;
+		this.pendingPermits = new Semaphore( maxPending );
+		if ( bCsv ) {
+			out.println( "path,size,records,errors,warnings,exceptions,completed,cached,elapsed_ms" );
+			out.flush();
+		}
+	}
+
+	public static void main(String[] args) {
+		String format = "json";
+		String output = null;
+		boolean bCatalog = false;
+		int coordinatorPort = 0;
+		int maxPending = DEFAULT_MAX_PENDING;
+		List<File> sources = new ArrayList<File>();
+		String arg;
+		try {
+			for ( int i=0; i<args.length; ++i ) {
+				arg = args[ i ];
+				if ( "--headless".equals( arg ) ) {
+				}
+				else if ( "--format".equals( arg ) && i + 1 < args.length ) {
+					format = args[ ++i ];
+				}
+				else if ( "--output".equals( arg ) && i + 1 < args.length ) {
+					output = args[ ++i ];
+				}
+				else if ( "--max-pending".equals( arg ) && i + 1 < args.length ) {
+					maxPending = Integer.parseInt( args[ ++i ] );
+				}
+				else if ( "--coordinator".equals( arg ) && i + 1 < args.length ) {
+					coordinatorPort = Integer.parseInt( args[ ++i ] );
+				}
+				else if ( "--catalog".equals( arg ) ) {
+					bCatalog = true;
+				}
+				else if ( arg.startsWith( "--" ) ) {
+					throw new IllegalArgumentException( "Unknown option: " + arg );
+				}
+				else {
+					sources.add( new File( arg ) );
+				}
+			}
+			if ( !"json".equals( format ) && !"csv".equals( format ) ) {
+				throw new IllegalArgumentException( "Unknown format: " + format );
+			}
+			if ( maxPending < 1 ) {
+				throw new IllegalArgumentException( "Invalid --max-pending: " + maxPending );
+			}
+			if ( sources.isEmpty() ) {
+				throw new IllegalArgumentException( "No files or directories given" );
+			}
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println( e.getMessage() );
+			System.err.println( "usage: --headless [--format json|csv] [--output file] [--max-pending n] [--catalog] [--coordinator port] <file or dir>..." );
+			System.exit( 2 );
+		}
+		PrintWriter out;
+		try {
+			if ( output != null ) {
+				out = new PrintWriter( new BufferedWriter( new OutputStreamWriter( new FileOutputStream( output ), "UTF-8" ) ) );
+			}
+			else {
+				out = new PrintWriter( new BufferedWriter( new OutputStreamWriter( System.out, "UTF-8" ) ) );
+			}
+		}
+		catch (IOException e) {
+			System.err.println( "Unable to open output: " + e.getMessage() );
+			System.exit( 2 );
+			return;
+		}
+		HeadlessValidator validator = new HeadlessValidator( out, "csv".equals( format ), maxPending );
+		System.exit( validator.run( sources, bCatalog, coordinatorPort ) );
+	}
+
+	/**
+	 * Scan and validate all sources and wait for the last validation to finish.
+	 * @param sources files and directories to validate
+	 * @param bCatalog reuse and update the catalog in the settings directory
+	 * @param coordinatorPort port to coordinate cluster workers on, 0 to use the settings
+	 * @return exit code
+	 */
+	public int run(List<File> sources, boolean bCatalog, int coordinatorPort) {
+		long startTime = System.currentTimeMillis();
+		ArchiveFileBase.bKeepIndex = false;
+		ArchiveCatalog catalog = null;
+		if ( bCatalog ) {
+			catalog = new ArchiveCatalog( new File( Settings.getSettingsDir(), "catalog.dat" ) );
+			catalog.load();
+		}
+		ValidatorThreadPool pool = new ValidatorThreadPool( catalog );
+		pool.addListener( this );
+		ClusterCoordinator coordinator = ClusterCoordinator.startIfEnabled( pool, coordinatorPort );
+		ScannerThread scanner = new ScannerThread( catalog, pool, this, false );
+		for ( File source : sources ) {
+			if ( !source.exists() ) {
+				System.err.println( "Does not exist: " + source.getPath() );
+				synchronized ( this ) {
+					++failedFiles;
+				}
+				continue;
+			}
+			scanner.scan( source );
+		}
+		synchronized ( this ) {
+			while ( done < submitted ) {
+				try {
+					wait();
+				}
+				catch (InterruptedException e) {
+				}
+			}
+		}
+		scanner.exit();
+		if ( coordinator != null ) {
+			coordinator.exit();
+		}
+		pool.exit();
+		if ( catalog != null ) {
+			catalog.close();
+		}
+		UriIndex.closeInstance();
+		out.flush();
+		long elapsed = System.currentTimeMillis() - startTime;
+		synchronized ( this ) {
+			System.err.println( String.format( "Files: %d (%d from catalog, %d failed)  Records: %d  Errors: %d  Warnings: %d  Exceptions: %d",
+					files, cachedFiles, failedFiles, records, errors, warnings, exceptions ) );
+			System.err.println( String.format( "Validated %.1f MB in %.1f s, %.1f MB/s",
+					bytes / (1024.0 * 1024.0), elapsed / 1000.0,
+					elapsed > 0 ? bytes * 1000.0 / elapsed / (1024.0 * 1024.0) : 0.0 ) );
+			if ( ReaderPool.getHits() + ReaderPool.getMisses() > 0 ) {
+				System.err.println( String.format( "Reader pool: %d hits, %d misses, %.1f%% hit rate",
+						ReaderPool.getHits(), ReaderPool.getMisses(), ReaderPool.getHitRate() * 100.0 ) );
+			}
+			return (errors > 0 || exceptions > 0 || failedFiles > 0) ? 1 : 0;
+		}
+	}
+
+	/**
+	 * Called by the walker threads for every archive found. Archives restored
+	 * from the catalog are written at once, all others wait for a permit.
+	 */
+	@Override
+	public ArchiveFileBase addFileIfAbsent(ArchiveFileBase archiveFile) {
+		if ( archiveFile.bCompleted ) {
+			writeResult( archiveFile, true );
+			return null;
+		}
+		pendingPermits.acquireUninterruptibly();
+		synchronized ( this ) {
+			++submitted;
+		}
+		return null;
+	}
+
+	@Override
+	public void validationDone(ArchiveFileBase archiveFile) {
+		try {
+			writeResult( archiveFile, false );
+		}
+		finally {
+			pendingPermits.release();
+			synchronized ( this ) {
+				++done;
+				notifyAll();
+			}
+		}
+	}
+
+	protected synchronized void writeResult(ArchiveFileBase archiveFile, boolean bCached) {
+		ValidationJob job = archiveFile.job;
+		long elapsed = (job != null) ? job.getElapsed() : 0;
+		++files;
+		if ( bCached ) {
+			++cachedFiles;
+		}
+		else {
+			bytes += archiveFile.consumed;
+		}
+		if ( !archiveFile.bCompleted ) {
+			++failedFiles;
+		}
+		records += archiveFile.records;
+		errors += archiveFile.errors;
+		warnings += archiveFile.warnings;
+		exceptions += archiveFile.exceptions;
+		String path = archiveFile.file.getPath();
+		if ( bCsv ) {
+			out.println( csv( path ) + "," + archiveFile.fileSize + "," + archiveFile.records + "," + archiveFile.errors + ","
+					+ archiveFile.warnings + "," + archiveFile.exceptions + "," + archiveFile.bCompleted + "," + bCached + "," + elapsed );
+		}
+		else {
+			out.println( "{\"path\":" + json( path ) + ",\"size\":" + archiveFile.fileSize + ",\"records\":" + archiveFile.records
+					+ ",\"errors\":" + archiveFile.errors + ",\"warnings\":" + archiveFile.warnings + ",\"exceptions\":" + archiveFile.exceptions
+					+ ",\"completed\":" + archiveFile.bCompleted + ",\"cached\":" + bCached + ",\"elapsedMs\":" + elapsed + "}" );
+		}
+		out.flush();
+	}
+
+	protected static String csv(String value) {
+		if ( value.indexOf( ',' ) == -1 && value.indexOf( '"' ) == -1 && value.indexOf( '\n' ) == -1 && value.indexOf( '\r' ) == -1 ) {
+			return value;
+		}
+		return "\"" + value.replace( "\"", "\"\"" ) + "\"";
+	}
+
+	protected static String json(String value) {
+		StringBuilder sb = new StringBuilder( value.length() + 2 );
+		sb.append( '"' );
+		char c;
+		for ( int i=0; i<value.length(); ++i ) {
+			c = value.charAt( i );
+			switch ( c ) {
+			case '"':
+				sb.append( "\\\"" );
+				break;
+			case '\\':
+				sb.append( "\\\\" );
+				break;
+			case '\n':
+				sb.append( "\\n" );
+				break;
+			case '\r':
+				sb.append( "\\r" );
+				break;
+			case '\t':
+				sb.append( "\\t" );
+				break;
+			default:
+				if ( c < 0x20 ) {
+					sb.append( String.format( "\\u%04x", (int)c ) );
+				}
+				else {
+					sb.append( c );
+				}
+				break;
+			}
+		}
+		sb.append( '"' );
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,158 @@
+package org.jwat.tools.gui;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jwat.archive.FileIdent;
+
+/**
+ * Persistent cache of file identification results keyed by path, size and mtime.
+ * Safe for concurrent use from the scanner's walker pool.
+ */
+public class IdentCache {
+
+	/** Ident cache file magic, "JWIC". */
+	protected static final int MAGIC = 0x4a574943;
+
+	protected static final int VERSION = 1;
+
+	protected File cacheFile;
+
+	protected Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+	protected volatile boolean bDirty = false;
+
+	static class Entry {
+
+		long fileSize;
+
+		long lastModified;
+
+		int fileId;
+
+		Entry(long fileSize, long lastModified, int fileId) {
+			this.fileSize = fileSize;
+			this.lastModified = lastModified;
+			this.fileId = fileId;
+		}
+
+	}
+
+	public IdentCache(File cacheFile) {
+		this.cacheFile = cacheFile;
+	}
+
+	/**
+	 * Identify a file, reusing the cached result while size and mtime are unchanged.
+	 * @param file file to identify
+	 * @param fileSize current size of the file
+	 * @param lastModified current modification time of the file
+	 * @return <code>FileIdent</code> file id
+	 */
+	public int ident(File file, long fileSize, long lastModified) {
+		String path = file.getAbsolutePath();
+		Entry entry = entries.get( path );
+		if ( entry != null && entry.fileSize == fileSize && entry.lastModified == lastModified ) {
+			return entry.fileId;
+		}
+		int fileId = HeaderIdent.ident( file );
+		if ( fileId != FileIdent.FILEID_ERROR ) {
+			entries.put( path, new Entry( fileSize, lastModified, fileId ) );
+			bDirty = true;
+		}
+		return fileId;
+	}
+
+	public synchronized void load() {
+		entries.clear();
+		if ( !cacheFile.exists() ) {
+			return;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream( new BufferedInputStream( new FileInputStream( cacheFile ), 65536 ) );
+			if ( in.readInt() != MAGIC || in.readInt() != VERSION ) {
+				System.err.println( "Ignoring incompatible ident cache: " + cacheFile.getPath() );
+				return;
+			}
+			int count = in.readInt();
+			String path;
+			for ( int i=0; i<count; ++i ) {
+				path = in.readUTF();
+				entries.put( path, new Entry( in.readLong(), in.readLong(), in.readInt() ) );
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		finally {
+			if ( in != null ) {
+				try {
+					in.close();
+				}
+				catch (IOException e) {
+				}
+			}
+		}
+		bDirty = false;
+	}
+
+	/**
+	 * Write the cache to a temporary file and move it in place of the old one,
+	 * if anything has changed since it was loaded or last saved.
+	 */
+	public synchronized void save() {
+		if ( !bDirty ) {
+			return;
+		}
+		bDirty = false;
+		File tmpFile = new File( cacheFile.getPath() + ".tmp" );
+		DataOutputStream out = null;
+		try {
+			// Snapshot, the map may change while it is being written.
+			Map.Entry<?, ?>[] snapshot = entries.entrySet().toArray( new Map.Entry<?, ?>[ 0 ] );
+			out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmpFile ), 65536 ) );
+			out.writeInt( MAGIC );
+			out.writeInt( VERSION );
+			out.writeInt( snapshot.length );
+			Entry entry;
+			for ( int i=0; i<snapshot.length; ++i ) {
+				entry = (Entry)snapshot[ i ].getValue();
+				out.writeUTF( (String)snapshot[ i ].getKey() );
+				out.writeLong( entry.fileSize );
+				out.writeLong( entry.lastModified );
+				out.writeInt( entry.fileId );
+			}
+			out.close();
+			out = null;
+			if ( cacheFile.exists() && !cacheFile.delete() ) {
+				throw new IOException( "Unable to replace ident cache: " + cacheFile.getPath() );
+			}
+			if ( !tmpFile.renameTo( cacheFile ) ) {
+				throw new IOException( "Unable to rename ident cache: " + tmpFile.getPath() );
+			}
+		}
+		catch (IOException e) {
+			bDirty = true;
+			e.printStackTrace();
+		}
+		finally {
+			if ( out != null ) {
+				try {
+					out.close();
+				}
+				catch (IOException e) {
+				}
+			}
+		}
+	}
+
+}
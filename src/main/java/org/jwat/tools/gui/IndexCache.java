@@ -0,0 +1,255 @@
+package org.jwat.tools.gui;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jwat.tools.gui.explorer.ArchiveIndex;
+
+/**
+ * Record indexes of the archives in the library, shared by all lister
+ * windows, so an archive which is opened again or in a second window is
+ * neither indexed nor held twice. Indexes are keyed by canonical path and
+ * only handed out while the archive's size and modification time match.
+ *
+ * Indexes in use by a window are pinned and always kept. The others are
+ * only softly referenced and evicted, least recently used first, once the
+ * estimated size of all indexes exceeds <code>jwattools.index.cache</code>
+ * percent (default 20) of the maximum heap, or when the memory governor,
+ * which every cached index is charged to, needs room for a job.
+ */
+public class IndexCache implements MemoryGovernor.Reclaimer {
+
+	public static final IndexCache instance = new IndexCache(
+			Runtime.getRuntime().maxMemory() / 100L * Math.max( 1, Math.min( 100, Settings.getInt( "jwattools.index.cache", 20 ) ) ),
+			MemoryGovernor.instance );
+
+	static {
+		MemoryGovernor.instance.setReclaimer( instance );
+	}
+
+	protected static class Entry {
+		protected final SoftReference<ArchiveIndex> ref;
+		/** Strong reference to the index while it is pinned. */
+		protected ArchiveIndex index;
+		protected final long fileSize;
+		protected final long lastModified;
+		protected final long bytes;
+		protected final MemoryGovernor.Ticket ticket;
+		/** Number of windows using the index. */
+		protected int pins = 0;
+		protected Entry(ArchiveIndex index, long fileSize, long lastModified, MemoryGovernor.Ticket ticket) {
+			this.ref = new SoftReference<ArchiveIndex>( index );
+			this.fileSize = fileSize;
+			this.lastModified = lastModified;
+			this.bytes = ticket.bytes;
+			this.ticket = ticket;
+		}
+	}
+
+	protected final long budget;
+
+	protected final MemoryGovernor governor;
+
+	/** Indexes by canonical path, least recently used first. */
+	protected Map<String, Entry> entries = new LinkedHashMap<String, Entry>( 16, 0.75f, true );
+
+	/** Estimated size of all cached indexes. */
+	protected long bytes = 0;
+
+	protected long hits = 0;
+
+	protected long misses = 0;
+
+	public IndexCache(long budget, MemoryGovernor governor) {
+		this.budget = budget;
+		this.governor = governor;
+	}
+
+	/**
+	 * Returns the key of an archive, its canonical path, so an archive
+	 * reached through a link or another path is still cached once.
+	 * @param file archive file
+	 * @return canonical path, or the absolute path if it can not be resolved
+	 */
+	public static String getKey(File file) {
+		try {
+			return file.getCanonicalPath();
+		}
+		catch (IOException e) {
+			return file.getAbsolutePath();
+		}
+	}
+
+	/**
+	 * Returns the cached index of an archive, pinned if requested.
+	 * An index of an archive which has changed since is dropped.
+	 * @param file archive file
+	 * @param bPin pin the index until it is released
+	 * @return record index or null if none is cached
+	 */
+	public ArchiveIndex get(File file, boolean bPin) {
+		String key = getKey( file );
+		List<MemoryGovernor.Ticket> dropped = new ArrayList<MemoryGovernor.Ticket>();
+		ArchiveIndex index = null;
+		synchronized ( this ) {
+			Entry entry = entries.get( key );
+			if ( entry != null ) {
+				index = entry.ref.get();
+				if ( index == null || entry.fileSize != file.length() || entry.lastModified != file.lastModified() ) {
+					remove( key, entry, dropped );
+					index = null;
+				}
+			}
+			if ( index == null ) {
+				++misses;
+			} else {
+				++hits;
+				if ( bPin ) {
+					entry.index = index;
+					++entry.pins;
+				}
+			}
+		}
+		release( dropped );
+		return index;
+	}
+
+	/**
+	 * Cache the index of an archive, replacing an earlier one unless that is
+	 * pinned, and evict unpinned indexes until the cache is within its
+	 * budget again.
+	 * @param file archive file
+	 * @param index complete record index
+	 * @param fileSize size of the archive when it was indexed
+	 * @param lastModified modification time of the archive when it was indexed
+	 * @param bPin pin the index until it is released
+	 */
+	public void put(File file, ArchiveIndex index, long fileSize, long lastModified, boolean bPin) {
+		String key = getKey( file );
+		List<MemoryGovernor.Ticket> dropped = new ArrayList<MemoryGovernor.Ticket>();
+		synchronized ( this ) {
+			Entry entry = entries.get( key );
+			if ( entry != null && entry.ref.get() == index ) {
+				if ( bPin ) {
+					entry.index = index;
+					++entry.pins;
+				}
+				return;
+			}
+			if ( entry != null && entry.pins > 0 ) {
+				// A window uses the cached index, releasing the new one is ignored.
+				return;
+			}
+			if ( entry != null ) {
+				remove( key, entry, dropped );
+			}
+			entry = new Entry( index, fileSize, lastModified, governor.charge( index.getMemoryUsage() ) );
+			if ( bPin ) {
+				entry.index = index;
+				entry.pins = 1;
+			}
+			entries.put( key, entry );
+			bytes += entry.bytes;
+			evict( budget, dropped );
+		}
+		release( dropped );
+	}
+
+	/**
+	 * Unpin an index once a window no longer uses it. An index which is not
+	 * the cached one, because it was replaced or never cached, is ignored.
+	 * @param file archive file
+	 * @param index record index
+	 */
+	public void release(File file, ArchiveIndex index) {
+		List<MemoryGovernor.Ticket> dropped = new ArrayList<MemoryGovernor.Ticket>();
+		synchronized ( this ) {
+			Entry entry = entries.get( getKey( file ) );
+			if ( entry != null && entry.index == index && entry.pins > 0 ) {
+				if ( --entry.pins == 0 ) {
+					entry.index = null;
+				}
+				evict( budget, dropped );
+			}
+		}
+		release( dropped );
+	}
+
+	/**
+	 * Drop unpinned indexes, least recently used first, for the memory governor.
+	 * @param wanted bytes wanted
+	 */
+	@Override
+	public void reclaim(long wanted) {
+		List<MemoryGovernor.Ticket> dropped = new ArrayList<MemoryGovernor.Ticket>();
+		synchronized ( this ) {
+			evict( Math.max( 0, bytes - wanted ), dropped );
+		}
+		for ( MemoryGovernor.Ticket ticket : dropped ) {
+			governor.uncharge( ticket );
+		}
+	}
+
+	protected void remove(String key, Entry entry, List<MemoryGovernor.Ticket> dropped) {
+		entries.remove( key );
+		bytes -= entry.bytes;
+		dropped.add( entry.ticket );
+	}
+
+	/**
+	 * Drop indexes which have been garbage collected, then unpinned indexes
+	 * until the cache is within the given size.
+	 * @param maxBytes size to keep within
+	 * @param dropped receives the charges of the dropped indexes
+	 */
+	protected void evict(long maxBytes, List<MemoryGovernor.Ticket> dropped) {
+		Iterator<Entry> iter = entries.values().iterator();
+		Entry entry;
+		while ( iter.hasNext() ) {
+			entry = iter.next();
+			if ( entry.pins == 0 && (bytes > maxBytes || entry.ref.get() == null) ) {
+				iter.remove();
+				bytes -= entry.bytes;
+				dropped.add( entry.ticket );
+			}
+		}
+	}
+
+	/**
+	 * Return the charges of dropped indexes, outside the cache's lock since
+	 * the governor notifies the validator pool.
+	 * @param dropped charges of dropped indexes
+	 */
+	protected void release(List<MemoryGovernor.Ticket> dropped) {
+		for ( MemoryGovernor.Ticket ticket : dropped ) {
+			governor.release( ticket );
+		}
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+}
@@ -4,6 +4,9 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 import org.jwat.arc.ArcHeader;
 import org.jwat.arc.ArcReader;
@@ -11,41 +14,133 @@ import org.jwat.arc.ArcRecordBase;
 import org.jwat.archive.ArchiveParser;
 import org.jwat.archive.ArchiveParserCallback;
 import org.jwat.common.ContentType;
+import org.jwat.common.Diagnosis;
+import org.jwat.common.Diagnostics;
 import org.jwat.common.HttpHeader;
 import org.jwat.common.UriProfile;
 import org.jwat.gzip.GzipEntry;
 import org.jwat.gzip.GzipReader;
 import org.jwat.tools.gui.explorer.ArchiveEntry;
+import org.jwat.tools.gui.explorer.ArchiveIndex;
 import org.jwat.warc.WarcHeader;
 import org.jwat.warc.WarcReader;
 import org.jwat.warc.WarcRecord;
 
 public class Indexer implements ArchiveParserCallback {
 
-	protected List<ArchiveEntry> entries = new ArrayList<ArchiveEntry>();
+	protected ArchiveIndex entries = new ArchiveIndex();
 
 	protected int index;
 
+	/** Digest verification stage, if enabled. */
+	protected DigestPipeline digestPipeline;
+
+	/** Index positions of the entries with pending digest verifications. */
+	protected List<Integer> digestEntries = new ArrayList<Integer>();
+
+	protected List<CompletableFuture<List<Diagnosis>>> digestResults = new ArrayList<CompletableFuture<List<Diagnosis>>>();
+
+	/** Verify record digests, either pipelined or by the readers themselves. */
+	protected boolean bDigestsEnabled = DigestPipeline.bEnabled;
+
+	/** Number of bytes consumed by the last parse. */
+	protected long consumed;
+
+	/** Set to stop indexing at the next record. */
+	protected volatile boolean bCancelled = false;
+
 	public Indexer() {
 	}
 
-	public List<ArchiveEntry> index(File file) {
+	public ArchiveIndex index(File file) {
 		index = 0;
 		ArchiveParser archiveParser = new ArchiveParser();
 		archiveParser.uriProfile = UriProfile.RFC3986_ABS_16BIT_LAX;
-		archiveParser.bBlockDigestEnabled = false;
-		archiveParser.bPayloadDigestEnabled = false;
-		//long consumed = archiveParser.parse(file, this);
-		archiveParser.parse(file, this);
+		if (bDigestsEnabled && DigestPipeline.bEnabled) {
+			digestPipeline = new DigestPipeline();
+		}
+		archiveParser.bBlockDigestEnabled = bDigestsEnabled && digestPipeline == null;
+		archiveParser.bPayloadDigestEnabled = bDigestsEnabled && digestPipeline == null;
+		entries.setDigestsVerified(bDigestsEnabled);
+		try {
+			// A cancellation thrown from a callback ends up in apcRuntimeError.
+			consumed = archiveParser.parse(file, this);
+		} finally {
+			if (digestPipeline != null) {
+				digestPipeline.close();
+				digestPipeline = null;
+				addDigestDiagnoses();
+			}
+		}
+		entries.trimToSize();
+		return entries;
+	}
+
+	/**
+	 * Returns the index, which is filled while indexing.
+	 * @return record index
+	 */
+	public ArchiveIndex getEntries() {
 		return entries;
 	}
 
+	/**
+	 * Stop indexing at the next record. The entries indexed so far are returned.
+	 */
+	public void cancel() {
+		bCancelled = true;
+	}
+
+	public boolean isCancelled() {
+		return bCancelled;
+	}
+
+	/**
+	 * Called on the indexing thread with each entry once its record is closed
+	 * and it has been added to the index. Digest mismatches may still be added
+	 * to the index when indexing is done.
+	 * @param entry index entry
+	 */
+	protected void indexed(ArchiveEntry entry) {
+	}
+
+	/**
+	 * Called on the indexing thread as the parser moves through the archive.
+	 * @param consumed number of bytes consumed so far
+	 */
+	protected void progress(long consumed) {
+	}
+
+	protected void checkCancelled() {
+		if (bCancelled) {
+			throw new CancellationException("Indexing cancelled");
+		}
+	}
+
+	/**
+	 * Add the digest mismatches found by the hashing thread to the entries' error counts.
+	 */
+	protected void addDigestDiagnoses() {
+		for (int i=0; i<digestEntries.size(); ++i) {
+			try {
+				entries.addErrors(digestEntries.get(i), digestResults.get(i).get().size());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+			}
+		}
+		digestEntries.clear();
+		digestResults.clear();
+	}
+
 	@Override
 	public void apcFileId(File file, int fileId) {
 	}
 
 	@Override
 	public void apcUpdateConsumed(long consumed) {
+		progress(consumed);
 	}
 
 	@Override
@@ -54,9 +149,43 @@ public class Indexer implements ArchiveParserCallback {
 
 	@Override
 	public void apcArcRecordStart(ArcRecordBase arcRecord, long startOffset, boolean compressed) throws IOException {
+		checkCancelled();
+		ArchiveEntry entry = createEntry(arcRecord, startOffset, compressed);
+		entry.index = index++;
+		// Reading through the record inflates and parses its content.
+		InflateGate.instance.enter();
+		try {
+			arcRecord.close();
+		} finally {
+			InflateGate.instance.exit();
+		}
+		setDiagnostics(entry, arcRecord.diagnostics);
+		entries.add(entry);
+		indexed(entry);
+	}
+
+	/**
+	 * Set the diagnostics counts of an entry. The diagnoses are not kept,
+	 * <code>Lookup</code> derives them again from the record when needed.
+	 * @param entry index entry
+	 * @param diagnostics diagnostics of the closed record
+	 */
+	public static void setDiagnostics(ArchiveEntry entry, Diagnostics<Diagnosis> diagnostics) {
+		entry.errors = diagnostics.getErrors().size();
+		entry.warnings = diagnostics.getWarnings().size();
+	}
+
+	/**
+	 * Create an index entry from the header of an ARC record.
+	 * The caller sets the index and diagnostics once the record is closed.
+	 * @param arcRecord ARC record
+	 * @param startOffset offset of the record
+	 * @param compressed true if the record is gzip compressed
+	 * @return index entry
+	 */
+	public static ArchiveEntry createEntry(ArcRecordBase arcRecord, long startOffset, boolean compressed) {
 		ArcHeader header = arcRecord.header;
 		ArchiveEntry entry = new ArchiveEntry();
-		entry.index = index++;
 		entry.bCompressed = compressed;
 		entry.offset = startOffset;
 		entry.offsetStr = Long.toHexString(startOffset) + " / " + Long.toString(startOffset);
@@ -79,17 +208,41 @@ public class Indexer implements ArchiveParserCallback {
             	}
             }
         }
-        arcRecord.close();
-		entry.diagnostics = arcRecord.diagnostics;
-		entries.add(entry);
+		return entry;
 	}
 
 	@Override
 	public void apcWarcRecordStart(WarcRecord warcRecord, long startOffset,
 			boolean compressed) throws IOException {
+		checkCancelled();
+		ArchiveEntry entry = createEntry(warcRecord, startOffset, compressed);
+		entry.index = index++;
+		InflateGate.instance.enter();
+		try {
+			if (digestPipeline != null) {
+				digestEntries.add(entry.index);
+				digestResults.add(digestPipeline.submit(warcRecord));
+			}
+			warcRecord.close();
+		} finally {
+			InflateGate.instance.exit();
+		}
+		setDiagnostics(entry, warcRecord.diagnostics);
+		entries.add(entry);
+		indexed(entry);
+	}
+
+	/**
+	 * Create an index entry from the header of a WARC record.
+	 * The caller sets the index and diagnostics once the record is closed.
+	 * @param warcRecord WARC record
+	 * @param startOffset offset of the record
+	 * @param compressed true if the record is gzip compressed
+	 * @return index entry
+	 */
+	public static ArchiveEntry createEntry(WarcRecord warcRecord, long startOffset, boolean compressed) {
 		WarcHeader warcHeader = warcRecord.header;
 		ArchiveEntry entry = new ArchiveEntry();
-		entry.index = index++;
 		entry.bCompressed = compressed;
 		entry.offset = startOffset;
 		entry.offsetStr = Long.toHexString(startOffset) + " / " + Long.toString(startOffset);
@@ -111,9 +264,7 @@ public class Indexer implements ArchiveParserCallback {
             	}
             }
         }
-        warcRecord.close();
-		entry.diagnostics = warcRecord.diagnostics;
-		entries.add(entry);
+		return entry;
 	}
 
 	@Override
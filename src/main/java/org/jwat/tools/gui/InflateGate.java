@@ -0,0 +1,43 @@
+package org.jwat.tools.gui;
+
+import java.util.concurrent.Semaphore;
+
+/**
+ * Bounds the number of threads inflating and parsing record content at the
+ * same time when validation runs on virtual threads. Virtual threads are not
+ * preempted, so without the gate CPU heavy validations could occupy every
+ * carrier thread while scanning and lookups wait to be scheduled. Threads
+ * waiting for the gate park like on any other blocking call.
+ *
+ * The number of permits is <code>jwattools.threads.inflate</code>, by
+ * default one less than the number of processors. Platform threads are
+ * scheduled by the operating system and are not gated.
+ */
+public class InflateGate {
+
+	public static final InflateGate instance = new InflateGate( ThreadFactories.isVirtual()
+			? Settings.getInt( "jwattools.threads.inflate", Math.max( 1, Runtime.getRuntime().availableProcessors() - 1 ) ) : 0 );
+
+	/** Permits, null if the gate is open. */
+	protected final Semaphore permits;
+
+	/**
+	 * @param permits number of threads allowed through at once, 0 for no limit
+	 */
+	public InflateGate(int permits) {
+		this.permits = (permits > 0) ? new Semaphore( permits ) : null;
+	}
+
+	public void enter() {
+		if ( permits != null ) {
+			permits.acquireUninterruptibly();
+		}
+	}
+
+	public void exit() {
+		if ( permits != null ) {
+			permits.release();
+		}
+	}
+
+}
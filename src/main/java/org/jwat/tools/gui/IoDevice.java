@@ -0,0 +1,145 @@
+package org.jwat.tools.gui;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileStore;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jwat.tools.gui.library.ValidationJob;
+
+/**
+ * File store archives are read from, with its own queue of validation jobs
+ * and a cap on the number of jobs reading from it at the same time.
+ * Several readers on one spinning disk make it seek between them, so the
+ * cap is kept low there and the validator threads go to other devices
+ * instead. SSDs and network mounts serve many readers in parallel.
+ *
+ * The cap is 2 for disks the kernel reports as rotational and one per
+ * processor, but at least 4, for other devices. It can be set for all
+ * devices with <code>jwattools.io.readers</code> and per device with
+ * <code>jwattools.io.readers.&lt;device&gt;</code>, for example
+ * <code>jwattools.io.readers./dev/sdb1=1</code>.
+ */
+public class IoDevice {
+
+	/** Readers of every device, 0 to choose by device type. */
+	public static final int DEFAULT_READERS = Settings.getInt( "jwattools.io.readers", 0 );
+
+	/** Readers of a spinning disk. */
+	protected static final int ROTATIONAL_READERS = 2;
+
+	/** Readers of SSDs, network mounts and unknown devices. */
+	protected static final int PARALLEL_READERS = Math.max( 4, Runtime.getRuntime().availableProcessors() );
+
+	/** Device key of each directory looked up so far. */
+	protected static final Map<String, String[]> directoryDevices = new ConcurrentHashMap<String, String[]>();
+
+	/** Unique key, the mount point and device of the file store. */
+	public final String key;
+
+	/** Device name of the file store. */
+	public final String name;
+
+	/** Maximum number of jobs reading from the device at the same time. */
+	public final int readers;
+
+	/** Number of jobs handed to the executor and not yet done. */
+	public int running = 0;
+
+	/** Number of jobs waiting for a reader slot. */
+	public int queued = 0;
+
+	/** Jobs waiting for a reader slot, highest priority first. */
+	protected PriorityQueue<ValidationJob> queue = new PriorityQueue<ValidationJob>();
+
+	public IoDevice(String key, String name) {
+		this.key = key;
+		this.name = name;
+		int n = Settings.getInt( "jwattools.io.readers." + name, DEFAULT_READERS );
+		if ( n <= 0 ) {
+			n = isRotational( name ) ? ROTATIONAL_READERS : PARALLEL_READERS;
+		}
+		this.readers = n;
+	}
+
+	protected IoDevice(IoDevice device) {
+		this.key = device.key;
+		this.name = device.name;
+		this.readers = device.readers;
+		this.running = device.running;
+		this.queued = device.queue.size();
+		this.queue = null;
+	}
+
+	/**
+	 * Returns a copy of the counters, safe to read on another thread.
+	 * @return snapshot of the device
+	 */
+	public IoDevice snapshot() {
+		return new IoDevice( this );
+	}
+
+	/**
+	 * Returns true if the kernel reports the block device as a spinning disk.
+	 * A partition reports through the disk it is on. Devices without this
+	 * information, such as network mounts, are not rotational.
+	 * @param name device name of the file store, for example <code>/dev/sda1</code>
+	 * @return true if the device is a spinning disk
+	 */
+	protected static boolean isRotational(String name) {
+		if ( name == null || !name.startsWith( "/dev/" ) ) {
+			return false;
+		}
+		try {
+			File dev = new File( "/sys/class/block", new File( name ).getCanonicalFile().getName() );
+			if ( !dev.exists() ) {
+				return false;
+			}
+			dev = dev.getCanonicalFile();
+			File rotational = new File( dev, "queue/rotational" );
+			if ( !rotational.isFile() && dev.getParentFile() != null ) {
+				rotational = new File( dev.getParentFile(), "queue/rotational" );
+			}
+			if ( !rotational.isFile() ) {
+				return false;
+			}
+			return "1".equals( new String( Files.readAllBytes( rotational.toPath() ), StandardCharsets.US_ASCII ).trim() );
+		}
+		catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the key and name of the file store a file lives on. Lookups are
+	 * cached per directory since resolving a file store reads the mount table.
+	 * @param file archive file
+	 * @return key and name of the file store
+	 */
+	public static String[] lookup(File file) {
+		File dir = file.getAbsoluteFile().getParentFile();
+		String path = (dir != null) ? dir.getPath() : file.getAbsolutePath();
+		String[] device = directoryDevices.get( path );
+		if ( device == null ) {
+			try {
+				FileStore store = Files.getFileStore( (dir != null ? dir : file).toPath() );
+				device = new String[] { store.toString(), store.name() };
+			}
+			catch (IOException e) {
+				// Unknown file store, give each root its own queue.
+				File root = file.getAbsoluteFile();
+				while ( root.getParentFile() != null ) {
+					root = root.getParentFile();
+				}
+				device = new String[] { root.getPath(), root.getPath() };
+			}
+			directoryDevices.put( path, device );
+		}
+		return device;
+	}
+
+}
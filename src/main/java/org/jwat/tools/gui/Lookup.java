@@ -1,16 +1,26 @@
 package org.jwat.tools.gui;
 
+import java.awt.Image;
+import java.awt.Toolkit;
 import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
 
 import org.jwat.arc.ArcReader;
 import org.jwat.arc.ArcReaderFactory;
 import org.jwat.arc.ArcRecordBase;
 import org.jwat.archive.FileIdent;
 import org.jwat.common.ByteCountingPushBackInputStream;
+import org.jwat.common.Diagnosis;
+import org.jwat.common.Diagnostics;
 import org.jwat.common.Payload;
 import org.jwat.common.PayloadWithHeaderAbstract;
 import org.jwat.common.RandomAccessFileInputStream;
@@ -23,6 +33,9 @@ import org.jwat.warc.WarcRecord;
 
 public class Lookup {
 
+	/** Number of records whose diagnostics are kept after being looked up. */
+	protected static final int DIAGNOSTICS_CACHE_SIZE = Math.max( 1, Settings.getInt( "jwattools.diagnostics.cache", 32 ) );
+
 	public UriProfile uriProfile = UriProfile.RFC3986_ABS_16BIT_LAX;
 
 	public boolean bBlockDigestEnabled = false;
@@ -34,6 +47,8 @@ public class Lookup {
 	protected RandomAccessFile raf = null;
 	protected RandomAccessFileInputStream rafin;
 	protected ByteCountingPushBackInputStream pbin = null;
+	/** Pooled stream the record is parsed from, if the archive is compressed. */
+	protected ByteCountingPushBackInputStream entryIn = null;
 
 	public GzipReader gzipReader = null;
 	public ArcReader arcReader = null;
@@ -55,6 +70,18 @@ public class Lookup {
 
 	public int payload_length;
 
+	/** Diagnostics of the records looked up last, by offset, least recently used first. */
+	protected Map<Long, Diagnostics<Diagnosis>> diagnosticsCache = new LinkedHashMap<Long, Diagnostics<Diagnosis>>(16, 0.75f, true) {
+		private static final long serialVersionUID = -3017283146478204311L;
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Long, Diagnostics<Diagnosis>> eldest) {
+			return size() > DIAGNOSTICS_CACHE_SIZE;
+		}
+	};
+
+	/** Whether the cached diagnostics include digest verification. */
+	protected boolean bDiagnosticsDigests = false;
+
 	public Lookup() {
 	}
 
@@ -73,7 +100,7 @@ public class Lookup {
 		ByteCountingPushBackInputStream in = null;
 		GzipEntry gzipEntry = null;
 		if (GzipReader.isGzipped(pbin)) {
-			lookup.gzipReader = new GzipReader( pbin );
+			lookup.gzipReader = ReaderPool.get().getGzipReader( pbin );
 			if ( (gzipEntry = lookup.gzipReader.getNextEntry()) != null ) {
 				in = new ByteCountingPushBackInputStream( new BufferedInputStream( gzipEntry.getInputStream(), 128 ), 16 );
 				lookup.fileId = FileIdent.FILEID_GZIP;
@@ -117,13 +144,14 @@ public class Lookup {
 		}
 		pbin = new ByteCountingPushBackInputStream(rafin, 16);
 		ByteCountingPushBackInputStream in = null;
+		ReaderPool pool = ReaderPool.get();
 		switch (fileId) {
 		case FileIdent.FILEID_GZIP:
 		case FileIdent.FILEID_ARC_GZ:
 		case FileIdent.FILEID_WARC_GZ:
-			gzipReader = new GzipReader( pbin );
+			gzipReader = pool.getGzipReader( pbin );
 			if ( (gzipEntry = gzipReader.getNextEntry()) != null ) {
-				in = new ByteCountingPushBackInputStream( new BufferedInputStream( gzipEntry.getInputStream(), 8192 ), 16 );
+				in = entryIn = pool.getStream( gzipEntry.getInputStream() );
 			}
 			break;
 		default:
@@ -180,6 +208,56 @@ public class Lookup {
 		}
 	}
 
+	/**
+	 * Returns the diagnostics of the record at the given offset. The record
+	 * index only keeps the error and warning counts, so the record is parsed
+	 * and read through again. Its digests are only verified if the index
+	 * was built verifying them, so the diagnostics match the counts.
+	 * The diagnostics of the last few records looked up are kept.
+	 * The current entry is closed.
+	 * @param offset record offset
+	 * @param bDigests verify the block and payload digests
+	 * @return record diagnostics or null if there is no record at the offset
+	 * @throws IOException if an I/O error occurs while reading the record
+	 */
+	public Diagnostics<Diagnosis> lookup_diagnostics(long offset, boolean bDigests) throws IOException {
+		if (bDigests != bDiagnosticsDigests) {
+			diagnosticsCache.clear();
+			bDiagnosticsDigests = bDigests;
+		}
+		Diagnostics<Diagnosis> diagnostics = diagnosticsCache.get(offset);
+		if (diagnostics != null) {
+			return diagnostics;
+		}
+		boolean bBlockDigest = bBlockDigestEnabled;
+		boolean bPayloadDigest = bPayloadDigestEnabled;
+		bBlockDigestEnabled = bDigests;
+		bPayloadDigestEnabled = bDigests;
+		ArcRecordBase arc = null;
+		WarcRecord warc = null;
+		try {
+			lookup_entry(offset);
+			arc = arcRecord;
+			warc = warcRecord;
+		}
+		finally {
+			bBlockDigestEnabled = bBlockDigest;
+			bPayloadDigestEnabled = bPayloadDigest;
+			// Closing the record reads it through and validates it.
+			close_entry();
+		}
+		if (arc != null) {
+			diagnostics = arc.diagnostics;
+		}
+		else if (warc != null) {
+			diagnostics = warc.diagnostics;
+		}
+		if (diagnostics != null) {
+			diagnosticsCache.put(offset, diagnostics);
+		}
+		return diagnostics;
+	}
+
 	// TODO try catch, remove throws.
 	public void close_entry() throws IOException {
 		if (payload_inputstream != null) {
@@ -194,6 +272,10 @@ public class Lookup {
 			warcRecord.close();
 			warcRecord = null;
 		}
+		if (entryIn != null) {
+			entryIn.close();
+			entryIn = null;
+		}
 		if (gzipEntry != null) {
 			gzipEntry.close();
 			gzipEntry = null;
@@ -224,6 +306,38 @@ public class Lookup {
 		}
 	}
 
+	/**
+	 * Read the payload of the current record into a pooled array and decode it as an image.
+	 * @param in payload input stream
+	 * @param bAnimated the image may be animated, decode it with the toolkit to keep the animation
+	 * @return image
+	 * @throws IOException if an I/O error occurs while reading the payload
+	 */
+	public Image readImage(InputStream in, boolean bAnimated) throws IOException {
+		ReaderPool pool = ReaderPool.get();
+		byte[] array = pool.getPayload(payload_length);
+		try {
+			int length = 0;
+			int read = 0;
+			while (read != -1 && length < payload_length) {
+				length += read;
+				read = in.read(array, length, payload_length - length);
+			}
+			Image image = null;
+			if (!bAnimated) {
+				image = ImageIO.read(new ByteArrayInputStream(array, 0, length));
+			}
+			if (image == null) {
+				// The toolkit decodes from the array later on, so it gets its own copy.
+				image = Toolkit.getDefaultToolkit().createImage(Arrays.copyOf(array, length));
+			}
+			return image;
+		}
+		finally {
+			pool.releasePayload(array);
+		}
+	}
+
 	public void close() throws IOException {
 		close_entry();
 		if (raf != null) {
@@ -0,0 +1,221 @@
+package org.jwat.tools.gui;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.jwat.tools.gui.library.ArchiveFileBase;
+
+/**
+ * Keeps the estimated heap use of concurrent validations and indexing within
+ * a budget, <code>jwattools.memory.budget</code> percent (default 50) of the
+ * maximum heap. A job's footprint is estimated from its record count, known
+ * from an earlier validation, or else from the file size.
+ *
+ * Validation jobs which do not fit are deferred by the validator pool until
+ * running jobs release their reservation. A job which does not fit even on
+ * its own is admitted when nothing else is running, and indexing which the
+ * user is waiting for is always admitted. The index keeps only error and
+ * warning counts per record, so diagnostics do not add to the estimate.
+ *
+ * Record indexes kept in the index cache are charged to the same budget.
+ * When a job does not fit, the cache is asked to drop indexes which are
+ * not in use before the job is deferred.
+ */
+public class MemoryGovernor {
+
+	/** Parser, inflater and digest buffers of one job. */
+	protected static final long JOB_OVERHEAD = 4L * 1024L * 1024L;
+
+	/** Index entry in the columns of an <code>ArchiveIndex</code>, with an average URI. */
+	protected static final long ENTRY_SIZE = 120L;
+
+	/** Bytes per record assumed for archives which have not been validated yet. */
+	protected static final long AVERAGE_RECORD_SIZE = 8L * 1024L;
+
+	public static final MemoryGovernor instance = new MemoryGovernor(
+			Runtime.getRuntime().maxMemory() / 100L * Math.max( 1, Math.min( 100, Settings.getInt( "jwattools.memory.budget", 50 ) ) ) );
+
+	/** Reservation of one job or cached index, released when the job is done or the index dropped. */
+	public static class Ticket {
+		public final long bytes;
+		/** Reserved for a job, as opposed to charged for a cached index. */
+		protected final boolean bJob;
+		protected boolean bReleased = false;
+		protected Ticket(long bytes, boolean bJob) {
+			this.bytes = bytes;
+			this.bJob = bJob;
+		}
+	}
+
+	/** Frees cached memory charged to the governor. */
+	public interface Reclaimer {
+		/**
+		 * Drop cached data until at least the given number of bytes is
+		 * uncharged, or nothing more can be dropped. Called outside the
+		 * governor's lock, charges must be returned with <code>uncharge</code>.
+		 * @param bytes bytes wanted
+		 */
+		void reclaim(long bytes);
+	}
+
+	protected final long budget;
+
+	protected long reserved = 0;
+
+	protected int tickets = 0;
+
+	/** Part of <code>reserved</code> charged for cached indexes. */
+	protected long charged = 0;
+
+	protected volatile Reclaimer reclaimer;
+
+	/** Notified outside the lock whenever a reservation is released. */
+	protected List<Runnable> releaseListeners = new CopyOnWriteArrayList<Runnable>();
+
+	public MemoryGovernor(long budget) {
+		this.budget = budget;
+	}
+
+	public void addReleaseListener(Runnable listener) {
+		releaseListeners.add( listener );
+	}
+
+	public void setReclaimer(Reclaimer reclaimer) {
+		this.reclaimer = reclaimer;
+	}
+
+	/**
+	 * Estimate the heap needed to validate or index an archive.
+	 * @param archiveFile archive file
+	 * @return estimated footprint in bytes
+	 */
+	public static long estimate(ArchiveFileBase archiveFile) {
+		long records = archiveFile.records;
+		if ( records == 0 ) {
+			records = archiveFile.fileSize / AVERAGE_RECORD_SIZE + 1;
+		}
+		return JOB_OVERHEAD + records * ENTRY_SIZE;
+	}
+
+	/**
+	 * Admit a validation job if its estimate fits the remaining budget.
+	 * When nothing else holds a reservation the job is always admitted,
+	 * so one huge archive cannot stall the queue.
+	 * @param archiveFile archive file of the job
+	 * @return ticket or null to defer the job
+	 */
+	public Ticket tryAdmit(ArchiveFileBase archiveFile) {
+		long bytes = estimate( archiveFile );
+		Ticket ticket = tryReserve( bytes );
+		if ( ticket == null && reclaim( bytes ) ) {
+			ticket = tryReserve( bytes );
+		}
+		return ticket;
+	}
+
+	protected synchronized Ticket tryReserve(long bytes) {
+		if ( reserved + bytes <= budget || tickets == 0 ) {
+			return reserve( bytes );
+		}
+		return null;
+	}
+
+	/**
+	 * Admit indexing which the user is waiting for, even if it does not fit.
+	 * @param archiveFile archive file to index
+	 * @return ticket
+	 */
+	public Ticket admit(ArchiveFileBase archiveFile) {
+		long bytes = estimate( archiveFile );
+		reclaim( bytes );
+		synchronized ( this ) {
+			return reserve( bytes );
+		}
+	}
+
+	protected Ticket reserve(long bytes) {
+		reserved += bytes;
+		++tickets;
+		return new Ticket( bytes, true );
+	}
+
+	/**
+	 * Ask the reclaimer to drop cached indexes until the given reservation fits.
+	 * @param bytes bytes to reserve
+	 * @return true if anything was dropped
+	 */
+	protected boolean reclaim(long bytes) {
+		Reclaimer reclaimer = this.reclaimer;
+		long wanted;
+		long before;
+		synchronized ( this ) {
+			wanted = reserved + bytes - budget;
+			before = charged;
+		}
+		if ( reclaimer == null || wanted <= 0 || before == 0 ) {
+			return false;
+		}
+		reclaimer.reclaim( wanted );
+		synchronized ( this ) {
+			return charged < before;
+		}
+	}
+
+	/**
+	 * Charge a cached index to the budget. Charges are never refused, the
+	 * cache keeps within the budget by dropping indexes when asked to.
+	 * @param bytes estimated size of the index
+	 * @return ticket, released when the index is dropped
+	 */
+	public synchronized Ticket charge(long bytes) {
+		reserved += bytes;
+		charged += bytes;
+		return new Ticket( bytes, false );
+	}
+
+	/**
+	 * Return a charge without notifying the release listeners, for
+	 * reclaimers which are called while a job is being admitted.
+	 * @param ticket ticket returned by <code>charge</code>
+	 * @return true if the ticket was not released already
+	 */
+	public boolean uncharge(Ticket ticket) {
+		return free( ticket );
+	}
+
+	protected synchronized boolean free(Ticket ticket) {
+		if ( ticket == null || ticket.bReleased ) {
+			return false;
+		}
+		ticket.bReleased = true;
+		reserved -= ticket.bytes;
+		if ( ticket.bJob ) {
+			--tickets;
+		} else {
+			charged -= ticket.bytes;
+		}
+		return true;
+	}
+
+	public void release(Ticket ticket) {
+		if ( !free( ticket ) ) {
+			return;
+		}
+		for ( Runnable listener : releaseListeners ) {
+			listener.run();
+		}
+	}
+
+	public long getBudget() {
+		return budget;
+	}
+
+	public synchronized long getReserved() {
+		return reserved;
+	}
+
+	public synchronized long getCharged() {
+		return charged;
+	}
+
+}
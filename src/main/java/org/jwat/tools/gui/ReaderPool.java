@@ -0,0 +1,273 @@
+package org.jwat.tools.gui;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.jwat.common.ByteCountingPushBackInputStream;
+import org.jwat.gzip.GzipReader;
+
+/**
+ * Per thread pool of gzip readers with their inflaters, buffered record
+ * streams and payload arrays. Looking up a record used to build a new
+ * reader stack, with its native inflater state and several 8 KB buffers,
+ * for every record shown; with the pool a thread reuses the ones it
+ * returned earlier. Pooled objects are returned by closing them.
+ *
+ * Each thread keeps at most <code>jwattools.pool.size</code> (default 4)
+ * objects of each kind, and payload arrays up to
+ * <code>jwattools.pool.payload</code> bytes (default 8 MB). Virtual threads
+ * rarely run more than one task, so in virtual thread mode all threads share
+ * one pool instead.
+ */
+public class ReaderPool {
+
+	/** Read buffer size of pooled gzip readers. */
+	public static final int GZIP_BUFFER_SIZE = 65536;
+
+	/** Read buffer size of pooled record streams. */
+	public static final int STREAM_BUFFER_SIZE = 8192;
+
+	protected static final int MAX_POOLED = Math.max( 1, Settings.getInt( "jwattools.pool.size", 4 ) );
+
+	protected static final int MAX_PAYLOAD = Settings.getInt( "jwattools.pool.payload", 8 * 1024 * 1024 );
+
+	protected static final ReaderPool shared = ThreadFactories.isVirtual() ? new ReaderPool() : null;
+
+	protected static final ThreadLocal<ReaderPool> local = new ThreadLocal<ReaderPool>() {
+		@Override
+		protected ReaderPool initialValue() {
+			return new ReaderPool();
+		}
+	};
+
+	/** Requests served from a pool. */
+	protected static final LongAdder hits = new LongAdder();
+
+	/** Requests which had to allocate. */
+	protected static final LongAdder misses = new LongAdder();
+
+	protected ArrayDeque<PooledGzipReader> gzipReaders = new ArrayDeque<PooledGzipReader>();
+
+	protected ArrayDeque<PooledInputStream> streams = new ArrayDeque<PooledInputStream>();
+
+	protected byte[] payload;
+
+	protected ReaderPool() {
+	}
+
+	/**
+	 * Returns the pool of the current thread.
+	 * @return reader pool
+	 */
+	public static ReaderPool get() {
+		return (shared != null) ? shared : local.get();
+	}
+
+	/**
+	 * Returns a gzip reader reading from the given stream, returned to the
+	 * pool when closed. Unlike a new <code>GzipReader</code> it does not
+	 * close the stream.
+	 * @param in input stream positioned at a gzip member
+	 * @return gzip reader
+	 */
+	public synchronized GzipReader getGzipReader(InputStream in) {
+		PooledGzipReader gzipReader = gzipReaders.poll();
+		if ( gzipReader != null ) {
+			hits.increment();
+		}
+		else {
+			misses.increment();
+			gzipReader = new PooledGzipReader( this );
+		}
+		gzipReader.open( in );
+		return gzipReader;
+	}
+
+	/**
+	 * Returns a buffered stream for parsing a record, like
+	 * <code>new ByteCountingPushBackInputStream( new BufferedInputStream( in, 8192 ), 16 )</code>,
+	 * returned to the pool when closed. Closing it does not close the stream.
+	 * @param in input stream, usually the stream of a gzip entry
+	 * @return buffered stream
+	 */
+	public synchronized ByteCountingPushBackInputStream getStream(InputStream in) {
+		PooledInputStream stream = streams.poll();
+		if ( stream != null ) {
+			hits.increment();
+		}
+		else {
+			misses.increment();
+			stream = new PooledInputStream( this, STREAM_BUFFER_SIZE, 16 );
+		}
+		stream.open( in );
+		return stream;
+	}
+
+	/**
+	 * Returns an array of at least the given length to read a payload into.
+	 * Give it back with <code>releasePayload</code> once nothing refers to it.
+	 * @param length payload length
+	 * @return payload array, possibly longer than the payload
+	 */
+	public synchronized byte[] getPayload(int length) {
+		byte[] array = payload;
+		if ( array != null && array.length >= length ) {
+			payload = null;
+			hits.increment();
+			return array;
+		}
+		misses.increment();
+		return new byte[ length ];
+	}
+
+	public synchronized void releasePayload(byte[] array) {
+		if ( array != null && array.length <= MAX_PAYLOAD && (payload == null || payload.length < array.length) ) {
+			payload = array;
+		}
+	}
+
+	protected synchronized void release(PooledGzipReader gzipReader) {
+		if ( gzipReaders.size() < MAX_POOLED ) {
+			gzipReaders.push( gzipReader );
+		}
+		else {
+			gzipReader.end();
+		}
+	}
+
+	protected synchronized void release(PooledInputStream stream) {
+		if ( streams.size() < MAX_POOLED ) {
+			streams.push( stream );
+		}
+	}
+
+	public static long getHits() {
+		return hits.sum();
+	}
+
+	public static long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * Returns the fraction of requests served from a pool.
+	 * @return hit rate between 0.0 and 1.0
+	 */
+	public static double getHitRate() {
+		long h = hits.sum();
+		long total = h + misses.sum();
+		return (total > 0) ? (double)h / (double)total : 0.0;
+	}
+
+	/**
+	 * Buffered stream which can be pointed at another input stream.
+	 */
+	protected static class ReusableBufferedInputStream extends BufferedInputStream {
+		protected ReusableBufferedInputStream(int size) {
+			super( null, size );
+		}
+		protected void open(InputStream source) {
+			in = source;
+			pos = 0;
+			count = 0;
+			markpos = -1;
+			marklimit = 0;
+		}
+		@Override
+		public void close() {
+			in = null;
+		}
+	}
+
+	/**
+	 * Buffered push back stream which can be pointed at another input stream.
+	 * Closing it returns it to its pool, if it has one, and leaves the source open.
+	 */
+	protected static class PooledInputStream extends ByteCountingPushBackInputStream {
+		protected final ReaderPool pool;
+		protected final ReusableBufferedInputStream buffered;
+		protected boolean bOpen = false;
+		protected PooledInputStream(ReaderPool pool, int bufferSize, int pushbackSize) {
+			this( pool, new ReusableBufferedInputStream( bufferSize ), pushbackSize );
+		}
+		private PooledInputStream(ReaderPool pool, ReusableBufferedInputStream buffered, int pushbackSize) {
+			super( buffered, pushbackSize );
+			this.pool = pool;
+			this.buffered = buffered;
+		}
+		protected void open(InputStream source) {
+			buffered.open( source );
+			pos = buf.length;
+			consumed = 0;
+			counter = 0;
+			bOpen = true;
+		}
+		@Override
+		public void close() {
+			if ( bOpen ) {
+				bOpen = false;
+				buffered.close();
+				if ( pool != null ) {
+					pool.release( this );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gzip reader which keeps its inflater and buffers between archives.
+	 * Closing it closes the current entry and returns it to its pool.
+	 */
+	protected static class PooledGzipReader extends GzipReader {
+		protected final ReaderPool pool;
+		protected final PooledInputStream stream;
+		protected boolean bOpen = false;
+		protected PooledGzipReader(ReaderPool pool) {
+			super( new ReusableBufferedInputStream( 1 ), 1 );
+			this.pool = pool;
+			// Same buffering as GzipReader( in, GZIP_BUFFER_SIZE ), but reusable.
+			stream = new PooledInputStream( null, GZIP_BUFFER_SIZE, 8192 );
+			pbin = stream;
+		}
+		protected void open(InputStream in) {
+			stream.open( in );
+			bIsCompliant = true;
+			diagnostics.reset();
+			entries = 0;
+			startOffset = -1;
+			consumed = 0;
+			lastInput = 0;
+			gzipEntry = null;
+			partialEntry = null;
+			bOpen = true;
+		}
+		@Override
+		public void close() throws IOException {
+			if ( !bOpen ) {
+				return;
+			}
+			bOpen = false;
+			try {
+				if ( gzipEntry != null ) {
+					gzipEntry.close();
+					startOffset = pbin.getConsumed();
+					gzipEntry = null;
+				}
+			}
+			finally {
+				stream.close();
+				pool.release( this );
+			}
+		}
+		protected void end() {
+			if ( inf != null ) {
+				inf.end();
+				inf = null;
+			}
+		}
+	}
+
+}
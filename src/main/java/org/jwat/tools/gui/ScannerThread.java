@@ -8,12 +8,42 @@
 package org.jwat.tools.gui;
 
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
 
 import org.jwat.archive.FileIdent;
+import org.jwat.tools.gui.library.ArchiveCatalog;
 import org.jwat.tools.gui.library.ArchiveFileBase;
 import org.jwat.tools.gui.library.ArchiveFileImpl;
+import org.jwat.tools.gui.library.ArchiveSink;
+import org.jwat.tools.gui.library.ContentFingerprint;
 
 import com.antiaction.multithreading.concurrent.Multex;
 import com.antiaction.multithreading.concurrent.Mutex;
@@ -21,20 +51,104 @@ import com.antiaction.multithreading.concurrent.Mutex;
 
 public class ScannerThread implements Runnable {
 
+	/** Number of files identified by each forked ident task. */
+	protected static final int IDENT_BATCH_SIZE = 64;
+
+	/** Forked tasks a directory task may have outstanding before it joins the oldest half. */
+	protected static final int MAX_PENDING_TASKS = 256;
+
+	/** Filename suffixes used by crawlers for archives that are still being written. */
+	protected static final String[] IN_PROGRESS_SUFFIXES = { ".open", ".tmp", ".part" };
+
+	/** Time a watched file must stay unchanged before it is considered closed. */
+	protected static final long WATCH_QUIET_PERIOD = 10 * 1000L;
+
+	/** Watch service poll interval. */
+	protected static final long WATCH_POLL_INTERVAL = 1000L;
+
 	/** Shutdown boolean. */
-	private boolean exit = false;
+	private volatile boolean exit = false;
 
 	private Mutex lock = new Mutex( 0 );
 	private Multex queued = new Multex( 0 );
 	private List<File> events = new ArrayList<File>();
 
-	public ScannerThread() {
+	/** Work-stealing pool used to walk directory trees and ident files in parallel. */
+	private ForkJoinPool walkerPool;
+
+	/** Thread per task executor used instead of the pool in virtual thread mode, else null. */
+	private ExecutorService virtualExecutor;
+
+	/** Files identified per task, one per virtual thread so slow reads overlap. */
+	private int identBatchSize;
+
+	/** Persistent cache of file identification results, null to always read the file header. */
+	private IdentCache identCache;
+
+	/** Catalog of earlier validation results, null to validate everything. */
+	private ArchiveCatalog catalog;
+
+	private ValidatorThreadPool validator;
+
+	private ArchiveSink sink;
+
+	/** Watch service for watched folders, created on first use. */
+	private WatchService watchService;
+
+	/** Watched files waiting to become stable, accessed by the watch thread only. */
+	private Map<Path, PendingFile> pendingFiles = new HashMap<Path, PendingFile>();
+
+	/** Directories queued to be registered with the watch service before they are scanned. */
+	private Set<File> watchRequests = ConcurrentHashMap.newKeySet();
+
+	/** Roots of the watched directory trees. */
+	private List<Path> watchedRoots = new CopyOnWriteArrayList<Path>();
+
+	/** Recently modified files found by scans of watched trees, handed to the watch thread. */
+	private Queue<Path> unstableFiles = new ConcurrentLinkedQueue<Path>();
+
+	/**
+	 * Create and start a scanner.
+	 * @param catalog catalog of earlier validation results or null
+	 * @param validator pool which validates new and changed archives
+	 * @param sink receiver of all archives found
+	 * @param bIdentCache keep a persistent ident cache in the settings directory
+	 */
+	public ScannerThread(ArchiveCatalog catalog, ValidatorThreadPool validator, ArchiveSink sink, boolean bIdentCache) {
+		this.catalog = catalog;
+		this.validator = validator;
+		this.sink = sink;
+		if ( bIdentCache ) {
+			identCache = new IdentCache( new File( Settings.getSettingsDir(), "ident.dat" ) );
+			identCache.load();
+		}
+		if ( ThreadFactories.isVirtual() ) {
+			virtualExecutor = ThreadFactories.newTaskExecutor( "Scanner-Walker", Runtime.getRuntime().availableProcessors() );
+			identBatchSize = 1;
+		}
+		else {
+			walkerPool = new ForkJoinPool( Runtime.getRuntime().availableProcessors() );
+			identBatchSize = IDENT_BATCH_SIZE;
+		}
 		Thread t = new Thread( this );
 		t.start();
 	}
 
 	public void exit() {
 		exit = true;
+		getWalkerExecutor().shutdown();
+		if ( identCache != null ) {
+			identCache.save();
+		}
+		synchronized ( this ) {
+			if ( watchService != null ) {
+				try {
+					watchService.close();
+				}
+				catch (IOException e) {
+				}
+			}
+		}
 	}
 
 	public void add(File archiveFile) {
@@ -56,100 +170,459 @@ public class ScannerThread implements Runnable {
 
 			// Process job.
 			if ( archiveFile != null ) {
-				addFile( archiveFile );
+				if ( watchRequests.remove( archiveFile ) ) {
+					registerWatch( archiveFile );
+				}
+				scan( archiveFile );
 			}
 		}
 	}
 
+	/**
+	 * Scan a file or directory tree on the calling thread and return once
+	 * every archive found has been handed to the sink.
+	 * @param file file or directory to scan
+	 */
+	public void scan(File file) {
+		addFile( file );
+		if ( identCache != null ) {
+			identCache.save();
+		}
+	}
+
+	private ExecutorService getWalkerExecutor() {
+		return (virtualExecutor != null) ? virtualExecutor : walkerPool;
+	}
+
 	private void addFile(File file) {
-		ArchiveFileBase archiveFile;
-		FileIdent fileIdent;
 		if ( file.isDirectory() ) {
-			File[] files = file.listFiles();
-			for ( int i=0; i<files.length; ++i ) {
-				if ( files[ i ].isDirectory() ) {
-					addFile( files[ i ] );
-				}
-				else if ( files[ i ].isFile() ) {
-					fileIdent = FileIdent.ident(files[ i ]);
-					if (file.length() > 0) {
-						// debug
-						//System.out.println(fileIdent.filenameId + " " + fileIdent.streamId + " " + srcFile.getName());
-						/*
-						if (fileIdent.filenameId != fileIdent.streamId) {
+			if ( virtualExecutor != null ) {
+				// Runs on the calling thread and forks to virtual threads.
+				new DirectoryTask( file.toPath() ).invoke();
+			}
+			else {
+				walkerPool.invoke( new DirectoryTask( file.toPath() ) );
+			}
+		}
+		else if ( file.isFile() ) {
+			identFile( file, file.length(), file.lastModified() );
+		}
+	}
+
+	/**
+	 * Ident a single regular file and hand it to the library and validator
+	 * if it is an archive. Called concurrently from the walker pool.
+	 * @param file file to identify
+	 * @param length file length, as read from the directory walk
+	 * @param lastModified file modification time, as read from the directory walk
+	 */
+	protected void identFile(File file, long length, long lastModified) {
+		if ( length <= 0 || isInProgress( file.getName() ) ) {
+			return;
+		}
+		int fileId = (identCache != null) ? identCache.ident( file, length, lastModified ) : HeaderIdent.ident( file );
+		switch (fileId) {
+		case FileIdent.FILEID_GZIP:
+		case FileIdent.FILEID_ARC:
+		case FileIdent.FILEID_ARC_GZ:
+		case FileIdent.FILEID_WARC:
+		case FileIdent.FILEID_WARC_GZ:
+			archiveFound( file, length, lastModified );
+			break;
+		default:
+			break;
+		}
+	}
+
+	/**
+	 * Add an identified archive to the library. Files with a completed and
+	 * unchanged catalog entry are restored from the catalog. Files unknown by
+	 * path are looked up by content fingerprint, which recognises archives
+	 * that have been moved or renamed. All others are queued for validation. Files already in the library are only queued
+	 * again if their size or modification time has changed.
+	 * @param file archive file
+	 * @param length archive file length
+	 * @param lastModified archive file modification time
+	 */
+	protected void archiveFound(File file, long length, long lastModified) {
+		ArchiveFileBase archiveFile = new ArchiveFileImpl();
+		archiveFile.file = file;
+		archiveFile.path = file.getParent();
+		archiveFile.filename = file.getName();
+		archiveFile.fileSize = length;
+		archiveFile.lastModified = lastModified;
+		if ( catalog != null ) {
+			ArchiveCatalog.Entry entry = catalog.lookup( file, length, lastModified );
+			if ( entry == null || !entry.bCompleted ) {
+				archiveFile.fingerprint = ContentFingerprint.compute( file );
+				ArchiveCatalog.Entry moved = catalog.lookupFingerprint( archiveFile.fingerprint );
+				if ( moved != null ) {
+					entry = moved;
+				}
+			}
+			if ( entry != null ) {
+				entry.copyTo( archiveFile );
+				if ( archiveFile.bCompleted ) {
+					catalog.update( archiveFile );
+				}
+			}
+		}
+		ArchiveFileBase existing = sink.addFileIfAbsent( archiveFile );
+		if ( existing == null ) {
+			if ( !archiveFile.bCompleted ) {
+				validator.add( archiveFile );
+			}
+		}
+		else if ( existing.fileSize != length || existing.lastModified != lastModified ) {
+			existing.fileSize = length;
+			existing.lastModified = lastModified;
+			existing.fingerprint = null;
+			validator.add( existing );
+		}
+	}
+
+	/**
+	 * Re-add all archives in the catalog to the library in the background.
+	 * Archives that no longer exist are removed from the catalog.
+	 */
+	public void restoreCatalog() {
+		if ( catalog == null ) {
+			return;
+		}
+		getWalkerExecutor().execute( new Runnable() {
+			@Override
+			public void run() {
+				List<ArchiveCatalog.Entry> entries = catalog.getEntries();
+				ArchiveCatalog.Entry entry;
+				File file;
+				for ( int i=0; i<entries.size() && !exit; ++i ) {
+					entry = entries.get( i );
+					file = new File( entry.path );
+					if ( file.isFile() ) {
+						archiveFound( file, file.length(), file.lastModified() );
+					}
+					else {
+						catalog.remove( entry.path );
+					}
+				}
+			}
+		} );
+	}
+
+	protected static boolean isInProgress(String filename) {
+		for ( int i=0; i<IN_PROGRESS_SUFFIXES.length; ++i ) {
+			if ( filename.endsWith( IN_PROGRESS_SUFFIXES[ i ] ) ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Scan a directory and keep following it. Archives created or renamed
+	 * into the directory tree later are added to the library and validator
+	 * once they are closed, which is when they no longer carry an in-progress
+	 * suffix and their size has been stable for <code>WATCH_QUIET_PERIOD</code>.
+	 * The same applies to files the first scan finds modified within the
+	 * quiet period. The tree is registered and scanned on the scanner thread.
+	 * @param dir directory to watch
+	 */
+	public void watch(File dir) {
+		if ( !dir.isDirectory() ) {
+			return;
+		}
+		watchRequests.add( dir );
+		add( dir );
+	}
+
+	/**
+	 * Register a directory tree with the watch service, starting the watch
+	 * thread on first use. Called on the scanner thread before the tree's
+	 * first scan, so files written meanwhile are not missed.
+	 * @param dir directory to watch
+	 */
+	private void registerWatch(File dir) {
+		try {
+			synchronized ( this ) {
+				if ( watchService == null ) {
+					watchService = FileSystems.getDefault().newWatchService();
+					Thread t = new Thread( new WatchThread(), "Scanner-Watch" );
+					t.setDaemon( true );
+					t.start();
+				}
+			}
+			watchedRoots.add( dir.toPath().toAbsolutePath() );
+			registerTree( dir.toPath() );
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns true if a file found while scanning is in a watched tree and
+	 * was modified within the quiet period, so it may still be written to.
+	 * @param path file path
+	 * @param lastModified file modification time
+	 * @return true if the watch thread should wait for the file to become stable
+	 */
+	private boolean isUnstable(Path path, long lastModified) {
+		if ( watchedRoots.isEmpty() || System.currentTimeMillis() - lastModified >= WATCH_QUIET_PERIOD ) {
+			return false;
+		}
+		path = path.toAbsolutePath();
+		for ( Path root : watchedRoots ) {
+			if ( path.startsWith( root ) ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void registerTree(Path dir) throws IOException {
+		Files.walkFileTree( dir, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult preVisitDirectory(Path subDir, BasicFileAttributes attrs) throws IOException {
+				subDir.register( watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY );
+				return FileVisitResult.CONTINUE;
+			}
+			@Override
+			public FileVisitResult visitFileFailed(Path file, IOException exc) {
+				return FileVisitResult.CONTINUE;
+			}
+		} );
+	}
+
+	static class PendingFile {
+		long size;
+		long lastChange;
+	}
+
+	/**
+	 * Collects watch events and debounces them into <code>pendingFiles</code>.
+	 * Pending files are released to the walker pool once they are stable.
+	 */
+	class WatchThread implements Runnable {
+
+		@Override
+		public void run() {
+			WatchKey key;
+			Path dir;
+			Path path;
+			while ( !exit ) {
+				try {
+					key = watchService.poll( WATCH_POLL_INTERVAL, TimeUnit.MILLISECONDS );
+				}
+				catch (InterruptedException e) {
+					continue;
+				}
+				catch (ClosedWatchServiceException e) {
+					break;
+				}
+				if ( key != null ) {
+					dir = (Path)key.watchable();
+					for ( WatchEvent<?> event : key.pollEvents() ) {
+						if ( event.kind() == StandardWatchEventKinds.OVERFLOW ) {
+							continue;
 						}
-						*/
-						switch (fileIdent.streamId) {
-						case FileIdent.FILEID_GZIP:
-						case FileIdent.FILEID_ARC:
-						case FileIdent.FILEID_ARC_GZ:
-						case FileIdent.FILEID_WARC:
-						case FileIdent.FILEID_WARC_GZ:
-							archiveFile = new ArchiveFileImpl();
-							archiveFile.file = files[ i ];
-							archiveFile.path = files[ i ].getParent();
-							archiveFile.filename = files[ i ].getName();
-							archiveFile.fileSize = files[ i ].length();
-							Desktop.archiveLibraryFrame.addFile( archiveFile );
-							Desktop.validatorThread.add( archiveFile );
-							break;
-						default:
-							break;
+						path = dir.resolve( (Path)event.context() );
+						if ( Files.isDirectory( path ) ) {
+							if ( event.kind() == StandardWatchEventKinds.ENTRY_CREATE ) {
+								try {
+									registerTree( path );
+								}
+								catch (IOException e) {
+									e.printStackTrace();
+								}
+								add( path.toFile() );
+							}
 						}
-					} else {
-						switch (fileIdent.filenameId) {
-						case FileIdent.FILEID_GZIP:
-						case FileIdent.FILEID_ARC:
-						case FileIdent.FILEID_ARC_GZ:
-						case FileIdent.FILEID_WARC:
-						case FileIdent.FILEID_WARC_GZ:
-							break;
-						default:
-							break;
+						else if ( !isInProgress( path.getFileName().toString() ) ) {
+							touch( path );
 						}
 					}
+					key.reset();
+				}
+				while ( (path = unstableFiles.poll()) != null ) {
+					touch( path );
 				}
+				releaseStable();
 			}
 		}
-		else if ( file.isFile() ) {
-			fileIdent = FileIdent.ident(file);
-			if (file.length() > 0) {
-				// debug
-				//System.out.println(fileIdent.filenameId + " " + fileIdent.streamId + " " + srcFile.getName());
-				/*
-				if (fileIdent.filenameId != fileIdent.streamId) {
-				}
-				*/
-				switch (fileIdent.streamId) {
-				case FileIdent.FILEID_GZIP:
-				case FileIdent.FILEID_ARC:
-				case FileIdent.FILEID_ARC_GZ:
-				case FileIdent.FILEID_WARC:
-				case FileIdent.FILEID_WARC_GZ:
-					archiveFile = new ArchiveFileImpl();
-					archiveFile.file = file;
-					archiveFile.path = file.getParent();
-					archiveFile.filename = file.getName();
-					archiveFile.fileSize = file.length();
-					Desktop.archiveLibraryFrame.addFile( archiveFile );
-					Desktop.validatorThread.add( archiveFile );
-					break;
-				default:
-					break;
+
+		private void touch(Path path) {
+			PendingFile pending = pendingFiles.get( path );
+			if ( pending == null ) {
+				pending = new PendingFile();
+				pendingFiles.put( path, pending );
+			}
+			pending.size = path.toFile().length();
+			pending.lastChange = System.currentTimeMillis();
+		}
+
+		private void releaseStable() {
+			long now = System.currentTimeMillis();
+			Iterator<Map.Entry<Path, PendingFile>> iter = pendingFiles.entrySet().iterator();
+			Map.Entry<Path, PendingFile> mapEntry;
+			PendingFile pending;
+			File file;
+			long size;
+			while ( iter.hasNext() ) {
+				mapEntry = iter.next();
+				pending = mapEntry.getValue();
+				if ( now >= pending.lastChange + WATCH_QUIET_PERIOD ) {
+					file = mapEntry.getKey().toFile();
+					size = file.length();
+					if ( !file.isFile() ) {
+						iter.remove();
+					}
+					else if ( size != pending.size ) {
+						pending.size = size;
+						pending.lastChange = now;
+					}
+					else {
+						iter.remove();
+						releaseFile( file, size, file.lastModified() );
+					}
 				}
-			} else {
-				switch (fileIdent.filenameId) {
-				case FileIdent.FILEID_GZIP:
-				case FileIdent.FILEID_ARC:
-				case FileIdent.FILEID_ARC_GZ:
-				case FileIdent.FILEID_WARC:
-				case FileIdent.FILEID_WARC_GZ:
-					break;
-				default:
-					break;
+			}
+		}
+
+		private void releaseFile(final File file, final long size, final long lastModified) {
+			getWalkerExecutor().execute( new Runnable() {
+				@Override
+				public void run() {
+					identFile( file, size, lastModified );
 				}
+			} );
+		}
+
+	}
+
+	/**
+	 * Walks one directory through a <code>DirectoryStream</code>, forking a
+	 * new task per sub directory and per batch of regular files. Entries are
+	 * streamed so no directory listing is ever materialized as a whole.
+	 * In virtual thread mode tasks are forked to virtual threads instead of
+	 * the work-stealing pool.
+	 */
+	class DirectoryTask extends RecursiveAction {
+
+		private static final long serialVersionUID = -2496412376410379135L;
+
+		Path dir;
+
+		DirectoryTask(Path dir) {
+			this.dir = dir;
+		}
+
+		@Override
+		protected void compute() {
+			List<Future<?>> pending = new ArrayList<Future<?>>();
+			List<Path> batch = new ArrayList<Path>( identBatchSize );
+			List<BasicFileAttributes> batchAttrs = new ArrayList<BasicFileAttributes>( identBatchSize );
+			BasicFileAttributes attrs;
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream( dir )) {
+				for (Path path : stream) {
+					if ( exit ) {
+						break;
+					}
+					try {
+						attrs = Files.readAttributes( path, BasicFileAttributes.class );
+					}
+					catch (IOException e) {
+						continue;
+					}
+					if ( attrs.isDirectory() ) {
+						pending.add( fork( new DirectoryTask( path ) ) );
+					}
+					else if ( attrs.isRegularFile() ) {
+						batch.add( path );
+						batchAttrs.add( attrs );
+						if ( batch.size() == identBatchSize ) {
+							pending.add( fork( new IdentTask( batch, batchAttrs ) ) );
+							batch = new ArrayList<Path>( identBatchSize );
+							batchAttrs = new ArrayList<BasicFileAttributes>( identBatchSize );
+						}
+					}
+					if ( pending.size() >= MAX_PENDING_TASKS ) {
+						joinOldest( pending, MAX_PENDING_TASKS / 2 );
+					}
+				}
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+			if ( !batch.isEmpty() ) {
+				new IdentTask( batch, batchAttrs ).compute();
+			}
+			joinOldest( pending, pending.size() );
+		}
+
+		private Future<?> fork(final RecursiveAction task) {
+			if ( virtualExecutor == null ) {
+				return task.fork();
+			}
+			return virtualExecutor.submit( new Runnable() {
+				@Override
+				public void run() {
+					task.invoke();
+				}
+			} );
+		}
+
+		private void joinOldest(List<Future<?>> pending, int count) {
+			for ( int i=0; i<count; ++i ) {
+				try {
+					pending.get( i ).get();
+				}
+				catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+				}
+			}
+			pending.subList( 0, count ).clear();
+		}
+
+	}
+
+	/**
+	 * Identifies a batch of regular files found by a <code>DirectoryTask</code>.
+	 */
+	class IdentTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 5870256734227405766L;
+
+		List<Path> paths;
+
+		List<BasicFileAttributes> attrs;
+
+		IdentTask(List<Path> paths, List<BasicFileAttributes> attrs) {
+			this.paths = paths;
+			this.attrs = attrs;
+		}
+
+		@Override
+		protected void compute() {
+			BasicFileAttributes fileAttrs;
+			Path path;
+			long lastModified;
+			for ( int i=0; i<paths.size() && !exit; ++i ) {
+				path = paths.get( i );
+				fileAttrs = attrs.get( i );
+				lastModified = fileAttrs.lastModifiedTime().toMillis();
+				if ( isUnstable( path, lastModified ) ) {
+					if ( !isInProgress( path.getFileName().toString() ) ) {
+						unstableFiles.add( path );
+					}
+					continue;
+				}
+				identFile( path.toFile(), fileAttrs.size(), lastModified );
 			}
 		}
+
 	}
 
 }
@@ -0,0 +1,105 @@
+package org.jwat.tools.gui;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Properties;
+
+/**
+ * Locates the per-user directory used to persist library state between sessions.
+ * Defaults to <code>~/.jwattools-gui</code>, can be overridden with the
+ * <code>jwattools.gui.home</code> system property.
+ * Tuning options are read from <code>settings.properties</code> in that
+ * directory, a system property with the same name takes precedence.
+ */
+public class Settings {
+
+	public static final String HOME_PROPERTY = "jwattools.gui.home";
+
+	protected static File settingsDir;
+
+	protected static Properties properties;
+
+	protected Settings() {
+	}
+
+	public static synchronized File getSettingsDir() {
+		if ( settingsDir == null ) {
+			String home = System.getProperty( HOME_PROPERTY );
+			if ( home != null && home.length() > 0 ) {
+				settingsDir = new File( home );
+			}
+			else {
+				settingsDir = new File( System.getProperty( "user.home" ), ".jwattools-gui" );
+			}
+			if ( !settingsDir.exists() ) {
+				settingsDir.mkdirs();
+			}
+		}
+		return settingsDir;
+	}
+
+	public static synchronized String getProperty(String name, String defaultValue) {
+		String value = System.getProperty( name );
+		if ( value == null ) {
+			if ( properties == null ) {
+				properties = new Properties();
+				File file = new File( getSettingsDir(), "settings.properties" );
+				if ( file.exists() ) {
+					InputStream in = null;
+					try {
+						in = new FileInputStream( file );
+						properties.load( in );
+					}
+					catch (IOException e) {
+						e.printStackTrace();
+					}
+					finally {
+						if ( in != null ) {
+							try {
+								in.close();
+							}
+							catch (IOException e) {
+							}
+						}
+					}
+				}
+			}
+			value = properties.getProperty( name );
+		}
+		return value != null ? value.trim() : defaultValue;
+	}
+
+	public static boolean getBoolean(String name, boolean defaultValue) {
+		String value = getProperty( name, null );
+		return value != null ? Boolean.parseBoolean( value ) : defaultValue;
+	}
+
+	public static int getInt(String name, int defaultValue) {
+		String value = getProperty( name, null );
+		if ( value != null ) {
+			try {
+				return Integer.parseInt( value );
+			}
+			catch (NumberFormatException e) {
+				System.err.println( "Invalid integer setting " + name + "=" + value );
+			}
+		}
+		return defaultValue;
+	}
+
+	public static long getLong(String name, long defaultValue) {
+		String value = getProperty( name, null );
+		if ( value != null ) {
+			try {
+				return Long.parseLong( value );
+			}
+			catch (NumberFormatException e) {
+				System.err.println( "Invalid long setting " + name + "=" + value );
+			}
+		}
+		return defaultValue;
+	}
+
+}
@@ -0,0 +1,454 @@
+package org.jwat.tools.gui;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jwat.common.ContentType;
+import org.jwat.tools.gui.explorer.ArchiveEntry;
+import org.jwat.tools.gui.explorer.ArchiveIndex;
+
+/**
+ * Record index of an archive persisted in a compact binary file, so opening
+ * an archive a second time does not parse it again. It holds the offset,
+ * compressed flag, length, date, URI, content type and error and warning
+ * counts of each record, but not the diagnostics themselves. It is only
+ * used while the archive's size and modification time are unchanged.
+ *
+ * <code>jwattools.index.location</code> decides where it is kept:
+ * <code>cache</code> (default) in the <code>index</code> directory of the
+ * settings directory, <code>archive</code> next to the archive as
+ * <code>&lt;archive&gt;.jwatidx</code>, falling back to the cache directory
+ * if the archive's directory is not writable, or <code>none</code>.
+ *
+ * Index files are read into memory in one go, so they are never held open
+ * or mapped and can be replaced at any time. The cache directory is pruned
+ * of indexes of archives which are gone or changed, and then of the least
+ * recently used indexes above <code>jwattools.index.cache.max</code> MB.
+ */
+public class SidecarIndex {
+
+	/** Sidecar index file magic, "JWRI". */
+	protected static final int MAGIC = 0x4a575249;
+
+	protected static final int VERSION = 2;
+
+	public static final String EXTENSION = ".jwatidx";
+
+	public static final String LOCATION = Settings.getProperty( "jwattools.index.location", "cache" );
+
+	/** Size of the cache directory above which the least recently used indexes are deleted. */
+	public static final long CACHE_MAX_SIZE = Settings.getLong( "jwattools.index.cache.max", 1024 ) * 1024 * 1024;
+
+	/** Temporary files older than this were left behind by an interrupted save. */
+	protected static final long TMP_MAX_AGE = 60 * 60 * 1000L;
+
+	/** Bytes written to the cache directory since it was last pruned. */
+	protected static long cacheWritten = 0;
+
+	protected static boolean bPruning = false;
+
+	protected static boolean bPruned = false;
+
+	protected static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	protected static final int FLAG_COMPRESSED = 1;
+
+	protected static final long NO_DATE = ArchiveIndex.NO_DATE;
+
+	protected SidecarIndex() {
+	}
+
+	public static boolean isEnabled() {
+		return !"none".equals( LOCATION );
+	}
+
+	/**
+	 * Returns the sidecar index file in the cache directory.
+	 * The absolute path is hashed into the name to keep archives with the
+	 * same name apart, and stored in the file to rule out collisions.
+	 * @param file archive file
+	 * @return sidecar index file
+	 */
+	protected static File getCacheFile(File file) {
+		String path = file.getAbsolutePath();
+		long hash = 1125899906842597L;
+		for ( int i=0; i<path.length(); ++i ) {
+			hash = 31 * hash + path.charAt( i );
+		}
+		return new File( getCacheDir(), file.getName() + "-" + Long.toHexString( hash ) + EXTENSION );
+	}
+
+	protected static File getCacheDir() {
+		return new File( Settings.getSettingsDir(), "index" );
+	}
+
+	protected static File getArchiveFile(File file) {
+		return new File( file.getAbsolutePath() + EXTENSION );
+	}
+
+	/**
+	 * Load the sidecar index of an archive, if there is one matching the
+	 * archive's current size and modification time.
+	 * @param file archive file
+	 * @return record index or null if there is no usable sidecar index
+	 */
+	public static ArchiveIndex load(File file) {
+		if ( !isEnabled() ) {
+			return null;
+		}
+		long fileSize = file.length();
+		long lastModified = file.lastModified();
+		ArchiveIndex entries = null;
+		if ( "archive".equals( LOCATION ) ) {
+			entries = load( getArchiveFile( file ), file, fileSize, lastModified );
+		}
+		if ( entries == null ) {
+			File indexFile = getCacheFile( file );
+			entries = load( indexFile, file, fileSize, lastModified );
+			if ( entries != null ) {
+				// Pruning deletes the least recently used indexes first.
+				indexFile.setLastModified( System.currentTimeMillis() );
+			}
+		}
+		return entries;
+	}
+
+	protected static ArchiveIndex load(File indexFile, File file, long fileSize, long lastModified) {
+		if ( !indexFile.isFile() ) {
+			return null;
+		}
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile( indexFile, "r" );
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			if ( size > Integer.MAX_VALUE ) {
+				return null;
+			}
+			ByteBuffer buffer = ByteBuffer.allocate( (int)size );
+			while ( buffer.hasRemaining() && channel.read( buffer ) != -1 ) {
+			}
+			buffer.flip();
+			raf.close();
+			raf = null;
+			if ( buffer.getInt() != MAGIC || buffer.getInt() != VERSION ) {
+				return null;
+			}
+			if ( buffer.getLong() != fileSize || buffer.getLong() != lastModified
+					|| !file.getAbsolutePath().equals( getString( buffer ) ) ) {
+				return null;
+			}
+			boolean bDigestsVerified = buffer.get() != 0;
+			int count = buffer.getInt();
+			ContentType[] contentTypes = new ContentType[ buffer.getInt() ];
+			for ( int i=0; i<contentTypes.length; ++i ) {
+				contentTypes[ i ] = ContentType.parseContentType( getString( buffer ) );
+			}
+			ArchiveIndex entries = new ArchiveIndex( count );
+			entries.setDigestsVerified( bDigestsVerified );
+			// The index copies the values, so one entry does for all records.
+			ArchiveEntry entry = new ArchiveEntry();
+			long date;
+			int contentType;
+			for ( int i=0; i<count; ++i ) {
+				entry.offset = buffer.getLong();
+				entry.bCompressed = (buffer.get() & FLAG_COMPRESSED) != 0;
+				entry.contentLength = buffer.getLong();
+				date = buffer.getLong();
+				entry.date = (date != NO_DATE) ? new Date( date ) : null;
+				contentType = buffer.getInt();
+				entry.contentType = (contentType >= 0) ? contentTypes[ contentType ] : null;
+				entry.errors = buffer.getInt();
+				entry.warnings = buffer.getInt();
+				entry.uri = getString( buffer );
+				entries.add( entry );
+			}
+			entries.trimToSize();
+			return entries;
+		}
+		catch (BufferUnderflowException e) {
+			System.err.println( "Ignoring truncated sidecar index: " + indexFile.getPath() );
+			return null;
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+		finally {
+			if ( raf != null ) {
+				try {
+					raf.close();
+				}
+				catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write the sidecar index of an archive, replacing any earlier one.
+	 * The size and modification time must be read before indexing started,
+	 * so an archive which changed while it was indexed has a stale index.
+	 * @param file archive file
+	 * @param entries record index of the archive
+	 * @param fileSize size of the archive before it was indexed
+	 * @param lastModified modification time of the archive before it was indexed
+	 */
+	public static void save(File file, ArchiveIndex entries, long fileSize, long lastModified) {
+		if ( !isEnabled() || entries == null ) {
+			return;
+		}
+		File indexFile = null;
+		if ( "archive".equals( LOCATION ) ) {
+			File dir = file.getAbsoluteFile().getParentFile();
+			if ( dir != null && dir.canWrite() ) {
+				indexFile = getArchiveFile( file );
+			}
+		}
+		boolean bCache = (indexFile == null);
+		if ( bCache ) {
+			indexFile = getCacheFile( file );
+			indexFile.getParentFile().mkdirs();
+		}
+		File tmpFile = new File( indexFile.getPath() + ".tmp" );
+		DataOutputStream out = null;
+		try {
+			Map<String, Integer> contentTypeIds = new HashMap<String, Integer>();
+			List<String> contentTypes = new ArrayList<String>();
+			int count = entries.size();
+			ContentType contentType;
+			String value;
+			for ( int i=0; i<count; ++i ) {
+				contentType = entries.getContentType( i );
+				if ( contentType != null ) {
+					value = contentType.toString();
+					if ( !contentTypeIds.containsKey( value ) ) {
+						contentTypeIds.put( value, contentTypes.size() );
+						contentTypes.add( value );
+					}
+				}
+			}
+			out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmpFile ), 65536 ) );
+			out.writeInt( MAGIC );
+			out.writeInt( VERSION );
+			out.writeLong( fileSize );
+			out.writeLong( lastModified );
+			putString( out, file.getAbsolutePath() );
+			out.writeBoolean( entries.isDigestsVerified() );
+			out.writeInt( count );
+			out.writeInt( contentTypes.size() );
+			for ( String contentTypeStr : contentTypes ) {
+				putString( out, contentTypeStr );
+			}
+			for ( int i=0; i<count; ++i ) {
+				out.writeLong( entries.getOffset( i ) );
+				out.writeByte( entries.isCompressed( i ) ? FLAG_COMPRESSED : 0 );
+				out.writeLong( entries.getContentLength( i ) );
+				out.writeLong( entries.getDateMillis( i ) );
+				contentType = entries.getContentType( i );
+				out.writeInt( (contentType != null) ? contentTypeIds.get( contentType.toString() ) : -1 );
+				out.writeInt( entries.getErrors( i ) );
+				out.writeInt( entries.getWarnings( i ) );
+				putString( out, entries.getUri( i ) );
+			}
+			out.close();
+			out = null;
+			synchronized ( SidecarIndex.class ) {
+				if ( indexFile.exists() && !indexFile.delete() ) {
+					throw new IOException( "Unable to replace sidecar index: " + indexFile.getPath() );
+				}
+				if ( !tmpFile.renameTo( indexFile ) ) {
+					throw new IOException( "Unable to rename sidecar index: " + tmpFile.getPath() );
+				}
+			}
+			if ( bCache ) {
+				written( indexFile.length() );
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		finally {
+			if ( out != null ) {
+				try {
+					out.close();
+				}
+				catch (IOException e) {
+				}
+				tmpFile.delete();
+			}
+		}
+	}
+
+	/**
+	 * Count bytes written to the cache directory and prune it on a background
+	 * thread the first time and each time a tenth of its maximum size has been
+	 * written since.
+	 * @param bytes size of the index file written
+	 */
+	protected static void written(long bytes) {
+		synchronized ( SidecarIndex.class ) {
+			cacheWritten += bytes;
+			if ( bPruning || (bPruned && cacheWritten < CACHE_MAX_SIZE / 10) ) {
+				return;
+			}
+			bPruning = true;
+			cacheWritten = 0;
+		}
+		Thread thread = new Thread( new Runnable() {
+			@Override
+			public void run() {
+				try {
+					prune( getCacheDir(), CACHE_MAX_SIZE );
+				}
+				finally {
+					synchronized ( SidecarIndex.class ) {
+						bPruning = false;
+						bPruned = true;
+					}
+				}
+			}
+		}, "SidecarIndex prune" );
+		thread.setDaemon( true );
+		thread.start();
+	}
+
+	/**
+	 * Delete the indexes in the cache directory of archives which are gone
+	 * or have changed, temporary files left by interrupted saves and, while
+	 * the directory is larger than the maximum size, the least recently
+	 * used indexes.
+	 * @param dir cache directory
+	 * @param maxSize maximum size of the cache directory in bytes
+	 */
+	protected static void prune(File dir, long maxSize) {
+		File[] files = dir.listFiles();
+		if ( files == null ) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		List<File> kept = new ArrayList<File>();
+		long total = 0;
+		for ( File indexFile : files ) {
+			String name = indexFile.getName();
+			if ( name.endsWith( EXTENSION + ".tmp" ) ) {
+				if ( now - indexFile.lastModified() > TMP_MAX_AGE ) {
+					indexFile.delete();
+				}
+			}
+			else if ( name.endsWith( EXTENSION ) ) {
+				synchronized ( SidecarIndex.class ) {
+					if ( isStale( indexFile ) ) {
+						indexFile.delete();
+						continue;
+					}
+				}
+				kept.add( indexFile );
+				total += indexFile.length();
+			}
+		}
+		if ( total <= maxSize ) {
+			return;
+		}
+		final Map<File, Long> lastUsed = new HashMap<File, Long>();
+		for ( File indexFile : kept ) {
+			lastUsed.put( indexFile, indexFile.lastModified() );
+		}
+		File[] sorted = kept.toArray( new File[ kept.size() ] );
+		Arrays.sort( sorted, new Comparator<File>() {
+			@Override
+			public int compare(File f1, File f2) {
+				return Long.compare( lastUsed.get( f1 ), lastUsed.get( f2 ) );
+			}
+		} );
+		for ( int i=0; i<sorted.length && total > maxSize; ++i ) {
+			long length = sorted[ i ].length();
+			if ( sorted[ i ].delete() ) {
+				total -= length;
+			}
+		}
+	}
+
+	/**
+	 * Returns true if an index file is unreadable or its archive is gone or
+	 * no longer has the size and modification time it was indexed with.
+	 * @param indexFile sidecar index file
+	 * @return true if the index can never be used again
+	 */
+	protected static boolean isStale(File indexFile) {
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream( new BufferedInputStream( new FileInputStream( indexFile ), 4096 ) );
+			if ( in.readInt() != MAGIC || in.readInt() != VERSION ) {
+				return true;
+			}
+			long fileSize = in.readLong();
+			long lastModified = in.readLong();
+			int length = in.readInt();
+			if ( length < 0 || length > 65536 ) {
+				return true;
+			}
+			byte[] bytes = new byte[ length ];
+			in.readFully( bytes );
+			File file = new File( new String( bytes, UTF8 ) );
+			return !file.isFile() || file.length() != fileSize || file.lastModified() != lastModified;
+		}
+		catch (IOException e) {
+			return true;
+		}
+		finally {
+			if ( in != null ) {
+				try {
+					in.close();
+				}
+				catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write a string as its UTF-8 length and bytes, -1 for null.
+	 */
+	protected static void putString(DataOutputStream out, String value) throws IOException {
+		if ( value == null ) {
+			out.writeInt( -1 );
+			return;
+		}
+		byte[] bytes = value.getBytes( UTF8 );
+		out.writeInt( bytes.length );
+		out.write( bytes );
+	}
+
+	protected static String getString(ByteBuffer buffer) {
+		int length = buffer.getInt();
+		if ( length < 0 ) {
+			return null;
+		}
+		if ( length > buffer.remaining() ) {
+			throw new BufferUnderflowException();
+		}
+		byte[] bytes = new byte[ length ];
+		buffer.get( bytes );
+		return new String( bytes, UTF8 );
+	}
+
+}
@@ -0,0 +1,56 @@
+package org.jwat.tools.gui;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads of the scanner, validator and range validation pools.
+ * This Java 8 version always creates platform threads. The Java 21 version
+ * in <code>src/main/java21</code>, picked from the multi-release jar on a
+ * Java 21 runtime, creates virtual threads instead when
+ * <code>jwattools.threads.virtual</code> is set. Both must keep the same
+ * public methods.
+ */
+public class ThreadFactories {
+
+	protected ThreadFactories() {
+	}
+
+	/**
+	 * Returns true if pools run their tasks on virtual threads.
+	 * @return true in virtual thread mode
+	 */
+	public static boolean isVirtual() {
+		return false;
+	}
+
+	/**
+	 * Create a thread factory for a pool.
+	 * @param name thread name
+	 * @param bDaemon create daemon threads, virtual threads are always daemon threads
+	 * @return thread factory
+	 */
+	public static ThreadFactory newThreadFactory(final String name, final boolean bDaemon) {
+		return new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread( r, name );
+				t.setDaemon( bDaemon );
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Create an executor for blocking tasks, a fixed pool of platform threads
+	 * or a thread per task in virtual thread mode.
+	 * @param name thread name
+	 * @param threads number of platform threads
+	 * @return executor
+	 */
+	public static ExecutorService newTaskExecutor(String name, int threads) {
+		return Executors.newFixedThreadPool( threads, newThreadFactory( name, true ) );
+	}
+
+}
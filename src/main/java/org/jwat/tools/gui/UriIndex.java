@@ -0,0 +1,875 @@
+package org.jwat.tools.gui;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.jwat.tools.gui.explorer.ArchiveIndex;
+
+/**
+ * Persistent index of the URIs of all records in the library, answering
+ * which archive and offset hold a given URI, or URIs starting with a given
+ * prefix, without opening the archives.
+ *
+ * Every archive indexed or validated adds a segment file with its URIs,
+ * archive ids, offsets and dates sorted by URI. Segments are never changed;
+ * they are memory mapped and binary searched. Once there are more than
+ * <code>MAX_SEGMENTS</code> the smallest are merged into one on a background
+ * thread, dropping the records of archives which have changed since, and
+ * the archives themselves once none of their records are left. A manifest
+ * lists the archives and the live segments, so a segment which is not in
+ * it, left by a crash or a failed delete, is removed on load.
+ *
+ * The manifest is written on a background thread shortly after a change,
+ * once for any number of changes meanwhile, and by <code>closeInstance</code>.
+ * Merged segments are only deleted once a manifest without them is written.
+ * Archives added since the last write are added again the next time they
+ * are indexed.
+ *
+ * Kept in the <code>uri</code> directory of the settings directory, unless
+ * <code>jwattools.uri.index</code> is false. Segments are limited to 2 GB.
+ */
+public class UriIndex {
+
+	/** Manifest file magic, "JWUM". */
+	protected static final int MANIFEST_MAGIC = 0x4a57554d;
+
+	/** Segment file magic, "JWUS". */
+	protected static final int SEGMENT_MAGIC = 0x4a575553;
+
+	protected static final int VERSION = 2;
+
+	public static final boolean bEnabled = Settings.getBoolean( "jwattools.uri.index", true );
+
+	protected static final int MAX_SEGMENTS = 10;
+
+	/** Number of segments merged at a time. */
+	protected static final int MERGE_FACTOR = 4;
+
+	protected static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE - 65536;
+
+	protected static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	/** Time in milliseconds changes are collected before the manifest is written. */
+	protected static final long SAVE_DELAY = 2000;
+
+	protected static UriIndex instance;
+
+	/** Archive whose records are in the index. */
+	protected static class Archive {
+		protected final int id;
+		protected final String path;
+		protected final long fileSize;
+		protected final long lastModified;
+		/** False once the archive has changed and its records are dropped. */
+		protected boolean bLive = true;
+		/** Name of the segment holding the archive's records, all in one segment. */
+		protected String segment;
+		protected Archive(int id, String path, long fileSize, long lastModified, String segment) {
+			this.id = id;
+			this.path = path;
+			this.fileSize = fileSize;
+			this.lastModified = lastModified;
+			this.segment = segment;
+		}
+	}
+
+	/** Matching record. */
+	public static class Hit {
+		public String uri;
+		public File file;
+		public long offset;
+		/** Record date or null. */
+		public Date date;
+	}
+
+	protected File dir;
+
+	protected File manifestFile;
+
+	protected int nextArchiveId = 0;
+
+	protected int nextSegmentId = 0;
+
+	/** Archives by id. */
+	protected Map<Integer, Archive> archives = new HashMap<Integer, Archive>();
+
+	/** Live archives by absolute path. */
+	protected Map<String, Archive> archivesByPath = new HashMap<String, Archive>();
+
+	/** Live segments, oldest first. Replaced, never changed, so queries can use a snapshot. */
+	protected volatile List<Segment> segments = new ArrayList<Segment>();
+
+	protected boolean bMerging = false;
+
+	/** Changed since the manifest was last written. */
+	protected boolean bDirty = false;
+
+	protected boolean bSaveScheduled = false;
+
+	/** Merged segment files to delete once the manifest no longer lists them. */
+	protected List<File> obsoleteFiles = new ArrayList<File>();
+
+	/** Serializes manifest writes. */
+	protected final Object saveLock = new Object();
+
+	protected UriIndex(File dir) {
+		this.dir = dir;
+		this.manifestFile = new File( dir, "manifest.dat" );
+	}
+
+	/**
+	 * Returns the URI index in the settings directory, loading it the first time.
+	 * @return URI index or null if disabled
+	 */
+	public static synchronized UriIndex getInstance() {
+		if ( !bEnabled ) {
+			return null;
+		}
+		if ( instance == null ) {
+			instance = new UriIndex( new File( Settings.getSettingsDir(), "uri" ) );
+			instance.load();
+		}
+		return instance;
+	}
+
+	/**
+	 * Write pending changes of the URI index, if it was loaded.
+	 */
+	public static synchronized void closeInstance() {
+		if ( instance != null ) {
+			instance.save();
+		}
+	}
+
+	/**
+	 * Load the manifest and map its segments. Segment files not in the
+	 * manifest are deleted, as are archives whose segment is missing, so
+	 * they are added again. An unreadable manifest starts an empty index.
+	 */
+	protected synchronized void load() {
+		dir.mkdirs();
+		List<Segment> loaded = new ArrayList<Segment>();
+		Set<String> names = new HashSet<String>();
+		if ( manifestFile.isFile() ) {
+			DataInputStream in = null;
+			try {
+				in = new DataInputStream( new BufferedInputStream( new FileInputStream( manifestFile ), 65536 ) );
+				if ( in.readInt() != MANIFEST_MAGIC || in.readInt() != VERSION ) {
+					throw new IOException( "Invalid URI index manifest: " + manifestFile.getPath() );
+				}
+				nextArchiveId = in.readInt();
+				nextSegmentId = in.readInt();
+				int count = in.readInt();
+				Archive archive;
+				for ( int i=0; i<count; ++i ) {
+					archive = new Archive( in.readInt(), in.readUTF(), in.readLong(), in.readLong(), in.readUTF() );
+					archive.bLive = in.readBoolean();
+					archives.put( archive.id, archive );
+					if ( archive.bLive ) {
+						archivesByPath.put( archive.path, archive );
+					}
+				}
+				count = in.readInt();
+				for ( int i=0; i<count; ++i ) {
+					names.add( in.readUTF() );
+				}
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+				archives.clear();
+				archivesByPath.clear();
+				names.clear();
+			}
+			finally {
+				if ( in != null ) {
+					try {
+						in.close();
+					}
+					catch (IOException e) {
+					}
+				}
+			}
+		}
+		File[] files = dir.listFiles();
+		if ( files != null ) {
+			for ( File file : files ) {
+				if ( names.contains( file.getName() ) ) {
+					try {
+						loaded.add( Segment.open( file ) );
+					}
+					catch (IOException e) {
+						System.err.println( "Ignoring unreadable URI index segment: " + file.getPath() );
+					}
+				}
+				else if ( file.getName().startsWith( "seg-" ) ) {
+					file.delete();
+				}
+			}
+		}
+		segments = loaded;
+		Set<String> loadedNames = new HashSet<String>();
+		for ( Segment segment : loaded ) {
+			loadedNames.add( segment.file.getName() );
+		}
+		Iterator<Archive> iter = archives.values().iterator();
+		Archive archive;
+		while ( iter.hasNext() ) {
+			archive = iter.next();
+			if ( !loadedNames.contains( archive.segment ) ) {
+				iter.remove();
+				if ( archivesByPath.get( archive.path ) == archive ) {
+					archivesByPath.remove( archive.path );
+				}
+				bDirty = true;
+			}
+		}
+	}
+
+	/**
+	 * Write the manifest on a background thread after <code>SAVE_DELAY</code>,
+	 * unless that is pending already. Must be called while holding the lock.
+	 */
+	protected void scheduleSave() {
+		bDirty = true;
+		if ( bSaveScheduled ) {
+			return;
+		}
+		bSaveScheduled = true;
+		Thread thread = new Thread( new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep( SAVE_DELAY );
+				}
+				catch (InterruptedException e) {
+				}
+				save();
+			}
+		}, "UriIndex save" );
+		thread.setDaemon( true );
+		thread.start();
+	}
+
+	/**
+	 * Write the manifest, replacing the earlier one, if anything changed, and
+	 * then delete the segment files it no longer lists. The index is only
+	 * locked while the manifest's contents are copied.
+	 */
+	protected void save() {
+		synchronized ( saveLock ) {
+			List<Archive> savedArchives;
+			List<Segment> savedSegments;
+			List<File> deletable;
+			int savedNextArchiveId;
+			int savedNextSegmentId;
+			synchronized ( this ) {
+				bSaveScheduled = false;
+				if ( !bDirty ) {
+					return;
+				}
+				bDirty = false;
+				savedArchives = new ArrayList<Archive>( archives.size() );
+				Archive copy;
+				for ( Archive archive : archives.values() ) {
+					copy = new Archive( archive.id, archive.path, archive.fileSize, archive.lastModified, archive.segment );
+					copy.bLive = archive.bLive;
+					savedArchives.add( copy );
+				}
+				savedSegments = segments;
+				deletable = obsoleteFiles;
+				obsoleteFiles = new ArrayList<File>();
+				savedNextArchiveId = nextArchiveId;
+				savedNextSegmentId = nextSegmentId;
+			}
+			File tmpFile = new File( manifestFile.getPath() + ".tmp" );
+			DataOutputStream out = null;
+			try {
+				out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmpFile ), 65536 ) );
+				out.writeInt( MANIFEST_MAGIC );
+				out.writeInt( VERSION );
+				out.writeInt( savedNextArchiveId );
+				out.writeInt( savedNextSegmentId );
+				out.writeInt( savedArchives.size() );
+				for ( Archive archive : savedArchives ) {
+					out.writeInt( archive.id );
+					out.writeUTF( archive.path );
+					out.writeLong( archive.fileSize );
+					out.writeLong( archive.lastModified );
+					out.writeUTF( archive.segment );
+					out.writeBoolean( archive.bLive );
+				}
+				out.writeInt( savedSegments.size() );
+				for ( Segment segment : savedSegments ) {
+					out.writeUTF( segment.file.getName() );
+				}
+				out.close();
+				out = null;
+				if ( manifestFile.exists() && !manifestFile.delete() ) {
+					throw new IOException( "Unable to replace URI index manifest: " + manifestFile.getPath() );
+				}
+				if ( !tmpFile.renameTo( manifestFile ) ) {
+					throw new IOException( "Unable to rename URI index manifest: " + tmpFile.getPath() );
+				}
+				// Fails on platforms which do not delete mapped files, load() retries.
+				for ( File file : deletable ) {
+					file.delete();
+				}
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+				synchronized ( this ) {
+					obsoleteFiles.addAll( deletable );
+				}
+			}
+			finally {
+				if ( out != null ) {
+					try {
+						out.close();
+					}
+					catch (IOException e) {
+					}
+					tmpFile.delete();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add the URIs of an archive's records, unless the archive is in the
+	 * index already with the same size and modification time. Records of
+	 * an earlier version of the archive are dropped. The size and
+	 * modification time must be read before indexing started, so records
+	 * of an archive which changed while it was indexed are never current.
+	 * @param file archive file
+	 * @param entries complete record index of the archive
+	 * @param fileSize size of the archive before it was indexed
+	 * @param lastModified modification time of the archive before it was indexed
+	 */
+	public void add(File file, ArchiveIndex entries, long fileSize, long lastModified) {
+		String path = file.getAbsolutePath();
+		Archive archive;
+		File segmentFile;
+		synchronized ( this ) {
+			archive = archivesByPath.get( path );
+			if ( archive != null && archive.fileSize == fileSize && archive.lastModified == lastModified ) {
+				return;
+			}
+			segmentFile = new File( dir, "seg-" + (nextSegmentId++) + ".jwuri" );
+			archive = new Archive( nextArchiveId++, path, fileSize, lastModified, segmentFile.getName() );
+		}
+		int[] order = entries.sort( ArchiveIndex.FIELD_URI, true, entries.size() );
+		SegmentWriter writer = null;
+		Segment segment;
+		try {
+			writer = new SegmentWriter( segmentFile );
+			String uri;
+			for ( int i=0; i<order.length; ++i ) {
+				uri = entries.getUri( order[ i ] );
+				if ( uri != null ) {
+					writer.write( uri.getBytes( UTF8 ), archive.id, entries.getOffset( order[ i ] ), entries.getDateMillis( order[ i ] ) );
+				}
+			}
+			writer.close();
+			writer = null;
+			segment = Segment.open( segmentFile );
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			if ( writer != null ) {
+				writer.abort();
+			}
+			segmentFile.delete();
+			return;
+		}
+		synchronized ( this ) {
+			Archive previous = archivesByPath.put( path, archive );
+			if ( previous != null ) {
+				previous.bLive = false;
+			}
+			archives.put( archive.id, archive );
+			List<Segment> current = new ArrayList<Segment>( segments );
+			current.add( segment );
+			segments = current;
+			scheduleSave();
+		}
+		merge();
+	}
+
+	/**
+	 * Merge the smallest segments on a background thread while there are too
+	 * many, unless a merge is running already.
+	 */
+	protected void merge() {
+		final List<Segment> sources;
+		final Set<Integer> live;
+		final File mergedFile;
+		synchronized ( this ) {
+			if ( bMerging || segments.size() <= MAX_SEGMENTS ) {
+				return;
+			}
+			List<Segment> candidates = new ArrayList<Segment>( segments );
+			Collections.sort( candidates, new Comparator<Segment>() {
+				@Override
+				public int compare(Segment s1, Segment s2) {
+					return Long.compare( s1.file.length(), s2.file.length() );
+				}
+			} );
+			long size = 0;
+			int n = 0;
+			while ( n < candidates.size() && n < MERGE_FACTOR && size + candidates.get( n ).file.length() <= MAX_SEGMENT_SIZE ) {
+				size += candidates.get( n ).file.length();
+				++n;
+			}
+			if ( n < 2 ) {
+				return;
+			}
+			sources = new ArrayList<Segment>( candidates.subList( 0, n ) );
+			live = new HashSet<Integer>();
+			for ( Archive archive : archives.values() ) {
+				if ( archive.bLive ) {
+					live.add( archive.id );
+				}
+			}
+			mergedFile = new File( dir, "seg-" + (nextSegmentId++) + ".jwuri" );
+			bMerging = true;
+		}
+		Thread thread = new Thread( new Runnable() {
+			@Override
+			public void run() {
+				Segment merged = null;
+				try {
+					merged = merge( sources, live, mergedFile );
+				}
+				catch (IOException e) {
+					e.printStackTrace();
+					mergedFile.delete();
+				}
+				merged( sources, live, merged );
+			}
+		}, "UriIndex merge" );
+		thread.setDaemon( true );
+		thread.start();
+	}
+
+	/**
+	 * Replace the merged segments with the result and merge again if there
+	 * are still too many. Archives whose records were dropped by the merge
+	 * are removed, the others now have their records in the merged segment.
+	 * @param sources segments merged
+	 * @param live ids of the archives whose records were kept
+	 * @param merged merged segment or null if the merge failed
+	 */
+	protected void merged(List<Segment> sources, Set<Integer> live, Segment merged) {
+		synchronized ( this ) {
+			bMerging = false;
+			if ( merged == null ) {
+				return;
+			}
+			List<Segment> current = new ArrayList<Segment>( segments );
+			current.removeAll( sources );
+			current.add( merged );
+			segments = current;
+			Set<String> sourceNames = new HashSet<String>();
+			for ( Segment source : sources ) {
+				sourceNames.add( source.file.getName() );
+				obsoleteFiles.add( source.file );
+			}
+			Iterator<Archive> iter = archives.values().iterator();
+			Archive archive;
+			while ( iter.hasNext() ) {
+				archive = iter.next();
+				if ( sourceNames.contains( archive.segment ) ) {
+					if ( live.contains( archive.id ) ) {
+						archive.segment = merged.file.getName();
+					}
+					else {
+						iter.remove();
+					}
+				}
+			}
+			scheduleSave();
+		}
+		merge();
+	}
+
+	/**
+	 * Returns true while segments are being merged.
+	 */
+	public synchronized boolean isMerging() {
+		return bMerging;
+	}
+
+	/**
+	 * Merge sorted segments into one, keeping the records of live archives.
+	 */
+	protected static Segment merge(List<Segment> sources, Set<Integer> live, File mergedFile) throws IOException {
+		SegmentWriter writer = new SegmentWriter( mergedFile );
+		try {
+			int[] next = new int[ sources.size() ];
+			int best;
+			Segment segment;
+			while ( true ) {
+				best = -1;
+				for ( int s=0; s<sources.size(); ++s ) {
+					if ( next[ s ] < sources.get( s ).count && (best == -1
+							|| sources.get( s ).compareTo( next[ s ], sources.get( best ), next[ best ] ) < 0) ) {
+						best = s;
+					}
+				}
+				if ( best == -1 ) {
+					break;
+				}
+				segment = sources.get( best );
+				if ( live.contains( segment.getArchiveId( next[ best ] ) ) ) {
+					writer.write( segment, next[ best ] );
+				}
+				++next[ best ];
+			}
+			writer.close();
+		}
+		catch (IOException e) {
+			writer.abort();
+			throw e;
+		}
+		return Segment.open( mergedFile );
+	}
+
+	/**
+	 * Find the records with a URI, or with URIs starting with a prefix, in
+	 * archives which have not changed since they were added.
+	 * @param query URI or URI prefix
+	 * @param bPrefix match URIs starting with the query instead of equal to it
+	 * @param max maximum number of records returned
+	 * @return matching records ordered by URI, archive and offset
+	 */
+	public List<Hit> search(String query, boolean bPrefix, int max) {
+		byte[] key = query.getBytes( UTF8 );
+		List<Segment> current = segments;
+		Map<Integer, File> files = new HashMap<Integer, File>();
+		List<Hit> hits = new ArrayList<Hit>();
+		Set<String> seen = new HashSet<String>();
+		Segment segment;
+		int archiveId;
+		File file;
+		Hit hit;
+		long date;
+		for ( int s=current.size() - 1; s>=0; --s ) {
+			segment = current.get( s );
+			int count = 0;
+			for ( int i=segment.lowerBound( key ); i<segment.count && count < max && segment.matches( i, key, bPrefix ); ++i ) {
+				archiveId = segment.getArchiveId( i );
+				if ( !files.containsKey( archiveId ) ) {
+					files.put( archiveId, getFile( archiveId ) );
+				}
+				file = files.get( archiveId );
+				// Also skips a record merged twice, if a crash left both copies.
+				if ( file != null && seen.add( archiveId + ":" + segment.getOffset( i ) ) ) {
+					hit = new Hit();
+					hit.uri = segment.getUri( i );
+					hit.file = file;
+					hit.offset = segment.getOffset( i );
+					date = segment.getDate( i );
+					hit.date = (date != ArchiveIndex.NO_DATE) ? new Date( date ) : null;
+					hits.add( hit );
+					++count;
+				}
+			}
+		}
+		Collections.sort( hits, new Comparator<Hit>() {
+			@Override
+			public int compare(Hit h1, Hit h2) {
+				int c = h1.uri.compareTo( h2.uri );
+				if ( c == 0 ) {
+					c = h1.file.getPath().compareTo( h2.file.getPath() );
+				}
+				if ( c == 0 ) {
+					c = Long.compare( h1.offset, h2.offset );
+				}
+				return c;
+			}
+		} );
+		return (hits.size() > max) ? new ArrayList<Hit>( hits.subList( 0, max ) ) : hits;
+	}
+
+	/**
+	 * Returns the file of a live archive, if it has not changed since.
+	 */
+	protected synchronized File getFile(int archiveId) {
+		Archive archive = archives.get( archiveId );
+		if ( archive == null || !archive.bLive ) {
+			return null;
+		}
+		File file = new File( archive.path );
+		if ( file.length() != archive.fileSize || file.lastModified() != archive.lastModified ) {
+			return null;
+		}
+		return file;
+	}
+
+	public synchronized int getArchiveCount() {
+		return archivesByPath.size();
+	}
+
+	/**
+	 * Returns the number of archives in the manifest, including changed
+	 * archives whose records have not been merged away yet.
+	 */
+	public synchronized int getManifestArchiveCount() {
+		return archives.size();
+	}
+
+	public int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Memory mapped segment file: magic, version, the records, each as
+	 * URI length and UTF-8 bytes, archive id, offset and date, then the
+	 * position of each record and finally the record count and the
+	 * position of the positions table.
+	 */
+	protected static class Segment {
+
+		protected final File file;
+
+		protected final MappedByteBuffer buffer;
+
+		protected final int count;
+
+		protected final int table;
+
+		protected Segment(File file, MappedByteBuffer buffer, int count, int table) {
+			this.file = file;
+			this.buffer = buffer;
+			this.count = count;
+			this.table = table;
+		}
+
+		protected static Segment open(File file) throws IOException {
+			RandomAccessFile raf = new RandomAccessFile( file, "r" );
+			try {
+				FileChannel channel = raf.getChannel();
+				long size = channel.size();
+				if ( size < 16 || size > Integer.MAX_VALUE ) {
+					throw new IOException( "Invalid URI index segment size: " + file.getPath() );
+				}
+				MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, size );
+				if ( buffer.getInt( 0 ) != SEGMENT_MAGIC || buffer.getInt( 4 ) != VERSION ) {
+					throw new IOException( "Invalid URI index segment: " + file.getPath() );
+				}
+				int count = buffer.getInt( (int)size - 8 );
+				int table = buffer.getInt( (int)size - 4 );
+				if ( count < 0 || table < 8 || (long)table + 4L * count > size - 8 ) {
+					throw new IOException( "Invalid URI index segment: " + file.getPath() );
+				}
+				return new Segment( file, buffer, count, table );
+			}
+			catch (BufferUnderflowException e) {
+				throw new IOException( "Truncated URI index segment: " + file.getPath() );
+			}
+			finally {
+				raf.close();
+			}
+		}
+
+		protected int position(int i) {
+			return buffer.getInt( table + 4 * i );
+		}
+
+		protected int getUriLength(int i) {
+			return buffer.getInt( position( i ) );
+		}
+
+		protected String getUri(int i) {
+			int pos = position( i );
+			byte[] bytes = new byte[ buffer.getInt( pos ) ];
+			for ( int j=0; j<bytes.length; ++j ) {
+				bytes[ j ] = buffer.get( pos + 4 + j );
+			}
+			return new String( bytes, UTF8 );
+		}
+
+		protected int getArchiveId(int i) {
+			int pos = position( i );
+			return buffer.getInt( pos + 4 + buffer.getInt( pos ) );
+		}
+
+		protected long getOffset(int i) {
+			int pos = position( i );
+			return buffer.getLong( pos + 8 + buffer.getInt( pos ) );
+		}
+
+		protected long getDate(int i) {
+			int pos = position( i );
+			return buffer.getLong( pos + 16 + buffer.getInt( pos ) );
+		}
+
+		/**
+		 * Compare the URI of a record with a key, as unsigned bytes.
+		 * @param bPrefix only compare as many bytes as the key has
+		 */
+		protected int compareUri(int i, byte[] key, boolean bPrefix) {
+			int pos = position( i );
+			int length = buffer.getInt( pos );
+			pos += 4;
+			int n = Math.min( length, key.length );
+			int c;
+			for ( int j=0; j<n; ++j ) {
+				c = (buffer.get( pos + j ) & 255) - (key[ j ] & 255);
+				if ( c != 0 ) {
+					return c;
+				}
+			}
+			if ( bPrefix && length >= key.length ) {
+				return 0;
+			}
+			return length - key.length;
+		}
+
+		/**
+		 * Compare two records by URI, archive id and offset.
+		 */
+		protected int compareTo(int i, Segment other, int j) {
+			int pos1 = position( i );
+			int pos2 = other.position( j );
+			int length1 = buffer.getInt( pos1 );
+			int length2 = other.buffer.getInt( pos2 );
+			int n = Math.min( length1, length2 );
+			int c;
+			for ( int k=0; k<n; ++k ) {
+				c = (buffer.get( pos1 + 4 + k ) & 255) - (other.buffer.get( pos2 + 4 + k ) & 255);
+				if ( c != 0 ) {
+					return c;
+				}
+			}
+			if ( length1 != length2 ) {
+				return length1 - length2;
+			}
+			c = Integer.compare( getArchiveId( i ), other.getArchiveId( j ) );
+			if ( c == 0 ) {
+				c = Long.compare( getOffset( i ), other.getOffset( j ) );
+			}
+			return c;
+		}
+
+		/**
+		 * Returns the first record whose URI is not less than the key.
+		 */
+		protected int lowerBound(byte[] key) {
+			int lo = 0;
+			int hi = count;
+			int mid;
+			while ( lo < hi ) {
+				mid = (lo + hi) >>> 1;
+				if ( compareUri( mid, key, false ) < 0 ) {
+					lo = mid + 1;
+				}
+				else {
+					hi = mid;
+				}
+			}
+			return lo;
+		}
+
+		protected boolean matches(int i, byte[] key, boolean bPrefix) {
+			return compareUri( i, key, bPrefix ) == 0;
+		}
+
+	}
+
+	/**
+	 * Writes a segment file from records given in sorted order.
+	 */
+	protected static class SegmentWriter {
+
+		protected final File file;
+
+		protected final DataOutputStream out;
+
+		protected int[] positions = new int[ 1024 ];
+
+		protected int count = 0;
+
+		protected SegmentWriter(File file) throws IOException {
+			this.file = file;
+			out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( file ), 65536 ) );
+			out.writeInt( SEGMENT_MAGIC );
+			out.writeInt( VERSION );
+		}
+
+		protected void write(byte[] uri, int archiveId, long offset, long date) throws IOException {
+			addPosition();
+			out.writeInt( uri.length );
+			out.write( uri );
+			out.writeInt( archiveId );
+			out.writeLong( offset );
+			out.writeLong( date );
+		}
+
+		/**
+		 * Copy a record from another segment.
+		 */
+		protected void write(Segment segment, int i) throws IOException {
+			addPosition();
+			int pos = segment.position( i );
+			int length = segment.buffer.getInt( pos ) + 24;
+			for ( int j=0; j<length; ++j ) {
+				out.write( segment.buffer.get( pos + j ) );
+			}
+		}
+
+		protected void addPosition() throws IOException {
+			if ( out.size() > MAX_SEGMENT_SIZE ) {
+				throw new IOException( "URI index segment too large: " + file.getPath() );
+			}
+			if ( count == positions.length ) {
+				int[] tmp = new int[ count * 2 ];
+				System.arraycopy( positions, 0, tmp, 0, count );
+				positions = tmp;
+			}
+			positions[ count++ ] = out.size();
+		}
+
+		protected void close() throws IOException {
+			int table = out.size();
+			for ( int i=0; i<count; ++i ) {
+				out.writeInt( positions[ i ] );
+			}
+			out.writeInt( count );
+			out.writeInt( table );
+			out.close();
+		}
+
+		protected void abort() {
+			try {
+				out.close();
+			}
+			catch (IOException e) {
+			}
+			file.delete();
+		}
+
+	}
+
+}
@@ -0,0 +1,103 @@
+package org.jwat.tools.gui;
+
+import java.io.IOException;
+
+import org.jwat.arc.ArcRecordBase;
+import org.jwat.gzip.GzipEntry;
+import org.jwat.tools.gui.library.ArchiveFileBase;
+import org.jwat.tools.tasks.test.TestFileResult;
+import org.jwat.warc.WarcRecord;
+
+/**
+ * Validates an archive and builds its record index in the same pass, so an
+ * archive which is both validated and opened is only read and inflated once.
+ * Progress is reported to the archive file like <code>TestFile2</code> does.
+ *
+ * Replaces <code>TestFile2</code> unless <code>jwattools.validator.index</code>
+ * is false. Record digests are verified like <code>TestFile2</code> does, so
+ * the counters match, on the digest pipeline if <code>jwattools.digest.verify</code>
+ * is on and by the parser otherwise.
+ */
+public class ValidateIndexer extends Indexer {
+
+	public static final boolean bEnabled = Settings.getBoolean("jwattools.validator.index", true);
+
+	protected ArchiveFileBase archiveFile;
+
+	protected TestFileResult result = new TestFileResult();
+
+	/** Last gzip entry, counted once the parser has closed it. */
+	protected GzipEntry gzipEntry;
+
+	public ValidateIndexer(ArchiveFileBase archiveFile) {
+		this.archiveFile = archiveFile;
+		bDigestsEnabled = true;
+	}
+
+	/**
+	 * Validate and index the archive file.
+	 * @return validation result, the index is available from <code>getEntries()</code>
+	 */
+	public TestFileResult validate() {
+		index(archiveFile.file);
+		countGzipEntry();
+		// Recount the record diagnostics, digest mismatches are only added once parsing is done.
+		int errors = 0;
+		int warnings = 0;
+		for (int i=0; i<entries.size(); ++i) {
+			errors += entries.getErrors(i);
+			warnings += entries.getWarnings(i);
+		}
+		if (result.warcRecords > 0) {
+			result.warcErrors = errors;
+			result.warcWarnings = warnings;
+		} else {
+			result.arcErrors = errors;
+			result.arcWarnings = warnings;
+		}
+		archiveFile.finalUpdate(result, consumed);
+		return result;
+	}
+
+	protected void countGzipEntry() {
+		if (gzipEntry != null) {
+			result.gzipErrors += gzipEntry.diagnostics.getErrors().size();
+			result.gzipWarnings += gzipEntry.diagnostics.getWarnings().size();
+			gzipEntry = null;
+		}
+	}
+
+	@Override
+	public void apcUpdateConsumed(long consumed) {
+		archiveFile.update(result, consumed);
+	}
+
+	@Override
+	public void apcGzipEntryStart(GzipEntry gzipEntry, long startOffset) {
+		countGzipEntry();
+		this.gzipEntry = gzipEntry;
+		++result.gzipEntries;
+	}
+
+	@Override
+	public void apcArcRecordStart(ArcRecordBase arcRecord, long startOffset, boolean compressed) throws IOException {
+		super.apcArcRecordStart(arcRecord, startOffset, compressed);
+		++result.arcRecords;
+		result.arcErrors += arcRecord.diagnostics.getErrors().size();
+		result.arcWarnings += arcRecord.diagnostics.getWarnings().size();
+	}
+
+	@Override
+	public void apcWarcRecordStart(WarcRecord warcRecord, long startOffset, boolean compressed) throws IOException {
+		super.apcWarcRecordStart(warcRecord, startOffset, compressed);
+		++result.warcRecords;
+		result.warcErrors += warcRecord.diagnostics.getErrors().size();
+		result.warcWarnings += warcRecord.diagnostics.getWarnings().size();
+	}
+
+	@Override
+	public void apcRuntimeError(Throwable t, long offset, long consumed) {
+		++result.runtimeErrors;
+	}
+
+}
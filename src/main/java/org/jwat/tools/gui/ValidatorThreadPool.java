@@ -1,32 +1,618 @@
 package org.jwat.tools.gui;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Future;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import org.jwat.tools.gui.cluster.ClusterCoordinator;
+import org.jwat.tools.gui.library.ArchiveCatalog;
 import org.jwat.tools.gui.library.ArchiveFileBase;
+import org.jwat.tools.gui.library.ContentFingerprint;
+import org.jwat.tools.gui.library.ValidationJob;
+import org.jwat.tools.gui.library.ValidationListener;
 import org.jwat.tools.tasks.test.TestFile;
 
-public class ValidatorThreadPool {
+/**
+ * Validation thread pool which sizes itself from the number of available
+ * processors and then adapts to the measured throughput. While all workers
+ * are busy and there is queued work, a worker is added as long as the
+ * aggregate number of bytes validated per second keeps rising. Once it
+ * stops rising, the pool shrinks back and holds before probing again.
+ *
+ * Each queued archive gets a <code>ValidationJob</code> handle which can be
+ * cancelled, paused, resumed and re-prioritised while queued or running.
+ * With a cluster coordinator these requests are passed on to it, and it
+ * carries them out on its own thread.
+ *
+ * Jobs first wait in the queue of the <code>IoDevice</code> their archive
+ * lives on and are only handed to the executor while the device has a free
+ * reader slot. A busy disk then holds back its own jobs instead of all the
+ * validator threads, and archives on other devices are read in parallel.
+ * Jobs are also held back while the <code>MemoryGovernor</code> estimates
+ * they would not fit in the heap next to the running ones.
+ */
+public class ValidatorThreadPool implements Runnable {
+
+	/** Interval between throughput samples. */
+	protected static final long SAMPLE_INTERVAL = 5000L;
+
+	/** Relative throughput gain required to keep a newly added worker. */
+	protected static final double GAIN_THRESHOLD = 0.05;
+
+	/** Number of samples to hold the pool size after backing off. */
+	protected static final int HOLD_SAMPLES = 6;
+
+	/** Number of finished jobs kept for the hashing queue view. */
+	protected static final int FINISHED_HISTORY = 100;
 
 	/** ThreadPool executor. */
-	private ExecutorService executor; 
+	private ThreadPoolExecutor executor;
+
+	/** Shutdown boolean. */
+	private volatile boolean exit = false;
 
 	// TODO
 	TestFile testFile = new TestFile();
 
-	public ValidatorThreadPool() {
-		executor = new ThreadPoolExecutor(4, 4, 20L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
+	protected int minPoolSize;
+
+	protected int maxPoolSize;
+
+	/** Throughput measured over the last sample interval, in bytes per second. */
+	protected volatile double throughput = 0.0;
+
+	/** Throughput before the last pool size change. */
+	protected double lastThroughput = 0.0;
+
+	/** Pool size change made after the last sample, -1, 0 or 1. */
+	protected int lastChange = 0;
+
+	protected int holdSamples = 0;
+
+	/** Highest priority handed out by <code>moveToFront</code>. */
+	protected int frontPriority = 0;
+
+	/** Jobs which were active when last looked at, in submission order. */
+	protected Set<ValidationJob> jobs = new LinkedHashSet<ValidationJob>();
+
+	/** Most recently finished or cancelled jobs, newest last. */
+	protected LinkedList<ValidationJob> finishedJobs = new LinkedList<ValidationJob>();
+
+	/** Catalog updated with validation results, null to not keep results. */
+	protected ArchiveCatalog catalog;
+
+	protected List<ValidationListener> listeners = new CopyOnWriteArrayList<ValidationListener>();
+
+	/** Coordinator handing jobs to cluster workers, null to validate locally. */
+	protected volatile ClusterCoordinator coordinator;
+
+	/** Devices archives have been queued from, by key. */
+	protected Map<String, IoDevice> devices = new LinkedHashMap<String, IoDevice>();
+
+	protected MemoryGovernor governor = MemoryGovernor.instance;
+
+	public ValidatorThreadPool(ArchiveCatalog catalog) {
+		this.catalog = catalog;
+		int processors = Runtime.getRuntime().availableProcessors();
+		minPoolSize = 1;
+		maxPoolSize = Math.max( 2, processors * 2 );
+		if ( ThreadFactories.isVirtual() ) {
+			// Validators blocked on slow mounts park instead of holding a platform thread.
+			maxPoolSize = Math.max( maxPoolSize, Settings.getInt( "jwattools.threads.validators", 256 ) );
+		}
+		executor = new ThreadPoolExecutor(processors, processors, 20L, TimeUnit.SECONDS, new PriorityBlockingQueue<Runnable>(), ThreadFactories.newThreadFactory( "Validator", false )) {
+			@Override
+			protected void afterExecute(Runnable r, Throwable t) {
+				released( (ValidationJob)r );
+			}
+		};
+		executor.prestartAllCoreThreads();
+		governor.addReleaseListener( new Runnable() {
+			@Override
+			public void run() {
+				dispatchAll();
+			}
+		} );
+		Thread t = new Thread( this, "Validator-Tuner" );
+		t.setDaemon( true );
+		t.start();
+	}
+
+	public void addListener(ValidationListener listener) {
+		listeners.add( listener );
+	}
+
+	public void removeListener(ValidationListener listener) {
+		listeners.remove( listener );
+	}
+
+	/**
+	 * Send all jobs added from now on to cluster workers instead of the local executor.
+	 * @param coordinator cluster coordinator or null to validate locally
+	 */
+	public void setCoordinator(ClusterCoordinator coordinator) {
+		this.coordinator = coordinator;
 	}
 
 	public void exit() {
+		exit = true;
 		executor.shutdown();
 	}
 
-	public void add(ArchiveFileBase archiveFile) {
-		Future<?> future = executor.submit(new TestRunnable(archiveFile));
+	/**
+	 * Queue an archive file for validation, unless it already has an active
+	 * job. A job which has not started yet reads the archive as it is when it
+	 * starts. A running job is marked to validate the archive again when it is
+	 * done, so one archive is never validated by two jobs at once.
+	 * @param archiveFile archive file to validate
+	 * @return the validation job of the archive file
+	 */
+	public synchronized ValidationJob add(ArchiveFileBase archiveFile) {
+		ValidationJob job = archiveFile.job;
+		if ( job != null && job.isActive() ) {
+			if ( job.getState() != ValidationJob.QUEUED && job.getState() != ValidationJob.PAUSED ) {
+				job.requestRerun();
+			}
+			return job;
+		}
+		job = new ValidationJob( archiveFile, new TestRunnable( archiveFile ) );
+		job.pool = this;
+		archiveFile.job = job;
+		retireJobs();
+		jobs.add( job );
+		if ( coordinator != null ) {
+			coordinator.submit( job );
+			return job;
+		}
+		enqueue( job );
+		return job;
+	}
+
+	/**
+	 * Queue a job on its device and start it if the device has a free reader.
+	 * @param job job to queue
+	 */
+	protected void enqueue(ValidationJob job) {
+		IoDevice device = getDevice( job );
+		device.queue.add( job );
+		dispatch( device );
+	}
+
+	/**
+	 * Hand queued jobs of a device to the executor while it has free readers
+	 * and the memory governor admits them.
+	 * @param device device to dispatch from
+	 */
+	protected void dispatch(IoDevice device) {
+		ValidationJob job;
+		MemoryGovernor.Ticket ticket;
+		while ( !exit && device.running < device.readers && (job = device.queue.peek()) != null ) {
+			ticket = governor.tryAdmit( job.archiveFile );
+			if ( ticket == null ) {
+				// Deferred until a running job releases its memory.
+				break;
+			}
+			device.queue.poll();
+			job.ticket = ticket;
+			++device.running;
+			// Jobs are Comparable, so they must go into the priority queue unwrapped.
+			executor.execute( job );
+		}
+	}
+
+	protected synchronized void dispatchAll() {
+		for ( IoDevice device : devices.values() ) {
+			dispatch( device );
+		}
+	}
+
+	/**
+	 * Free the reader slot and memory reservation of a job which is done or
+	 * was taken out of the executor queue.
+	 * @param job job
+	 */
+	protected void releaseSlot(ValidationJob job) {
+		IoDevice device = getDevice( job );
+		--device.running;
+		MemoryGovernor.Ticket ticket = job.ticket;
+		job.ticket = null;
+		if ( ticket != null ) {
+			// Dispatches every device, the memory may let other jobs in.
+			governor.release( ticket );
+		}
+		dispatch( device );
+	}
+
+	/**
+	 * Take up to <code>wanted</code> free reader slots of a running job's
+	 * device in addition to its own, for a job reading several ranges of
+	 * its archive at once. Queued jobs wait for them like for any reader.
+	 * @param job running job
+	 * @param wanted number of extra readers wanted
+	 * @return number of extra reader slots taken, to be given back with <code>releaseReaders</code>
+	 */
+	public synchronized int acquireReaders(ValidationJob job, int wanted) {
+		IoDevice device = getDevice( job );
+		int n = Math.max( 0, Math.min( wanted, device.readers - device.running ) );
+		device.running += n;
+		return n;
+	}
+
+	/**
+	 * Give back extra reader slots taken with <code>acquireReaders</code>.
+	 * @param job running job
+	 * @param n number of extra reader slots taken
+	 */
+	public synchronized void releaseReaders(ValidationJob job, int n) {
+		if ( n > 0 ) {
+			IoDevice device = getDevice( job );
+			device.running -= n;
+			dispatch( device );
+		}
+	}
+
+	/**
+	 * Take a job which has not started out of its device queue or the executor queue.
+	 * @param job job to take out
+	 * @return true if the job was queued
+	 */
+	protected boolean dequeue(ValidationJob job) {
+		IoDevice device = getDevice( job );
+		if ( device.queue.remove( job ) ) {
+			return true;
+		}
+		if ( executor.remove( job ) ) {
+			releaseSlot( job );
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Called by the executor when a job is done, frees its reader slot.
+	 * @param job job which was run
+	 */
+	protected synchronized void released(ValidationJob job) {
+		releaseSlot( job );
+		rerunIfRequested( job );
+	}
+
+	/**
+	 * Queue a finished job's archive again if it changed while it was validated.
+	 * @param job finished job
+	 */
+	protected synchronized void rerunIfRequested(ValidationJob job) {
+		if ( job.isRerunRequested() && job.archiveFile.job == job && !job.isActive() ) {
+			add( job.archiveFile );
+		}
+	}
+
+	protected IoDevice getDevice(ValidationJob job) {
+		String[] key = IoDevice.lookup( job.archiveFile.file );
+		IoDevice device = devices.get( key[ 0 ] );
+		if ( device == null ) {
+			device = new IoDevice( key[ 0 ], key[ 1 ] );
+			devices.put( key[ 0 ], device );
+		}
+		return device;
+	}
+
+	/**
+	 * Returns a snapshot of the reader slots and queue depth of each device.
+	 * @return list of devices
+	 */
+	public synchronized List<IoDevice> getDevices() {
+		List<IoDevice> list = new ArrayList<IoDevice>( devices.size() );
+		for ( IoDevice device : devices.values() ) {
+			list.add( device.snapshot() );
+		}
+		return list;
+	}
+
+	public synchronized void cancel(ArchiveFileBase archiveFile) {
+		ValidationJob job = archiveFile.job;
+		if ( job != null && job.isActive() ) {
+			job.cancel();
+			// A job paused while running wakes up and stops itself at its checkpoint.
+			if ( dequeue( job ) ) {
+				job.setState( ValidationJob.CANCELLED );
+			}
+			else if ( coordinator != null ) {
+				coordinator.cancel( job );
+			}
+			else if ( job.getState() == ValidationJob.PAUSED ) {
+				job.setState( ValidationJob.CANCELLED );
+			}
+		}
+	}
+
+	/**
+	 * Pause a job. A queued job is taken out of the queue, a running job
+	 * blocks at its next checkpoint while keeping its worker.
+	 * @param archiveFile archive file of the job
+	 */
+	public synchronized void pause(ArchiveFileBase archiveFile) {
+		ValidationJob job = archiveFile.job;
+		if ( job != null ) {
+			if ( coordinator != null ) {
+				if ( job.isActive() ) {
+					coordinator.pause( job );
+				}
+			}
+			else if ( job.getState() == ValidationJob.QUEUED ) {
+				if ( dequeue( job ) ) {
+					job.setState( ValidationJob.PAUSED );
+				}
+			}
+			else if ( job.getState() == ValidationJob.RUNNING ) {
+				job.pause();
+			}
+		}
+	}
+
+	public synchronized void resume(ArchiveFileBase archiveFile) {
+		ValidationJob job = archiveFile.job;
+		if ( job != null ) {
+			if ( coordinator != null ) {
+				coordinator.resume( job );
+			}
+			else if ( job.isRunningPaused() ) {
+				job.resume();
+			}
+			else if ( job.getState() == ValidationJob.PAUSED ) {
+				job.setState( ValidationJob.QUEUED );
+				enqueue( job );
+			}
+		}
+	}
+
+	/**
+	 * Change the priority of a job, re-ordering it in the queue if it is queued.
+	 * @param archiveFile archive file of the job
+	 * @param priority new priority, higher runs first
+	 */
+	public synchronized void setPriority(ArchiveFileBase archiveFile, int priority) {
+		ValidationJob job = archiveFile.job;
+		if ( job != null ) {
+			IoDevice device = getDevice( job );
+			if ( device.queue.remove( job ) ) {
+				job.setPriority( priority );
+				enqueue( job );
+			}
+			else if ( executor.remove( job ) ) {
+				// Keeps its reader slot.
+				job.setPriority( priority );
+				executor.execute( job );
+			}
+			else {
+				job.setPriority( priority );
+				if ( coordinator != null ) {
+					coordinator.reprioritize( job );
+				}
+			}
+		}
+	}
+
+	/**
+	 * Move a job ahead of every other queued job, queueing it if needed.
+	 * Used when a user opens an archive which has not been validated yet.
+	 * @param archiveFile archive file of the job
+	 */
+	public synchronized void moveToFront(ArchiveFileBase archiveFile) {
+		ValidationJob job = archiveFile.job;
+		if ( job == null || !job.isActive() ) {
+			if ( archiveFile.bCompleted ) {
+				return;
+			}
+			job = add( archiveFile );
+		}
+		else if ( job.getState() == ValidationJob.PAUSED || job.isRunningPaused() ) {
+			resume( archiveFile );
+		}
+		setPriority( archiveFile, ++frontPriority );
+	}
+
+	/**
+	 * Returns a snapshot of the active jobs followed by the most recently
+	 * finished ones. Jobs which are no longer active are moved to the
+	 * bounded finished history.
+	 * @return list of jobs
+	 */
+	public synchronized List<ValidationJob> getJobs() {
+		List<ValidationJob> list = new ArrayList<ValidationJob>( jobs.size() + finishedJobs.size() );
+		Iterator<ValidationJob> iter = jobs.iterator();
+		ValidationJob job;
+		while ( iter.hasNext() ) {
+			job = iter.next();
+			if ( job.isActive() ) {
+				list.add( job );
+			}
+			else {
+				iter.remove();
+				addFinished( job );
+			}
+		}
+		list.addAll( finishedJobs );
+		return list;
+	}
+
+	/**
+	 * Move inactive jobs from the head of the job set to the finished history,
+	 * so the set stays small even if nobody is looking at the jobs.
+	 */
+	protected void retireJobs() {
+		Iterator<ValidationJob> iter = jobs.iterator();
+		ValidationJob job;
+		while ( iter.hasNext() ) {
+			job = iter.next();
+			if ( job.isActive() ) {
+				break;
+			}
+			iter.remove();
+			addFinished( job );
+		}
+	}
+
+	protected void addFinished(ValidationJob job) {
+		finishedJobs.add( job );
+		if ( finishedJobs.size() > FINISHED_HISTORY ) {
+			finishedJobs.removeFirst();
+		}
+	}
+
+	public int getPoolSize() {
+		return executor.getCorePoolSize();
+	}
+
+	public int getActiveCount() {
+		return executor.getActiveCount();
+	}
+
+	public synchronized int getQueueSize() {
+		int queued = executor.getQueue().size();
+		for ( IoDevice device : devices.values() ) {
+			queued += device.queue.size();
+		}
+		return queued;
+	}
+
+	/**
+	 * Returns the aggregate validation throughput of the last sample interval.
+	 * @return throughput in bytes per second
+	 */
+	public double getThroughput() {
+		return throughput;
+	}
+
+	public void run() {
+		long lastConsumed = ArchiveFileBase.totalConsumed.sum();
+		long lastTime = System.nanoTime();
+		long consumed;
+		long time;
+		while ( !exit ) {
+			try {
+				Thread.sleep( SAMPLE_INTERVAL );
+			}
+			catch (InterruptedException e) {
+			}
+			consumed = ArchiveFileBase.totalConsumed.sum();
+			time = System.nanoTime();
+			throughput = (double)(consumed - lastConsumed) * 1000000000.0 / (double)(time - lastTime);
+			lastConsumed = consumed;
+			lastTime = time;
+			adjust();
+		}
+	}
+
+	/**
+	 * Hill climbing step, called once per sample.
+	 */
+	protected void adjust() {
+		int poolSize = executor.getCorePoolSize();
+		// Work waits in the device queues before it reaches the executor queue.
+		boolean bSaturated = executor.getActiveCount() >= poolSize && (!executor.getQueue().isEmpty() || hasQueuedJobs());
+		if ( lastChange > 0 ) {
+			if ( throughput > lastThroughput * (1.0 + GAIN_THRESHOLD) ) {
+				// Still scaling, keep climbing.
+				lastThroughput = throughput;
+				if ( bSaturated && poolSize < maxPoolSize ) {
+					setPoolSize( poolSize + 1 );
+					lastChange = 1;
+				}
+				else {
+					lastChange = 0;
+				}
+			}
+			else {
+				// Plateau, probably disk bound. Back off and hold.
+				setPoolSize( Math.max( minPoolSize, poolSize - 1 ) );
+				lastChange = -1;
+				holdSamples = HOLD_SAMPLES;
+			}
+		}
+		else if ( holdSamples > 0 ) {
+			--holdSamples;
+			lastChange = 0;
+		}
+		else if ( bSaturated && poolSize < maxPoolSize ) {
+			lastThroughput = throughput;
+			setPoolSize( poolSize + 1 );
+			lastChange = 1;
+		}
+		else {
+			lastChange = 0;
+		}
+	}
+
+	/**
+	 * Returns true if a device has jobs waiting for a reader slot.
+	 * @return true if jobs are queued on a device
+	 */
+	protected synchronized boolean hasQueuedJobs() {
+		for ( IoDevice device : devices.values() ) {
+			if ( !device.queue.isEmpty() ) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	protected void setPoolSize(int poolSize) {
+		if ( poolSize > executor.getMaximumPoolSize() ) {
+			executor.setMaximumPoolSize( poolSize );
+			executor.setCorePoolSize( poolSize );
+		}
+		else {
+			executor.setCorePoolSize( poolSize );
+			executor.setMaximumPoolSize( poolSize );
+		}
+	}
+
+	/**
+	 * Called by the cluster coordinator once all parts of a job have been
+	 * validated by workers, or the job was cancelled.
+	 * @param archiveFile archive file of the job
+	 */
+	public void remoteDone(ArchiveFileBase archiveFile) {
+		ValidationJob job = archiveFile.job;
+		try {
+			if ( job == null || !job.isCancelled() ) {
+				store( archiveFile );
+			}
+		}
+		finally {
+			if ( job != null ) {
+				job.stopped();
+			}
+			fireDone( archiveFile );
+			if ( job != null ) {
+				rerunIfRequested( job );
+			}
+		}
+	}
+
+	protected void store(ArchiveFileBase archiveFile) {
+		if ( catalog != null ) {
+			if ( archiveFile.fingerprint == null ) {
+				archiveFile.fingerprint = ContentFingerprint.compute( archiveFile.file );
+			}
+			catalog.update( archiveFile );
+		}
+	}
+
+	protected void fireDone(ArchiveFileBase archiveFile) {
+		for ( ValidationListener listener : listeners ) {
+			listener.validationDone( archiveFile );
+		}
 	}
 
 	class TestRunnable implements Runnable {
@@ -36,7 +622,16 @@ public class ValidatorThreadPool {
 		}
 		@Override
 		public void run() {
-			archiveFile.validate();
+			try {
+				archiveFile.validate();
+				if ( archiveFile.job != null && archiveFile.job.isCancelled() ) {
+					return;
+				}
+				store( archiveFile );
+			}
+			finally {
+				fireDone( archiveFile );
+			}
 		}
 	}
 
@@ -0,0 +1,935 @@
+package org.jwat.tools.gui.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.jwat.tools.gui.Settings;
+import org.jwat.tools.gui.ThreadFactories;
+import org.jwat.tools.gui.ValidatorThreadPool;
+import org.jwat.tools.gui.library.ArchiveFileBase;
+import org.jwat.tools.gui.library.RangeValidator;
+import org.jwat.tools.gui.library.ValidationJob;
+
+/**
+ * Hands validation jobs to worker processes on other machines, or on the
+ * same machine for testing. Large compressed archives are split into ranges
+ * of gzip members, everything else is sent as one whole file job.
+ *
+ * Workers pull: each worker holds credits for its free slots and is only
+ * sent jobs while it has credits, so an idle worker takes the next job from
+ * the shared queue and no job waits behind a slow worker. Jobs of a worker
+ * which disconnects, stops sending heartbeats or reports a failure are
+ * queued again, up to <code>MAX_ATTEMPTS</code> times. Range results are
+ * merged per archive and handed back to the <code>ValidatorThreadPool</code>,
+ * which updates the library and catalog as for local validations.
+ *
+ * Jobs are dispatched by priority. Pausing a job holds its queued parts
+ * back and pauses its running parts on the workers, cancelling drops the
+ * queued parts and stops the running ones. Calls from the pool are carried
+ * out one at a time on a thread of their own, so splitting archives and
+ * writing to workers never happens while the pool's monitor is held.
+ *
+ * Listens on <code>jwattools.cluster.bind</code> (default 127.0.0.1) and
+ * only accepts workers which know <code>jwattools.cluster.secret</code>.
+ * Without a secret only the loopback address can be bound, with a random
+ * secret known to the worker in this process only.
+ *
+ * Workers must see the archives under the same paths as the coordinator.
+ */
+public class ClusterCoordinator implements Runnable {
+
+	/** Number of times a job is handed out before it counts as failed. */
+	protected static final int MAX_ATTEMPTS = Settings.getInt( "jwattools.cluster.attempts", 3 );
+
+	/** Size of the ranges big compressed archives are split into. */
+	protected static final long RANGE_SIZE = Settings.getLong( "jwattools.cluster.range", 512L * 1024L * 1024L );
+
+	/** Upper bound on the number of ranges per archive. */
+	protected static final int MAX_RANGES = 64;
+
+	/** Read timeout of worker sockets, a worker which sends nothing for longer is dropped. */
+	protected static final int READ_TIMEOUT = (int)(2 * ClusterProtocol.WORKER_TIMEOUT);
+
+	/** Parts with a higher priority first, then parts handed out before, then in submission order. */
+	protected static final Comparator<Part> PART_ORDER = new Comparator<Part>() {
+		@Override
+		public int compare(Part p1, Part p2) {
+			if ( p1.priority != p2.priority ) {
+				return p1.priority > p2.priority ? -1 : 1;
+			}
+			if ( (p1.attempts > 0) != (p2.attempts > 0) ) {
+				// Ahead of untouched work, it has waited long enough.
+				return p1.attempts > 0 ? -1 : 1;
+			}
+			return Long.compare( p1.id, p2.id );
+		}
+	};
+
+	protected ServerSocket serverSocket;
+
+	protected ValidatorThreadPool pool;
+
+	/** Shared secret workers must prove they know. */
+	protected byte[] secret;
+
+	/** Runs the calls from the pool one at a time. */
+	protected ExecutorService tasks;
+
+	protected volatile boolean exit = false;
+
+	protected long nextJobId = 0;
+
+	/** Parts waiting for a worker, in dispatch order. */
+	protected PriorityQueue<Part> queue = new PriorityQueue<Part>( 64, PART_ORDER );
+
+	/** Parts handed out and not yet reported back, by id. */
+	protected Map<Long, Part> running = new HashMap<Long, Part>();
+
+	/** Jobs submitted and not finished yet. */
+	protected Map<ValidationJob, RemoteJob> remoteJobs = new HashMap<ValidationJob, RemoteJob>();
+
+	protected List<WorkerConnection> workers = new ArrayList<WorkerConnection>();
+
+	/** Jobs finished while holding the lock, completed by <code>finishJobs</code>. */
+	protected List<RemoteJob> finished = new ArrayList<RemoteJob>();
+
+	/** One validation job split into parts. */
+	static class RemoteJob {
+		ValidationJob job;
+		Part[] parts;
+		int remaining;
+		boolean bStarted;
+		/** Paused, queued parts are held back. */
+		boolean bHeld;
+	}
+
+	/** One job handed to a worker, a byte range or a whole file. */
+	static class Part {
+		long id;
+		RemoteJob remoteJob;
+		long start;
+		long end;
+		boolean bRange;
+		/** Priority of the job when the part was queued. */
+		int priority;
+		boolean bQueued;
+		int attempts;
+		WorkerConnection worker;
+		boolean bDone;
+		boolean bCompleted;
+		long consumed;
+		int records;
+		int errors;
+		int warnings;
+		int exceptions;
+	}
+
+	/** Counters of a part as sent by a worker, read before the lock is taken. */
+	static class Counters {
+		long consumed;
+		int records;
+		int errors;
+		int warnings;
+		int exceptions;
+		void copyTo(Part part) {
+			part.consumed = consumed;
+			part.records = records;
+			part.errors = errors;
+			part.warnings = warnings;
+			part.exceptions = exceptions;
+		}
+	}
+
+	/**
+	 * Listen for workers.
+	 * @param bindAddress address to listen on
+	 * @param port port to listen on
+	 * @param secret shared secret workers must know
+	 * @param pool validator pool to hand results back to
+	 * @throws IOException if the port cannot be bound
+	 */
+	public ClusterCoordinator(InetAddress bindAddress, int port, byte[] secret, ValidatorThreadPool pool) throws IOException {
+		this.pool = pool;
+		this.secret = secret;
+		serverSocket = new ServerSocket( port, 50, bindAddress );
+		tasks = Executors.newSingleThreadExecutor( ThreadFactories.newThreadFactory( "Cluster-Tasks", true ) );
+		Thread t = new Thread( this, "Cluster-Coordinator" );
+		t.setDaemon( true );
+		t.start();
+		t = new Thread( new Runnable() {
+			@Override
+			public void run() {
+				while ( !exit ) {
+					try {
+						Thread.sleep( ClusterProtocol.HEARTBEAT_INTERVAL );
+					}
+					catch (InterruptedException e) {
+					}
+					reapWorkers();
+				}
+			}
+		}, "Cluster-Reaper" );
+		t.setDaemon( true );
+		t.start();
+	}
+
+	/**
+	 * Start a coordinator if <code>jwattools.cluster.port</code> is set, and
+	 * unless <code>jwattools.cluster.localworker</code> is false a worker in
+	 * this process as well, so the local cores keep validating.
+	 * @param pool validator pool to route jobs from
+	 * @param port port to listen on, 0 to use the setting
+	 * @return coordinator or null if clustering is not enabled
+	 */
+	public static ClusterCoordinator startIfEnabled(ValidatorThreadPool pool, int port) {
+		if ( port <= 0 ) {
+			port = Settings.getInt( "jwattools.cluster.port", 0 );
+		}
+		if ( port <= 0 ) {
+			return null;
+		}
+		String bind = Settings.getProperty( "jwattools.cluster.bind", "127.0.0.1" );
+		ClusterCoordinator coordinator;
+		try {
+			InetAddress bindAddress = InetAddress.getByName( bind );
+			byte[] secret = ClusterProtocol.getSecret();
+			if ( secret == null ) {
+				if ( !bindAddress.isLoopbackAddress() ) {
+					System.err.println( "Not starting cluster coordinator on " + bind + ", jwattools.cluster.secret is not set" );
+					return null;
+				}
+				secret = ClusterProtocol.newNonce();
+			}
+			coordinator = new ClusterCoordinator( bindAddress, port, secret, pool );
+		}
+		catch (IOException e) {
+			System.err.println( "Unable to start cluster coordinator on " + bind + ":" + port + ": " + e.getMessage() );
+			return null;
+		}
+		if ( Settings.getBoolean( "jwattools.cluster.localworker", true ) ) {
+			new ClusterWorker( coordinator.getLocalAddress(), coordinator.getPort(), Runtime.getRuntime().availableProcessors(), coordinator.secret ).start();
+		}
+		pool.setCoordinator( coordinator );
+		return coordinator;
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Returns the address a worker in this process connects to.
+	 * @return bound address, or loopback if bound to all addresses
+	 */
+	public String getLocalAddress() {
+		InetAddress address = serverSocket.getInetAddress();
+		if ( address.isAnyLocalAddress() ) {
+			address = InetAddress.getLoopbackAddress();
+		}
+		return address.getHostAddress();
+	}
+
+	public synchronized int getWorkerCount() {
+		return workers.size();
+	}
+
+	public synchronized int getQueueSize() {
+		return queue.size();
+	}
+
+	public void exit() {
+		exit = true;
+		tasks.shutdownNow();
+		try {
+			serverSocket.close();
+		}
+		catch (IOException e) {
+		}
+		List<WorkerConnection> list;
+		synchronized ( this ) {
+			list = new ArrayList<WorkerConnection>( workers );
+		}
+		for ( WorkerConnection worker : list ) {
+			worker.send( new byte[] { ClusterProtocol.BYE } );
+			worker.close();
+		}
+	}
+
+	@Override
+	public void run() {
+		Socket socket;
+		while ( !exit ) {
+			try {
+				socket = serverSocket.accept();
+				socket.setTcpNoDelay( true );
+				Thread t = new Thread( new WorkerConnection( socket ), "Cluster-Worker-" + socket.getRemoteSocketAddress() );
+				t.setDaemon( true );
+				t.start();
+			}
+			catch (IOException e) {
+				if ( !exit ) {
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+	/**
+	 * Run a call from the pool on the tasks thread.
+	 * @param task call to run
+	 */
+	protected void execute(Runnable task) {
+		if ( !exit ) {
+			tasks.execute( task );
+		}
+	}
+
+	/**
+	 * Split a job into parts and queue them for the workers.
+	 * Returns at once, the job is split on the tasks thread.
+	 * @param job validation job
+	 */
+	public void submit(final ValidationJob job) {
+		execute( new Runnable() {
+			@Override
+			public void run() {
+				split( job );
+			}
+		} );
+	}
+
+	/**
+	 * Split a job into parts and queue them, unless it was cancelled already.
+	 * @param job validation job
+	 */
+	protected void split(ValidationJob job) {
+		ArchiveFileBase archiveFile = job.archiveFile;
+		if ( job.isCancelled() ) {
+			pool.remoteDone( archiveFile );
+			return;
+		}
+		List<Long> boundaries = null;
+		if ( archiveFile.fileSize >= RANGE_SIZE * 2 ) {
+			RangeValidator rangeValidator = RangeValidator.getRangeInstance( archiveFile );
+			if ( rangeValidator != null ) {
+				boundaries = rangeValidator.split( (int)Math.min( MAX_RANGES, archiveFile.fileSize / RANGE_SIZE ) );
+			}
+		}
+		RemoteJob remoteJob = new RemoteJob();
+		remoteJob.job = job;
+		Part part;
+		synchronized ( this ) {
+			if ( boundaries != null && boundaries.size() > 2 ) {
+				remoteJob.parts = new Part[ boundaries.size() - 1 ];
+				for ( int i=0; i<remoteJob.parts.length; ++i ) {
+					part = newPart( remoteJob );
+					part.start = boundaries.get( i );
+					part.end = boundaries.get( i + 1 );
+					part.bRange = true;
+					remoteJob.parts[ i ] = part;
+				}
+			}
+			else {
+				part = newPart( remoteJob );
+				part.start = 0;
+				part.end = archiveFile.fileSize;
+				part.bRange = false;
+				remoteJob.parts = new Part[] { part };
+			}
+			remoteJob.remaining = remoteJob.parts.length;
+			remoteJobs.put( job, remoteJob );
+			for ( int i=0; i<remoteJob.parts.length; ++i ) {
+				enqueue( remoteJob.parts[ i ] );
+			}
+		}
+		dispatch();
+	}
+
+	private Part newPart(RemoteJob remoteJob) {
+		Part part = new Part();
+		part.id = ++nextJobId;
+		part.remoteJob = remoteJob;
+		return part;
+	}
+
+	/**
+	 * Queue a part at its job's current priority. Must be called while holding the lock.
+	 * @param part part to queue
+	 */
+	private void enqueue(Part part) {
+		part.priority = part.remoteJob.job.getPriority();
+		part.bQueued = true;
+		queue.add( part );
+	}
+
+	/**
+	 * Take a queued part out of the queue. Must be called while holding the lock.
+	 * @param part part to take out
+	 * @return true if the part was queued
+	 */
+	private boolean dequeue(Part part) {
+		if ( !part.bQueued ) {
+			return false;
+		}
+		part.bQueued = false;
+		queue.remove( part );
+		return true;
+	}
+
+	/**
+	 * Drop the queued parts of a cancelled job and stop its running parts.
+	 * The job is finished once its running parts have been reported back.
+	 * @param job cancelled job
+	 */
+	public void cancel(final ValidationJob job) {
+		execute( new Runnable() {
+			@Override
+			public void run() {
+				List<WorkerConnection> targets = new ArrayList<WorkerConnection>();
+				List<byte[]> messages = new ArrayList<byte[]>();
+				synchronized ( ClusterCoordinator.this ) {
+					RemoteJob remoteJob = remoteJobs.get( job );
+					if ( remoteJob == null ) {
+						return;
+					}
+					for ( Part part : remoteJob.parts ) {
+						if ( part.bDone ) {
+							continue;
+						}
+						if ( part.worker != null ) {
+							targets.add( part.worker );
+							messages.add( controlMessage( ClusterProtocol.CANCEL, part ) );
+						}
+						else {
+							dequeue( part );
+							partDone( part );
+						}
+					}
+				}
+				send( targets, messages );
+				finishJobs();
+			}
+		} );
+	}
+
+	/**
+	 * Pause a job. Its queued parts are held back and its running parts
+	 * block on the workers, which keep their slots.
+	 * @param job job to pause
+	 */
+	public void pause(final ValidationJob job) {
+		execute( new Runnable() {
+			@Override
+			public void run() {
+				List<WorkerConnection> targets = new ArrayList<WorkerConnection>();
+				List<byte[]> messages = new ArrayList<byte[]>();
+				synchronized ( ClusterCoordinator.this ) {
+					RemoteJob remoteJob = remoteJobs.get( job );
+					if ( remoteJob == null || remoteJob.bHeld || job.isCancelled() ) {
+						return;
+					}
+					remoteJob.bHeld = true;
+					if ( remoteJob.bStarted ) {
+						job.pause();
+					}
+					else {
+						job.setState( ValidationJob.PAUSED );
+					}
+					for ( Part part : remoteJob.parts ) {
+						if ( !part.bDone && !dequeue( part ) && part.worker != null ) {
+							targets.add( part.worker );
+							messages.add( controlMessage( ClusterProtocol.PAUSE, part ) );
+						}
+					}
+				}
+				send( targets, messages );
+			}
+		} );
+	}
+
+	/**
+	 * Resume a paused job.
+	 * @param job job to resume
+	 */
+	public void resume(final ValidationJob job) {
+		execute( new Runnable() {
+			@Override
+			public void run() {
+				List<WorkerConnection> targets = new ArrayList<WorkerConnection>();
+				List<byte[]> messages = new ArrayList<byte[]>();
+				synchronized ( ClusterCoordinator.this ) {
+					RemoteJob remoteJob = remoteJobs.get( job );
+					if ( remoteJob == null || !remoteJob.bHeld ) {
+						return;
+					}
+					remoteJob.bHeld = false;
+					if ( remoteJob.bStarted ) {
+						job.resume();
+					}
+					else if ( job.getState() == ValidationJob.PAUSED ) {
+						job.setState( ValidationJob.QUEUED );
+					}
+					for ( Part part : remoteJob.parts ) {
+						if ( part.bDone ) {
+							continue;
+						}
+						if ( part.worker != null ) {
+							targets.add( part.worker );
+							messages.add( controlMessage( ClusterProtocol.RESUME, part ) );
+						}
+						else if ( !part.bQueued ) {
+							enqueue( part );
+						}
+					}
+				}
+				send( targets, messages );
+				dispatch();
+			}
+		} );
+	}
+
+	/**
+	 * Re-order the queued parts of a job after its priority changed.
+	 * @param job job whose priority changed
+	 */
+	public void reprioritize(final ValidationJob job) {
+		execute( new Runnable() {
+			@Override
+			public void run() {
+				synchronized ( ClusterCoordinator.this ) {
+					RemoteJob remoteJob = remoteJobs.get( job );
+					if ( remoteJob == null ) {
+						return;
+					}
+					for ( Part part : remoteJob.parts ) {
+						if ( dequeue( part ) ) {
+							enqueue( part );
+						}
+					}
+				}
+			}
+		} );
+	}
+
+	/**
+	 * Hand queued parts to workers with free credits. Messages are built
+	 * while holding the lock and sent after releasing it.
+	 */
+	protected void dispatch() {
+		List<WorkerConnection> targets = new ArrayList<WorkerConnection>();
+		List<byte[]> messages = new ArrayList<byte[]>();
+		synchronized ( this ) {
+			Part part;
+			WorkerConnection worker;
+			while ( !queue.isEmpty() && (worker = nextWorker()) != null ) {
+				part = queue.poll();
+				part.bQueued = false;
+				if ( part.remoteJob.job.isCancelled() ) {
+					partDone( part );
+					continue;
+				}
+				--worker.credits;
+				part.worker = worker;
+				++part.attempts;
+				running.put( part.id, part );
+				if ( !part.remoteJob.bStarted ) {
+					part.remoteJob.bStarted = true;
+					part.remoteJob.job.started();
+				}
+				targets.add( worker );
+				messages.add( jobMessage( part ) );
+			}
+		}
+		send( targets, messages );
+		finishJobs();
+	}
+
+	private static void send(List<WorkerConnection> targets, List<byte[]> messages) {
+		for ( int i=0; i<targets.size(); ++i ) {
+			targets.get( i ).send( messages.get( i ) );
+		}
+	}
+
+	/**
+	 * Returns the worker with most free credits, must be called while holding the lock.
+	 * @return worker or null if no worker has a free slot
+	 */
+	private WorkerConnection nextWorker() {
+		WorkerConnection best = null;
+		for ( WorkerConnection worker : workers ) {
+			if ( worker.credits > 0 && (best == null || worker.credits > best.credits) ) {
+				best = worker;
+			}
+		}
+		return best;
+	}
+
+	private static byte[] jobMessage(Part part) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream( bytes );
+		try {
+			out.writeByte( ClusterProtocol.JOB );
+			out.writeLong( part.id );
+			out.writeUTF( part.remoteJob.job.archiveFile.file.getAbsolutePath() );
+			out.writeLong( part.start );
+			out.writeLong( part.end );
+			out.writeBoolean( part.bRange );
+			out.flush();
+		}
+		catch (IOException e) {
+			throw new IllegalStateException( e );
+		}
+		return bytes.toByteArray();
+	}
+
+	private static byte[] controlMessage(byte type, Part part) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream( bytes );
+		try {
+			out.writeByte( type );
+			out.writeLong( part.id );
+			out.flush();
+		}
+		catch (IOException e) {
+			throw new IllegalStateException( e );
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Requeue all parts held by a worker which has gone away.
+	 * @param worker lost worker
+	 */
+	protected void workerLost(WorkerConnection worker) {
+		synchronized ( this ) {
+			if ( !workers.remove( worker ) ) {
+				return;
+			}
+			Iterator<Part> iter = running.values().iterator();
+			Part part;
+			while ( iter.hasNext() ) {
+				part = iter.next();
+				if ( part.worker == worker ) {
+					iter.remove();
+					requeue( part );
+				}
+			}
+		}
+		dispatch();
+	}
+
+	/**
+	 * Queue a part again, or give up on it. A part of a cancelled job is
+	 * done, a part of a paused job waits for it to be resumed.
+	 * Must be called while holding the lock.
+	 * @param part part to requeue
+	 */
+	private void requeue(Part part) {
+		part.worker = null;
+		if ( part.remoteJob.job.isCancelled() ) {
+			partDone( part );
+		}
+		else if ( part.attempts < MAX_ATTEMPTS ) {
+			if ( !part.remoteJob.bHeld ) {
+				enqueue( part );
+			}
+		}
+		else {
+			part.bCompleted = false;
+			++part.exceptions;
+			partDone( part );
+		}
+	}
+
+	/**
+	 * Account for a finished part and finish its job once all parts are done.
+	 * Must be called while holding the lock, the job is finished outside of it.
+	 * @param part finished part
+	 */
+	private void partDone(Part part) {
+		if ( part.bDone ) {
+			return;
+		}
+		part.bDone = true;
+		part.worker = null;
+		RemoteJob remoteJob = part.remoteJob;
+		updateCounters( remoteJob );
+		if ( --remoteJob.remaining == 0 ) {
+			remoteJobs.remove( remoteJob.job );
+			finished.add( remoteJob );
+		}
+	}
+
+	protected void finishJobs() {
+		List<RemoteJob> list;
+		synchronized ( this ) {
+			if ( finished.isEmpty() ) {
+				return;
+			}
+			list = new ArrayList<RemoteJob>( finished );
+			finished.clear();
+		}
+		ArchiveFileBase archiveFile;
+		boolean bCompleted;
+		for ( RemoteJob remoteJob : list ) {
+			archiveFile = remoteJob.job.archiveFile;
+			bCompleted = true;
+			for ( Part part : remoteJob.parts ) {
+				bCompleted &= part.bCompleted;
+			}
+			archiveFile.bCompleted = bCompleted && !remoteJob.job.isCancelled();
+			archiveFile.changed();
+			pool.remoteDone( archiveFile );
+		}
+	}
+
+	/**
+	 * Merge the counters of all parts into the archive file. Must be called while holding the lock.
+	 * @param remoteJob job to update
+	 */
+	private void updateCounters(RemoteJob remoteJob) {
+		long consumed = 0;
+		int records = 0;
+		int errors = 0;
+		int warnings = 0;
+		int exceptions = 0;
+		for ( Part part : remoteJob.parts ) {
+			consumed += part.consumed;
+			records += part.records;
+			errors += part.errors;
+			warnings += part.warnings;
+			exceptions += part.exceptions;
+		}
+		remoteJob.job.archiveFile.setCounters( records, errors, warnings, exceptions, consumed );
+	}
+
+	/**
+	 * Close workers which have not sent anything for <code>WORKER_TIMEOUT</code>.
+	 */
+	protected void reapWorkers() {
+		long now = System.currentTimeMillis();
+		List<WorkerConnection> lost = new ArrayList<WorkerConnection>();
+		synchronized ( this ) {
+			for ( WorkerConnection worker : workers ) {
+				if ( now > worker.lastSeen + ClusterProtocol.WORKER_TIMEOUT ) {
+					lost.add( worker );
+				}
+			}
+		}
+		for ( WorkerConnection worker : lost ) {
+			System.err.println( "Cluster worker timed out: " + worker.name );
+			worker.close();
+			workerLost( worker );
+		}
+		finishJobs();
+	}
+
+	/**
+	 * Connection to one worker, read on its own thread.
+	 */
+	class WorkerConnection implements Runnable {
+
+		Socket socket;
+
+		DataOutputStream out;
+
+		String name;
+
+		int slots;
+
+		/** Jobs the worker has asked for and not been sent yet. */
+		int credits;
+
+		volatile long lastSeen = System.currentTimeMillis();
+
+		WorkerConnection(Socket socket) {
+			this.socket = socket;
+			this.name = socket.getRemoteSocketAddress().toString();
+		}
+
+		void send(byte[] message) {
+			try {
+				synchronized ( this ) {
+					out.write( message );
+					out.flush();
+				}
+			}
+			catch (IOException e) {
+				close();
+			}
+		}
+
+		void close() {
+			try {
+				socket.close();
+			}
+			catch (IOException e) {
+			}
+		}
+
+		/**
+		 * Challenge the worker to prove it knows the shared secret, and prove
+		 * the same to it. A worker which does not answer in time is dropped.
+		 */
+		private void handshake(DataInputStream in) throws IOException {
+			socket.setSoTimeout( (int)ClusterProtocol.WORKER_TIMEOUT );
+			byte[] nonce = ClusterProtocol.newNonce();
+			synchronized ( this ) {
+				out.writeByte( ClusterProtocol.CHALLENGE );
+				out.writeInt( ClusterProtocol.MAGIC );
+				out.writeInt( ClusterProtocol.VERSION );
+				out.write( nonce );
+				out.flush();
+			}
+			if ( in.readByte() != ClusterProtocol.HELLO || in.readInt() != ClusterProtocol.MAGIC || in.readInt() != ClusterProtocol.VERSION ) {
+				throw new IOException( "Invalid handshake from " + name );
+			}
+			byte[] workerNonce = ClusterProtocol.readNonce( in );
+			if ( !ClusterProtocol.verify( in, secret, ClusterProtocol.ROLE_WORKER, workerNonce, nonce ) ) {
+				throw new IOException( "Wrong cluster secret from " + name );
+			}
+			synchronized ( this ) {
+				out.writeByte( ClusterProtocol.WELCOME );
+				out.write( ClusterProtocol.mac( secret, ClusterProtocol.ROLE_COORDINATOR, nonce, workerNonce ) );
+				out.flush();
+			}
+			name = in.readUTF() + " (" + name + ")";
+			slots = in.readInt();
+			// Heartbeats arrive every few seconds, a worker stalled for longer is dropped.
+			socket.setSoTimeout( READ_TIMEOUT );
+		}
+
+		@Override
+		public void run() {
+			try {
+				DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+				out = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) );
+				handshake( in );
+				synchronized ( ClusterCoordinator.this ) {
+					workers.add( this );
+				}
+				System.err.println( "Cluster worker connected: " + name + ", " + slots + " slots" );
+				while ( !exit ) {
+					byte type = in.readByte();
+					lastSeen = System.currentTimeMillis();
+					switch ( type ) {
+					case ClusterProtocol.REQUEST:
+						int count = in.readInt();
+						synchronized ( ClusterCoordinator.this ) {
+							credits += count;
+						}
+						dispatch();
+						break;
+					case ClusterProtocol.HEARTBEAT:
+						readHeartbeat( in );
+						break;
+					case ClusterProtocol.RESULT:
+						readResult( in );
+						finishJobs();
+						break;
+					case ClusterProtocol.FAILED:
+						readFailed( in );
+						finishJobs();
+						dispatch();
+						break;
+					default:
+						throw new IOException( "Unknown message type " + type + " from " + name );
+					}
+				}
+			}
+			catch (IOException e) {
+				if ( !exit ) {
+					System.err.println( "Cluster worker disconnected: " + name + ": " + e.getMessage() );
+				}
+			}
+			finally {
+				close();
+				workerLost( this );
+				finishJobs();
+			}
+		}
+
+		/*
+		 * Messages are read completely before the lock is taken, so a worker
+		 * which stalls halfway through one only blocks its own reader.
+		 */
+
+		private Counters readCounters(DataInputStream in) throws IOException {
+			Counters counters = new Counters();
+			counters.consumed = in.readLong();
+			counters.records = in.readInt();
+			counters.errors = in.readInt();
+			counters.warnings = in.readInt();
+			counters.exceptions = in.readInt();
+			return counters;
+		}
+
+		private void readHeartbeat(DataInputStream in) throws IOException {
+			int n = in.readInt();
+			List<Long> ids = new ArrayList<Long>();
+			List<Counters> counters = new ArrayList<Counters>();
+			for ( int i=0; i<n; ++i ) {
+				ids.add( in.readLong() );
+				counters.add( readCounters( in ) );
+			}
+			synchronized ( ClusterCoordinator.this ) {
+				Part part;
+				for ( int i=0; i<ids.size(); ++i ) {
+					part = running.get( ids.get( i ) );
+					if ( part != null && part.worker == this ) {
+						counters.get( i ).copyTo( part );
+						updateCounters( part.remoteJob );
+					}
+				}
+			}
+		}
+
+		private void readResult(DataInputStream in) throws IOException {
+			long id = in.readLong();
+			boolean bCompleted = in.readBoolean();
+			Counters counters = readCounters( in );
+			synchronized ( ClusterCoordinator.this ) {
+				Part part = running.get( id );
+				if ( part != null && part.worker == this ) {
+					running.remove( id );
+					counters.copyTo( part );
+					part.bCompleted = bCompleted;
+					partDone( part );
+				}
+			}
+		}
+
+		private void readFailed(DataInputStream in) throws IOException {
+			long id = in.readLong();
+			String message = in.readUTF();
+			synchronized ( ClusterCoordinator.this ) {
+				Part part = running.get( id );
+				if ( part != null && part.worker == this ) {
+					running.remove( id );
+					if ( !part.remoteJob.job.isCancelled() ) {
+						System.err.println( "Cluster job failed on " + name + ": " + part.remoteJob.job.archiveFile.file.getPath() + ": " + message );
+					}
+					requeue( part );
+				}
+			}
+		}
+
+	}
+
+}
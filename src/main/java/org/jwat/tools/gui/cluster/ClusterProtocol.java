@@ -0,0 +1,141 @@
+package org.jwat.tools.gui.cluster;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.jwat.tools.gui.Settings;
+
+/**
+ * Constants of the coordinator/worker protocol. Messages are written with
+ * <code>DataOutputStream</code>, each starting with a one byte type.
+ *
+ * <pre>
+ * Coordinator to worker, on connect:
+ *   CHALLENGE int magic, int version, NONCE
+ * Worker to coordinator:
+ *   HELLO     int magic, int version, NONCE, MAC("worker"), UTF name, int slots
+ *   REQUEST   int count                          ask for up to count more jobs
+ *   HEARTBEAT int n, n * (long jobId, COUNTERS)  progress of running jobs
+ *   RESULT    long jobId, boolean completed, COUNTERS
+ *   FAILED    long jobId, UTF message
+ * Coordinator to worker:
+ *   WELCOME   MAC("coordinator")
+ *   JOB       long jobId, UTF path, long start, long end, boolean range
+ *   PAUSE     long jobId
+ *   RESUME    long jobId
+ *   CANCEL    long jobId
+ *   BYE
+ * COUNTERS = long consumed, int records, int errors, int warnings, int exceptions
+ * NONCE    = NONCE_LENGTH random bytes
+ * MAC      = HMAC-SHA256 of the role and the sender's and receiver's nonces, keyed with the shared secret
+ * </pre>
+ *
+ * Both sides prove they know the shared secret <code>jwattools.cluster.secret</code>
+ * before any job is sent, without sending the secret itself. A range job
+ * validates the gzip members starting in [start, end), a job which is not
+ * a range validates the whole file.
+ */
+public class ClusterProtocol {
+
+	/** Protocol magic, "JWCL". */
+	public static final int MAGIC = 0x4a57434c;
+
+	public static final int VERSION = 2;
+
+	public static final int DEFAULT_PORT = 9781;
+
+	public static final byte HELLO = 1;
+	public static final byte REQUEST = 2;
+	public static final byte HEARTBEAT = 3;
+	public static final byte RESULT = 4;
+	public static final byte FAILED = 5;
+
+	public static final byte JOB = 16;
+	public static final byte BYE = 17;
+	public static final byte CHALLENGE = 18;
+	public static final byte WELCOME = 19;
+	public static final byte PAUSE = 20;
+	public static final byte RESUME = 21;
+	public static final byte CANCEL = 22;
+
+	public static final int NONCE_LENGTH = 32;
+
+	public static final String ROLE_WORKER = "worker";
+
+	public static final String ROLE_COORDINATOR = "coordinator";
+
+	protected static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	protected static final SecureRandom random = new SecureRandom();
+
+	/** Interval between worker heartbeats. */
+	public static final long HEARTBEAT_INTERVAL = 5 * 1000L;
+
+	/** Time without any message after which a worker is considered lost. */
+	public static final long WORKER_TIMEOUT = 30 * 1000L;
+
+	protected ClusterProtocol() {
+	}
+
+	/**
+	 * Returns the shared secret from <code>jwattools.cluster.secret</code>.
+	 * @return secret or null if not set
+	 */
+	public static byte[] getSecret() {
+		String secret = Settings.getProperty( "jwattools.cluster.secret", "" );
+		return (secret.length() > 0) ? secret.getBytes( UTF8 ) : null;
+	}
+
+	public static byte[] newNonce() {
+		byte[] nonce = new byte[ NONCE_LENGTH ];
+		random.nextBytes( nonce );
+		return nonce;
+	}
+
+	public static byte[] readNonce(DataInputStream in) throws IOException {
+		byte[] nonce = new byte[ NONCE_LENGTH ];
+		in.readFully( nonce );
+		return nonce;
+	}
+
+	/**
+	 * Compute the proof that the sender knows the shared secret.
+	 * @param secret shared secret
+	 * @param role role of the sender
+	 * @param senderNonce nonce sent by the sender
+	 * @param receiverNonce nonce sent by the receiver
+	 * @return HMAC-SHA256 of the role and nonces
+	 */
+	public static byte[] mac(byte[] secret, String role, byte[] senderNonce, byte[] receiverNonce) {
+		try {
+			Mac mac = Mac.getInstance( "HmacSHA256" );
+			mac.init( new SecretKeySpec( secret, "HmacSHA256" ) );
+			mac.update( role.getBytes( UTF8 ) );
+			mac.update( senderNonce );
+			mac.update( receiverNonce );
+			return mac.doFinal();
+		}
+		catch (GeneralSecurityException e) {
+			throw new IllegalStateException( e );
+		}
+	}
+
+	/**
+	 * Read a proof and check it in constant time.
+	 * @return true if the sender knows the shared secret
+	 */
+	public static boolean verify(DataInputStream in, byte[] secret, String role, byte[] senderNonce, byte[] receiverNonce) throws IOException {
+		byte[] expected = mac( secret, role, senderNonce, receiverNonce );
+		byte[] received = new byte[ expected.length ];
+		in.readFully( received );
+		return MessageDigest.isEqual( expected, received );
+	}
+
+}
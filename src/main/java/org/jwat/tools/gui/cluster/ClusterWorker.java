@@ -0,0 +1,419 @@
+package org.jwat.tools.gui.cluster;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.jwat.tools.gui.library.ArchiveFileBase;
+import org.jwat.tools.gui.library.ArchiveFileImpl;
+import org.jwat.tools.gui.library.RangeValidator;
+import org.jwat.tools.gui.library.ValidationJob;
+import org.jwat.tools.tasks.test.TestFileResult;
+
+/**
+ * Validation worker process. Connects to a <code>ClusterCoordinator</code>,
+ * asks for one job per free slot and validates each job with the same code
+ * as local validation, reporting progress with every heartbeat. Jobs are
+ * paused, resumed and cancelled at their checkpoints when the coordinator
+ * asks. Reconnects if the coordinator goes away, until it says goodbye.
+ *
+ * Only talks to a coordinator which proves it knows the shared secret
+ * <code>jwattools.cluster.secret</code>, which must be set.
+ *
+ * Usage: <code>--worker host[:port] [--slots n]</code>
+ */
+public class ClusterWorker implements Runnable {
+
+	/** Delay before reconnecting to a lost coordinator. */
+	protected static final long RECONNECT_DELAY = 5 * 1000L;
+
+	protected String host;
+
+	protected int port;
+
+	protected int slots;
+
+	/** Shared secret the coordinator must prove it knows. */
+	protected byte[] secret;
+
+	protected volatile boolean exit = false;
+
+	protected ExecutorService executor;
+
+	protected Socket socket;
+
+	protected volatile DataOutputStream out;
+
+	/** Jobs currently validating, reported with each heartbeat. */
+	protected List<WorkerJob> running = new ArrayList<WorkerJob>();
+
+	class WorkerJob implements Runnable {
+		long id;
+		ArchiveFileBase archiveFile;
+		long start;
+		long end;
+		boolean bRange;
+		RangeValidator rangeValidator;
+		/** Pauses and cancels the validation at its checkpoints. */
+		ValidationJob control;
+		/** Connection the job was received on, results are dropped after a reconnect. */
+		DataOutputStream jobOut;
+
+		@Override
+		public void run() {
+			long consumed = 0;
+			int records = 0;
+			int errors = 0;
+			int warnings = 0;
+			int exceptions = 0;
+			boolean bCompleted = false;
+			String failure = null;
+			try {
+				control.checkpoint();
+				if ( !archiveFile.file.isFile() ) {
+					failure = "File not found";
+				}
+				else if ( bRange ) {
+					rangeValidator = RangeValidator.getRangeInstance( archiveFile );
+					if ( rangeValidator == null ) {
+						failure = "Not a compressed ARC/WARC file";
+					}
+					else {
+						TestFileResult result = rangeValidator.validatePart( start, end );
+						consumed = rangeValidator.getConsumed();
+						records = result.arcRecords + result.warcRecords + result.gzipEntries;
+						errors = result.arcErrors + result.warcErrors + result.gzipErrors;
+						warnings = result.arcWarnings + result.warcWarnings + result.gzipWarnings;
+						exceptions = result.runtimeErrors;
+						bCompleted = true;
+					}
+				}
+				else {
+					archiveFile.validate();
+					consumed = archiveFile.consumed;
+					records = archiveFile.records;
+					errors = archiveFile.errors;
+					warnings = archiveFile.warnings;
+					exceptions = archiveFile.exceptions;
+					bCompleted = archiveFile.bCompleted && !control.isCancelled();
+				}
+			}
+			catch (CancellationException e) {
+				// Cancelled by the coordinator, reported as not completed.
+			}
+			catch (Throwable t) {
+				failure = t.toString();
+			}
+			synchronized ( ClusterWorker.this ) {
+				running.remove( this );
+			}
+			DataOutputStream current = out;
+			try {
+				if ( current == jobOut ) {
+					synchronized ( current ) {
+						if ( failure != null ) {
+							current.writeByte( ClusterProtocol.FAILED );
+							current.writeLong( id );
+							current.writeUTF( failure );
+						}
+						else {
+							current.writeByte( ClusterProtocol.RESULT );
+							current.writeLong( id );
+							current.writeBoolean( bCompleted );
+							writeCounters( current, consumed, records, errors, warnings, exceptions );
+						}
+						current.writeByte( ClusterProtocol.REQUEST );
+						current.writeInt( 1 );
+						current.flush();
+					}
+				}
+				else if ( current != null ) {
+					// Received before a reconnect, the coordinator has requeued it. Free the slot.
+					synchronized ( current ) {
+						current.writeByte( ClusterProtocol.REQUEST );
+						current.writeInt( 1 );
+						current.flush();
+					}
+				}
+			}
+			catch (IOException e) {
+				// Connection lost, the coordinator requeues the job.
+			}
+		}
+
+		long getConsumed() {
+			return (rangeValidator != null) ? rangeValidator.getConsumed() : archiveFile.consumed;
+		}
+	}
+
+	public ClusterWorker(String host, int port, int slots, byte[] secret) {
+		this.host = host;
+		this.port = port;
+		this.slots = slots;
+		this.secret = secret;
+		executor = Executors.newFixedThreadPool( slots, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread( r, "Cluster-Validator" );
+				t.setDaemon( true );
+				return t;
+			}
+		} );
+	}
+
+	public static void main(String[] args) {
+		String address = null;
+		int slots = Runtime.getRuntime().availableProcessors();
+		for ( int i=0; i<args.length; ++i ) {
+			if ( "--worker".equals( args[ i ] ) && i + 1 < args.length ) {
+				address = args[ ++i ];
+			}
+			else if ( "--slots".equals( args[ i ] ) && i + 1 < args.length ) {
+				slots = Integer.parseInt( args[ ++i ] );
+			}
+		}
+		if ( address == null || slots < 1 ) {
+			System.err.println( "usage: --worker host[:port] [--slots n]" );
+			System.exit( 2 );
+		}
+		byte[] secret = ClusterProtocol.getSecret();
+		if ( secret == null ) {
+			System.err.println( "jwattools.cluster.secret must be set to the coordinator's secret" );
+			System.exit( 2 );
+		}
+		String host = address;
+		int port = ClusterProtocol.DEFAULT_PORT;
+		int idx = address.lastIndexOf( ':' );
+		if ( idx != -1 ) {
+			host = address.substring( 0, idx );
+			port = Integer.parseInt( address.substring( idx + 1 ) );
+		}
+		ArchiveFileBase.bKeepIndex = false;
+		new ClusterWorker( host, port, slots, secret ).run();
+		System.exit( 0 );
+	}
+
+	/**
+	 * Start the worker on a daemon thread, used to run a worker inside the coordinator process.
+	 */
+	public void start() {
+		Thread t = new Thread( this, "Cluster-Worker" );
+		t.setDaemon( true );
+		t.start();
+	}
+
+	public void exit() {
+		exit = true;
+		closeSocket();
+	}
+
+	@Override
+	public void run() {
+		while ( !exit ) {
+			try {
+				connect();
+			}
+			catch (IOException e) {
+				if ( !exit ) {
+					System.err.println( "Cluster coordinator " + host + ":" + port + " unavailable: " + e.getMessage() );
+				}
+			}
+			finally {
+				closeSocket();
+			}
+			if ( !exit ) {
+				try {
+					Thread.sleep( RECONNECT_DELAY );
+				}
+				catch (InterruptedException e) {
+				}
+			}
+		}
+		executor.shutdownNow();
+	}
+
+	protected void connect() throws IOException {
+		socket = new Socket( host, port );
+		socket.setTcpNoDelay( true );
+		DataInputStream in = new DataInputStream( new BufferedInputStream( socket.getInputStream() ) );
+		final DataOutputStream connOut = new DataOutputStream( new BufferedOutputStream( socket.getOutputStream() ) );
+		handshake( in, connOut );
+		out = connOut;
+		synchronized ( connOut ) {
+			// Jobs still running from an earlier connection keep their slots.
+			connOut.writeByte( ClusterProtocol.REQUEST );
+			connOut.writeInt( Math.max( 0, slots - runningCount() ) );
+			connOut.flush();
+		}
+		Thread heartbeat = new Thread( new Runnable() {
+			@Override
+			public void run() {
+				while ( !exit && out == connOut ) {
+					try {
+						Thread.sleep( ClusterProtocol.HEARTBEAT_INTERVAL );
+						sendHeartbeat( connOut );
+					}
+					catch (InterruptedException e) {
+					}
+					catch (IOException e) {
+						break;
+					}
+				}
+			}
+		}, "Cluster-Heartbeat" );
+		heartbeat.setDaemon( true );
+		heartbeat.start();
+		try {
+			while ( !exit ) {
+				byte type = in.readByte();
+				switch ( type ) {
+				case ClusterProtocol.JOB:
+					WorkerJob job = new WorkerJob();
+					job.id = in.readLong();
+					job.archiveFile = new ArchiveFileImpl();
+					job.archiveFile.file = new File( in.readUTF() );
+					job.archiveFile.path = job.archiveFile.file.getParent();
+					job.archiveFile.filename = job.archiveFile.file.getName();
+					job.archiveFile.fileSize = job.archiveFile.file.length();
+					job.start = in.readLong();
+					job.end = in.readLong();
+					job.bRange = in.readBoolean();
+					job.archiveFile.bCountConsumed = false;
+					job.control = new ValidationJob( job.archiveFile, null );
+					job.archiveFile.job = job.control;
+					job.jobOut = connOut;
+					synchronized ( this ) {
+						running.add( job );
+					}
+					executor.execute( job );
+					break;
+				case ClusterProtocol.PAUSE:
+				case ClusterProtocol.RESUME:
+				case ClusterProtocol.CANCEL:
+					control( in.readLong(), type );
+					break;
+				case ClusterProtocol.BYE:
+					exit = true;
+					break;
+				default:
+					throw new IOException( "Unknown message type " + type );
+				}
+			}
+		}
+		finally {
+			out = null;
+			heartbeat.interrupt();
+		}
+	}
+
+	/**
+	 * Answer the coordinator's challenge and check that it knows the shared secret too.
+	 */
+	protected void handshake(DataInputStream in, DataOutputStream connOut) throws IOException {
+		socket.setSoTimeout( (int)ClusterProtocol.WORKER_TIMEOUT );
+		if ( in.readByte() != ClusterProtocol.CHALLENGE || in.readInt() != ClusterProtocol.MAGIC || in.readInt() != ClusterProtocol.VERSION ) {
+			throw new IOException( "Invalid handshake from coordinator" );
+		}
+		byte[] coordinatorNonce = ClusterProtocol.readNonce( in );
+		byte[] nonce = ClusterProtocol.newNonce();
+		connOut.writeByte( ClusterProtocol.HELLO );
+		connOut.writeInt( ClusterProtocol.MAGIC );
+		connOut.writeInt( ClusterProtocol.VERSION );
+		connOut.write( nonce );
+		connOut.write( ClusterProtocol.mac( secret, ClusterProtocol.ROLE_WORKER, nonce, coordinatorNonce ) );
+		connOut.writeUTF( InetAddress.getLocalHost().getHostName() );
+		connOut.writeInt( slots );
+		connOut.flush();
+		if ( in.readByte() != ClusterProtocol.WELCOME
+				|| !ClusterProtocol.verify( in, secret, ClusterProtocol.ROLE_COORDINATOR, coordinatorNonce, nonce ) ) {
+			throw new IOException( "Coordinator does not know the cluster secret" );
+		}
+		socket.setSoTimeout( 0 );
+	}
+
+	/**
+	 * Pause, resume or cancel a running job.
+	 * @param id job id
+	 * @param type <code>PAUSE</code>, <code>RESUME</code> or <code>CANCEL</code>
+	 */
+	protected void control(long id, byte type) {
+		WorkerJob target = null;
+		synchronized ( this ) {
+			for ( WorkerJob job : running ) {
+				if ( job.id == id ) {
+					target = job;
+				}
+			}
+		}
+		if ( target == null ) {
+			return;
+		}
+		switch ( type ) {
+		case ClusterProtocol.PAUSE:
+			target.control.pause();
+			break;
+		case ClusterProtocol.RESUME:
+			target.control.resume();
+			break;
+		default:
+			target.control.cancel();
+			break;
+		}
+	}
+
+	protected synchronized int runningCount() {
+		return running.size();
+	}
+
+	protected void sendHeartbeat(DataOutputStream connOut) throws IOException {
+		List<WorkerJob> jobs;
+		synchronized ( this ) {
+			jobs = new ArrayList<WorkerJob>();
+			for ( WorkerJob job : running ) {
+				if ( job.jobOut == connOut ) {
+					jobs.add( job );
+				}
+			}
+		}
+		synchronized ( connOut ) {
+			connOut.writeByte( ClusterProtocol.HEARTBEAT );
+			connOut.writeInt( jobs.size() );
+			for ( WorkerJob job : jobs ) {
+				connOut.writeLong( job.id );
+				writeCounters( connOut, job.getConsumed(), job.archiveFile.records, job.archiveFile.errors, job.archiveFile.warnings, job.archiveFile.exceptions );
+			}
+			connOut.flush();
+		}
+	}
+
+	protected static void writeCounters(DataOutputStream out, long consumed, int records, int errors, int warnings, int exceptions) throws IOException {
+		out.writeLong( consumed );
+		out.writeInt( records );
+		out.writeInt( errors );
+		out.writeInt( warnings );
+		out.writeInt( exceptions );
+	}
+
+	protected void closeSocket() {
+		Socket s = socket;
+		if ( s != null ) {
+			try {
+				s.close();
+			}
+			catch (IOException e) {
+			}
+		}
+	}
+
+}
@@ -3,8 +3,6 @@ package org.jwat.tools.gui.explorer;
 import java.util.Date;
 
 import org.jwat.common.ContentType;
-import org.jwat.common.Diagnosis;
-import org.jwat.common.Diagnostics;
 
 public class ArchiveEntry {
 
@@ -26,7 +24,11 @@ public class ArchiveEntry {
 
 	public String name;
 
-	public Diagnostics<Diagnosis> diagnostics;
+	/** Number of errors, the diagnoses are looked up when needed. */
+	public int errors;
+
+	/** Number of warnings, the diagnoses are looked up when needed. */
+	public int warnings;
 
 	public String toString() {
         return name;
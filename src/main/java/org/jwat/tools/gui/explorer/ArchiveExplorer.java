@@ -2,6 +2,8 @@ package org.jwat.tools.gui.explorer;
 
 import java.awt.Dimension;
 import java.awt.GridLayout;
+import java.awt.Image;
+import java.awt.Toolkit;
 import java.awt.image.BufferedImage;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
@@ -190,21 +192,14 @@ public class ArchiveExplorer extends JPanel implements TreeSelectionListener {
                     StyledDocument doc = (StyledDocument) outputPane.getDocument();
                     Style style = doc.addStyle("StyleName", null);
 
-                    byte[] image;
+                    Image image;
                     if (entry.name.toLowerCase().matches("^.+\\.bmp$")) {
                         BufferedImage bmp = ImageIO.read(input);
                         ByteArrayOutputStream jpg = new ByteArrayOutputStream();
                         ImageIO.write(bmp, "jpg", jpg);
-                        image = jpg.toByteArray();
+                        image = Toolkit.getDefaultToolkit().createImage(jpg.toByteArray());
                     } else {
-                        //image = IOUtils.toByteArray(input);
-                    	image = new byte[lookup.payload_length];
-                    	int offset = 0;
-                    	int numread = 0;
-                    	while (numread != -1 && offset < image.length) {
-                    		offset += numread;
-                    		numread = input.read(image, offset, image.length - offset);
-                    	}
+                        image = lookup.readImage(input, entry.name.toLowerCase().endsWith(".gif"));
                     }
 
                     StyleConstants.setIcon(style, new ImageIcon(image));
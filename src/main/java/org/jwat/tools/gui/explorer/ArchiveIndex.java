@@ -0,0 +1,375 @@
+package org.jwat.tools.gui.explorer;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.jwat.common.ContentType;
+
+/**
+ * Record index of an archive stored column by column in primitive arrays.
+ * An <code>ArchiveEntry</code> with its strings, date and diagnostics costs
+ * around 600 bytes per record; here a record takes 37 bytes plus its URI in
+ * UTF-8. Content types are dictionary encoded and error and warning counts
+ * are packed into one int, saturating at 65535 each. The diagnoses
+ * themselves are not kept, the lister derives them again from the record
+ * when it is selected.
+ *
+ * Entries are added as <code>ArchiveEntry</code> objects and handed out as
+ * new ones by <code>get</code>, the table model reads the columns directly.
+ * All methods are synchronized, an index may be read on the EDT while it is
+ * still being filled.
+ */
+public class ArchiveIndex {
+
+	public static final int FIELD_INDEX = 0;
+	public static final int FIELD_ERRORS = 1;
+	public static final int FIELD_WARNINGS = 2;
+	public static final int FIELD_OFFSET = 3;
+	public static final int FIELD_URI = 4;
+	public static final int FIELD_DATE = 5;
+	public static final int FIELD_LENGTH = 6;
+
+	/** Date column value of records without a date. */
+	public static final long NO_DATE = Long.MIN_VALUE;
+
+	protected static final Charset UTF8 = Charset.forName( "UTF-8" );
+
+	protected static final byte FLAG_COMPRESSED = 1;
+
+	protected static final byte FLAG_URI = 2;
+
+	protected static final int MAX_COUNT = 0xffff;
+
+	protected int size = 0;
+
+	protected long[] offsets;
+
+	protected long[] lengths;
+
+	protected long[] dates;
+
+	/** Content type dictionary ids, -1 for none. */
+	protected int[] contentTypes;
+
+	/** Error count in the high and warning count in the low 16 bits. */
+	protected int[] counts;
+
+	protected byte[] flags;
+
+	/** End of each URI in the arena, it starts where the previous one ends. */
+	protected int[] uriEnds;
+
+	protected byte[] arena;
+
+	protected int arenaSize = 0;
+
+	protected List<ContentType> contentTypeList = new ArrayList<ContentType>();
+
+	protected Map<String, Integer> contentTypeIds = new HashMap<String, Integer>();
+
+	/** Digest mismatches are included in the error counts. */
+	protected boolean bDigestsVerified = false;
+
+	public ArchiveIndex() {
+		this( 1024 );
+	}
+
+	public ArchiveIndex(int capacity) {
+		capacity = Math.max( 16, capacity );
+		offsets = new long[ capacity ];
+		lengths = new long[ capacity ];
+		dates = new long[ capacity ];
+		contentTypes = new int[ capacity ];
+		counts = new int[ capacity ];
+		flags = new byte[ capacity ];
+		uriEnds = new int[ capacity ];
+		arena = new byte[ capacity * 64 ];
+	}
+
+	public synchronized int size() {
+		return size;
+	}
+
+	public synchronized boolean isDigestsVerified() {
+		return bDigestsVerified;
+	}
+
+	public synchronized void setDigestsVerified(boolean bDigestsVerified) {
+		this.bDigestsVerified = bDigestsVerified;
+	}
+
+	/**
+	 * Append an entry. The entry's index is set to its position.
+	 * @param entry index entry
+	 * @return position of the entry
+	 */
+	public synchronized int add(ArchiveEntry entry) {
+		if ( size == offsets.length ) {
+			grow( size + (size >> 1) );
+		}
+		int i = size;
+		offsets[ i ] = entry.offset;
+		lengths[ i ] = entry.contentLength;
+		dates[ i ] = (entry.date != null) ? entry.date.getTime() : NO_DATE;
+		contentTypes[ i ] = contentTypeId( entry.contentType );
+		counts[ i ] = pack( entry.errors, entry.warnings );
+		byte flag = entry.bCompressed ? FLAG_COMPRESSED : 0;
+		if ( entry.uri != null ) {
+			flag |= FLAG_URI;
+			byte[] bytes = entry.uri.getBytes( UTF8 );
+			if ( arenaSize + bytes.length > arena.length ) {
+				arena = Arrays.copyOf( arena, Math.max( arenaSize + bytes.length, arena.length + (arena.length >> 1) ) );
+			}
+			System.arraycopy( bytes, 0, arena, arenaSize, bytes.length );
+			arenaSize += bytes.length;
+		}
+		flags[ i ] = flag;
+		uriEnds[ i ] = arenaSize;
+		entry.index = i;
+		++size;
+		return i;
+	}
+
+	/**
+	 * Append all entries of another index, renumbering them.
+	 * @param index index to append
+	 */
+	public synchronized void addAll(ArchiveIndex index) {
+		int n = index.size();
+		for ( int i=0; i<n; ++i ) {
+			add( index.get( i ) );
+		}
+	}
+
+	protected void grow(int capacity) {
+		offsets = Arrays.copyOf( offsets, capacity );
+		lengths = Arrays.copyOf( lengths, capacity );
+		dates = Arrays.copyOf( dates, capacity );
+		contentTypes = Arrays.copyOf( contentTypes, capacity );
+		counts = Arrays.copyOf( counts, capacity );
+		flags = Arrays.copyOf( flags, capacity );
+		uriEnds = Arrays.copyOf( uriEnds, capacity );
+	}
+
+	/**
+	 * Release the unused capacity once the index is complete.
+	 */
+	public synchronized void trimToSize() {
+		if ( size < offsets.length ) {
+			grow( Math.max( 1, size ) );
+		}
+		if ( arenaSize < arena.length ) {
+			arena = Arrays.copyOf( arena, arenaSize );
+		}
+	}
+
+	protected int contentTypeId(ContentType contentType) {
+		if ( contentType == null ) {
+			return -1;
+		}
+		String key = contentType.toString();
+		Integer id = contentTypeIds.get( key );
+		if ( id == null ) {
+			id = contentTypeList.size();
+			contentTypeList.add( contentType );
+			contentTypeIds.put( key, id );
+		}
+		return id;
+	}
+
+	protected static int pack(int errors, int warnings) {
+		return (Math.min( errors, MAX_COUNT ) << 16) | Math.min( warnings, MAX_COUNT );
+	}
+
+	/**
+	 * Count errors found after the record was added, such as digest mismatches.
+	 * @param i position of the entry
+	 * @param errors number of errors to add
+	 */
+	public synchronized void addErrors(int i, int errors) {
+		counts[ i ] = pack( getErrors( i ) + errors, getWarnings( i ) );
+	}
+
+	/**
+	 * Returns a new entry with the values of a record.
+	 * @param i position of the entry
+	 * @return index entry
+	 */
+	public synchronized ArchiveEntry get(int i) {
+		ArchiveEntry entry = new ArchiveEntry();
+		entry.index = i;
+		entry.bCompressed = isCompressed( i );
+		entry.offset = offsets[ i ];
+		entry.offsetStr = getOffsetString( i );
+		entry.uri = getUri( i );
+		entry.date = getDate( i );
+		entry.contentLength = lengths[ i ];
+		entry.contentType = getContentType( i );
+		entry.errors = getErrors( i );
+		entry.warnings = getWarnings( i );
+		return entry;
+	}
+
+	public synchronized boolean isCompressed(int i) {
+		return (flags[ i ] & FLAG_COMPRESSED) != 0;
+	}
+
+	public synchronized long getOffset(int i) {
+		return offsets[ i ];
+	}
+
+	public synchronized String getOffsetString(int i) {
+		return Long.toHexString( offsets[ i ] ) + " / " + Long.toString( offsets[ i ] );
+	}
+
+	public synchronized long getContentLength(int i) {
+		return lengths[ i ];
+	}
+
+	/**
+	 * @param i position of the entry
+	 * @return date in milliseconds or <code>NO_DATE</code>
+	 */
+	public synchronized long getDateMillis(int i) {
+		return dates[ i ];
+	}
+
+	public synchronized Date getDate(int i) {
+		return (dates[ i ] != NO_DATE) ? new Date( dates[ i ] ) : null;
+	}
+
+	public synchronized ContentType getContentType(int i) {
+		return (contentTypes[ i ] >= 0) ? contentTypeList.get( contentTypes[ i ] ) : null;
+	}
+
+	public synchronized int getErrors(int i) {
+		return counts[ i ] >>> 16;
+	}
+
+	public synchronized int getWarnings(int i) {
+		return counts[ i ] & MAX_COUNT;
+	}
+
+	public synchronized String getUri(int i) {
+		if ( (flags[ i ] & FLAG_URI) == 0 ) {
+			return null;
+		}
+		int start = (i > 0) ? uriEnds[ i - 1 ] : 0;
+		return new String( arena, start, uriEnds[ i ] - start, UTF8 );
+	}
+
+	/**
+	 * Returns an estimate of the heap used by the index.
+	 * @return bytes used
+	 */
+	public synchronized long getMemoryUsage() {
+		return (long)offsets.length * 37L + arena.length;
+	}
+
+	/**
+	 * Sort the first <code>count</code> entries by one field, comparing the
+	 * columns directly. The sort is stable, equal entries stay in index order.
+	 * @param field field to sort on, one of the <code>FIELD_</code> constants
+	 * @param bAscending ascending or descending order
+	 * @param count number of entries to sort
+	 * @return positions of the entries in sorted order
+	 */
+	public synchronized int[] sort(int field, boolean bAscending, int count) {
+		int[] order = new int[ count ];
+		for ( int i=0; i<count; ++i ) {
+			order[ i ] = i;
+		}
+		if ( field != FIELD_INDEX ) {
+			mergeSort( order, new int[ count ], 0, count, field, bAscending ? 1 : -1 );
+		}
+		else if ( !bAscending ) {
+			for ( int i=0; i<count; ++i ) {
+				order[ i ] = count - 1 - i;
+			}
+		}
+		return order;
+	}
+
+	protected void mergeSort(int[] a, int[] tmp, int lo, int hi, int field, int sign) {
+		if ( hi - lo < 16 ) {
+			int x;
+			int j;
+			for ( int i=lo + 1; i<hi; ++i ) {
+				x = a[ i ];
+				j = i - 1;
+				while ( j >= lo && sign * compare( field, a[ j ], x ) > 0 ) {
+					a[ j + 1 ] = a[ j ];
+					--j;
+				}
+				a[ j + 1 ] = x;
+			}
+			return;
+		}
+		int mid = (lo + hi) >>> 1;
+		mergeSort( a, tmp, lo, mid, field, sign );
+		mergeSort( a, tmp, mid, hi, field, sign );
+		if ( sign * compare( field, a[ mid - 1 ], a[ mid ] ) <= 0 ) {
+			return;
+		}
+		System.arraycopy( a, lo, tmp, lo, hi - lo );
+		int i = lo;
+		int j = mid;
+		for ( int k=lo; k<hi; ++k ) {
+			if ( j >= hi || (i < mid && sign * compare( field, tmp[ i ], tmp[ j ] ) <= 0) ) {
+				a[ k ] = tmp[ i++ ];
+			}
+			else {
+				a[ k ] = tmp[ j++ ];
+			}
+		}
+	}
+
+	protected int compare(int field, int x, int y) {
+		switch ( field ) {
+		case FIELD_ERRORS:
+			return Integer.compare( counts[ x ] >>> 16, counts[ y ] >>> 16 );
+		case FIELD_WARNINGS:
+			return Integer.compare( counts[ x ] & MAX_COUNT, counts[ y ] & MAX_COUNT );
+		case FIELD_OFFSET:
+			return Long.compare( offsets[ x ], offsets[ y ] );
+		case FIELD_URI:
+			return compareUri( x, y );
+		case FIELD_DATE:
+			return Long.compare( dates[ x ], dates[ y ] );
+		case FIELD_LENGTH:
+			return Long.compare( lengths[ x ], lengths[ y ] );
+		default:
+			return Integer.compare( x, y );
+		}
+	}
+
+	/**
+	 * Compare URIs by their UTF-8 bytes, which orders them by code point.
+	 * Records without a URI come first.
+	 */
+	protected int compareUri(int x, int y) {
+		boolean bX = (flags[ x ] & FLAG_URI) != 0;
+		boolean bY = (flags[ y ] & FLAG_URI) != 0;
+		if ( !bX || !bY ) {
+			return (bX ? 1 : 0) - (bY ? 1 : 0);
+		}
+		int i = (x > 0) ? uriEnds[ x - 1 ] : 0;
+		int j = (y > 0) ? uriEnds[ y - 1 ] : 0;
+		int iEnd = uriEnds[ x ];
+		int jEnd = uriEnds[ y ];
+		int c;
+		while ( i < iEnd && j < jEnd ) {
+			c = (arena[ i++ ] & 255) - (arena[ j++ ] & 255);
+			if ( c != 0 ) {
+				return c;
+			}
+		}
+		return (iEnd - i) - (jEnd - j);
+	}
+
+}
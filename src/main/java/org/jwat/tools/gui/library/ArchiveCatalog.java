@@ -0,0 +1,351 @@
+package org.jwat.tools.gui.library;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent catalog of validation results keyed by archive path.
+ * An entry is only reused as long as the size and modification time of the
+ * archive are unchanged, otherwise the archive must be validated again.
+ * Entries are also indexed by content fingerprint, so the results of an
+ * archive which has been moved or renamed can be found without reading
+ * more than the fingerprint samples.
+ *
+ * Changes are saved on a background thread at most once per
+ * <code>SAVE_INTERVAL</code>, so validators never wait for the disk.
+ */
+public class ArchiveCatalog {
+
+	/** Catalog file magic, "JWAC". */
+	protected static final int MAGIC = 0x4a574143;
+
+	protected static final int VERSION = 2;
+
+	/** Minimum interval between automatic saves of a dirty catalog. */
+	protected static final long SAVE_INTERVAL = 30 * 1000L;
+
+	protected File catalogFile;
+
+	protected Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	protected Map<String, Entry> fingerprints = new HashMap<String, Entry>();
+
+	protected boolean bDirty = false;
+
+	protected boolean bSaveScheduled = false;
+
+	protected volatile long lastSave = System.currentTimeMillis();
+
+	/** Serializes catalog writes. */
+	protected final Object saveLock = new Object();
+
+	public static class Entry {
+
+		public String path;
+
+		public String fingerprint;
+
+		public long fileSize;
+
+		public long lastModified;
+
+		public int records;
+
+		public int errors;
+
+		public int warnings;
+
+		public int exceptions;
+
+		public boolean bCompleted;
+
+		public boolean isUnchanged(long fileSize, long lastModified) {
+			return this.fileSize == fileSize && this.lastModified == lastModified;
+		}
+
+		public void copyTo(ArchiveFileBase archiveFile) {
+			archiveFile.records = records;
+			archiveFile.errors = errors;
+			archiveFile.warnings = warnings;
+			archiveFile.exceptions = exceptions;
+			archiveFile.bCompleted = bCompleted;
+			if ( fingerprint != null ) {
+				archiveFile.fingerprint = fingerprint;
+			}
+		}
+
+	}
+
+	public ArchiveCatalog(File catalogFile) {
+		this.catalogFile = catalogFile;
+	}
+
+	/**
+	 * Load the catalog from disk. A missing or unreadable catalog leaves it empty.
+	 */
+	public synchronized void load() {
+		entries.clear();
+		fingerprints.clear();
+		if ( !catalogFile.exists() ) {
+			return;
+		}
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream( new BufferedInputStream( new FileInputStream( catalogFile ), 65536 ) );
+			int version;
+			if ( in.readInt() != MAGIC || (version = in.readInt()) < 1 || version > VERSION ) {
+				System.err.println( "Ignoring incompatible catalog: " + catalogFile.getPath() );
+				return;
+			}
+			int count = in.readInt();
+			Entry entry;
+			for ( int i=0; i<count; ++i ) {
+				entry = new Entry();
+				entry.path = in.readUTF();
+				if ( version >= 2 && in.readBoolean() ) {
+					entry.fingerprint = in.readUTF();
+				}
+				entry.fileSize = in.readLong();
+				entry.lastModified = in.readLong();
+				entry.records = in.readInt();
+				entry.errors = in.readInt();
+				entry.warnings = in.readInt();
+				entry.exceptions = in.readInt();
+				entry.bCompleted = in.readBoolean();
+				entries.put( entry.path, entry );
+				if ( entry.fingerprint != null && entry.bCompleted ) {
+					fingerprints.put( entry.fingerprint, entry );
+				}
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		finally {
+			if ( in != null ) {
+				try {
+					in.close();
+				}
+				catch (IOException e) {
+				}
+			}
+		}
+		bDirty = false;
+	}
+
+	/**
+	 * Save the catalog on a background thread once <code>SAVE_INTERVAL</code>
+	 * has passed since the last save, unless that is pending already.
+	 * Must be called while holding the lock.
+	 */
+	protected void scheduleSave() {
+		bDirty = true;
+		if ( bSaveScheduled ) {
+			return;
+		}
+		bSaveScheduled = true;
+		final long delay = lastSave + SAVE_INTERVAL - System.currentTimeMillis();
+		Thread thread = new Thread( new Runnable() {
+			@Override
+			public void run() {
+				if ( delay > 0 ) {
+					try {
+						Thread.sleep( delay );
+					}
+					catch (InterruptedException e) {
+					}
+				}
+				saveIfDirty();
+			}
+		}, "ArchiveCatalog save" );
+		thread.setDaemon( true );
+		thread.start();
+	}
+
+	/**
+	 * Save the catalog if it changed since it was last saved.
+	 */
+	protected void saveIfDirty() {
+		synchronized ( this ) {
+			bSaveScheduled = false;
+			if ( !bDirty ) {
+				return;
+			}
+		}
+		save();
+	}
+
+	/**
+	 * Write the catalog to a temporary file and move it in place of the old one.
+	 * The catalog is only locked while its entries are copied.
+	 */
+	public void save() {
+		synchronized ( saveLock ) {
+			List<Entry> savedEntries;
+			synchronized ( this ) {
+				savedEntries = new ArrayList<Entry>( entries.size() );
+				Entry copy;
+				for ( Entry entry : entries.values() ) {
+					copy = new Entry();
+					copy.path = entry.path;
+					copy.fingerprint = entry.fingerprint;
+					copy.fileSize = entry.fileSize;
+					copy.lastModified = entry.lastModified;
+					copy.records = entry.records;
+					copy.errors = entry.errors;
+					copy.warnings = entry.warnings;
+					copy.exceptions = entry.exceptions;
+					copy.bCompleted = entry.bCompleted;
+					savedEntries.add( copy );
+				}
+				bDirty = false;
+			}
+			if ( !write( savedEntries ) ) {
+				synchronized ( this ) {
+					bDirty = true;
+				}
+			}
+			lastSave = System.currentTimeMillis();
+		}
+	}
+
+	protected boolean write(List<Entry> savedEntries) {
+		File tmpFile = new File( catalogFile.getPath() + ".tmp" );
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tmpFile ), 65536 ) );
+			out.writeInt( MAGIC );
+			out.writeInt( VERSION );
+			out.writeInt( savedEntries.size() );
+			for ( Entry entry : savedEntries ) {
+				out.writeUTF( entry.path );
+				out.writeBoolean( entry.fingerprint != null );
+				if ( entry.fingerprint != null ) {
+					out.writeUTF( entry.fingerprint );
+				}
+				out.writeLong( entry.fileSize );
+				out.writeLong( entry.lastModified );
+				out.writeInt( entry.records );
+				out.writeInt( entry.errors );
+				out.writeInt( entry.warnings );
+				out.writeInt( entry.exceptions );
+				out.writeBoolean( entry.bCompleted );
+			}
+			out.close();
+			out = null;
+			if ( catalogFile.exists() && !catalogFile.delete() ) {
+				throw new IOException( "Unable to replace catalog: " + catalogFile.getPath() );
+			}
+			if ( !tmpFile.renameTo( catalogFile ) ) {
+				throw new IOException( "Unable to rename catalog: " + tmpFile.getPath() );
+			}
+			return true;
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+			return false;
+		}
+		finally {
+			if ( out != null ) {
+				try {
+					out.close();
+				}
+				catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the catalog entry for the file, if it is still valid for the given size and mtime.
+	 * @param file archive file
+	 * @param fileSize current size of the archive
+	 * @param lastModified current modification time of the archive
+	 * @return catalog entry or null if the file is unknown or has changed
+	 */
+	public synchronized Entry lookup(File file, long fileSize, long lastModified) {
+		Entry entry = entries.get( file.getAbsolutePath() );
+		if ( entry != null && !entry.isUnchanged( fileSize, lastModified ) ) {
+			entry = null;
+		}
+		return entry;
+	}
+
+	/**
+	 * Returns the completed catalog entry with the given content fingerprint, if any.
+	 * @param fingerprint content fingerprint
+	 * @return catalog entry or null
+	 */
+	public synchronized Entry lookupFingerprint(String fingerprint) {
+		if ( fingerprint == null ) {
+			return null;
+		}
+		return fingerprints.get( fingerprint );
+	}
+
+	/**
+	 * Returns a snapshot of all catalog entries.
+	 * @return list of all catalog entries
+	 */
+	public synchronized List<Entry> getEntries() {
+		return new ArrayList<Entry>( entries.values() );
+	}
+
+	public synchronized void remove(String path) {
+		Entry entry = entries.remove( path );
+		if ( entry != null ) {
+			if ( entry.fingerprint != null && fingerprints.get( entry.fingerprint ) == entry ) {
+				fingerprints.remove( entry.fingerprint );
+			}
+			scheduleSave();
+		}
+	}
+
+	/**
+	 * Store the current state of an archive file and schedule a save of the
+	 * catalog.
+	 * @param archiveFile validated archive file
+	 */
+	public synchronized void update(ArchiveFileBase archiveFile) {
+		String path = archiveFile.file.getAbsolutePath();
+		Entry entry = entries.get( path );
+		if ( entry == null ) {
+			entry = new Entry();
+			entry.path = path;
+			entries.put( path, entry );
+		}
+		if ( entry.fingerprint != null && fingerprints.get( entry.fingerprint ) == entry ) {
+			fingerprints.remove( entry.fingerprint );
+		}
+		entry.fingerprint = archiveFile.fingerprint;
+		entry.fileSize = archiveFile.fileSize;
+		entry.lastModified = archiveFile.lastModified;
+		entry.records = archiveFile.records;
+		entry.errors = archiveFile.errors;
+		entry.warnings = archiveFile.warnings;
+		entry.exceptions = archiveFile.exceptions;
+		entry.bCompleted = archiveFile.bCompleted;
+		if ( entry.fingerprint != null && entry.bCompleted ) {
+			fingerprints.put( entry.fingerprint, entry );
+		}
+		scheduleSave();
+	}
+
+	/**
+	 * Save the catalog now if it has unsaved changes.
+	 */
+	public void close() {
+		saveIfDirty();
+	}
+
+}
@@ -9,23 +9,63 @@ package org.jwat.tools.gui.library;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Set;
-
-import javax.swing.JProgressBar;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.jwat.common.UriProfile;
 import org.jwat.tools.core.ValidatorPlugin;
-import org.jwat.tools.gui.explorer.ArchiveEntry;
+import org.jwat.tools.gui.IndexCache;
+import org.jwat.tools.gui.Indexer;
+import org.jwat.tools.gui.MemoryGovernor;
+import org.jwat.tools.gui.SidecarIndex;
+import org.jwat.tools.gui.UriIndex;
+import org.jwat.tools.gui.ValidateIndexer;
+import org.jwat.tools.gui.explorer.ArchiveIndex;
 import org.jwat.tools.tasks.test.TestFile2;
 import org.jwat.tools.tasks.test.TestFileResult;
 import org.jwat.tools.tasks.test.TestFileUpdateCallback;
 import org.jwat.tools.tasks.test.TestOptions;
 
+/**
+ * Archive file in the library with its validation counters. The counters are
+ * written by the validating thread only and read by the UI, so they are plain
+ * volatile primitives. Instead of notifying the UI, a file whose counters
+ * changed queues itself once until the library table refreshes it on the EDT.
+ */
 public abstract class ArchiveFileBase implements TestFileUpdateCallback {
 
+	/** Total number of bytes consumed by all validations, used to measure throughput. */
+	public static final LongAdder totalConsumed = new LongAdder();
+
+	/**
+	 * Locks held while indexing, by canonical path, so an archive is indexed
+	 * once however often it is in the library. A lock is dropped again once
+	 * nobody is using it.
+	 */
+	protected static final Map<String, IndexLock> indexLocks = new HashMap<String, IndexLock>();
+
+	protected static class IndexLock {
+		protected final String key;
+		/** Number of threads holding or waiting for the lock. */
+		protected int users = 0;
+		protected IndexLock(String key) {
+			this.key = key;
+		}
+	}
+
+	/** Files whose counters changed since the last refresh. */
+	protected static final Queue<ArchiveFileBase> changedFiles = new ConcurrentLinkedQueue<ArchiveFileBase>();
+
+	/** Queue changed files, only set once something refreshes them or the queue would grow forever. */
+	protected static volatile boolean bTrackChanges = false;
+
+	/** Keep the record index built while validating, turned off in headless mode. */
+	public static boolean bKeepIndex = true;
+
 	/*
 	 * Static.
 	 */
@@ -38,84 +78,158 @@ public abstract class ArchiveFileBase implements TestFileUpdateCallback {
 
 	public long fileSize;
 
-	double ratio = 0.0;
+	public long lastModified;
+
+	/** Content fingerprint, see <code>ContentFingerprint</code>. */
+	public String fingerprint;
 
 	/*
 	 * Dynamic.
 	 */
 
-	public JProgressBar progressBar = new JProgressBar();
+	public volatile long consumed = 0;
+
+	public volatile int records = 0;
 
-	public long consumed = 0;
+	public volatile int errors = 0;
 
-	public int records = 0;
+	public volatile int warnings = 0;
 
-	public int errors = 0;
+	public volatile int exceptions = 0;
 
-	public int warnings = 0;
+	public volatile boolean bCompleted = false;
 
-	public int exceptions = 0;
+	/** Set while the file is in the changed queue. */
+	protected final AtomicBoolean bChanged = new AtomicBoolean();
+
+	/** Current or last validation job, null if never queued. */
+	public volatile ValidationJob job;
+
+	/** Add consumed bytes to <code>totalConsumed</code>, off for cluster worker copies which the coordinator counts. */
+	public boolean bCountConsumed = true;
 
 	/*
-	 * Listeners.
+	 * Changes.
 	 */
 
-	protected Set<ArchiveFileChangeListener> listeners = new HashSet<ArchiveFileChangeListener>();
-
-	public void addListener(ArchiveFileChangeListener listener) {
-		synchronized ( listeners ) {
-			listeners.add( listener );
+	/**
+	 * Queue the file for the next refresh, unless it is already queued.
+	 * Cheap enough to call for every counter update.
+	 */
+	public void changed() {
+		if ( bTrackChanges && !bChanged.get() && bChanged.compareAndSet( false, true ) ) {
+			changedFiles.add( this );
 		}
 	}
 
-	public void removeListener(ArchiveFileChangeListener listener) {
-		synchronized ( listeners ) {
-			listeners.remove( listener );
-		}
+	/**
+	 * Start queueing changed files, called by whoever refreshes them.
+	 */
+	public static void trackChanges() {
+		bTrackChanges = true;
 	}
 
-	/*
-	 * Events.
+	/**
+	 * Take the next changed file off the queue. The counters read after this
+	 * call are at least as new as the change which queued the file.
+	 * @return changed file or null if none
 	 */
+	public static ArchiveFileBase pollChanged() {
+		ArchiveFileBase archiveFile = changedFiles.poll();
+		if ( archiveFile != null ) {
+			archiveFile.bChanged.set( false );
+		}
+		return archiveFile;
+	}
 
-	long lastListenerEvent = 0;
-
-	public void listenerEvent() {
-		lastListenerEvent = System.currentTimeMillis();
-		Iterator<ArchiveFileChangeListener> listenersIter = listeners.iterator();
-		ArchiveFileChangeListener listener;
-		while ( listenersIter.hasNext() ) {
-			listener = listenersIter.next();
-			listener.archiveFileChangeEvent( this );
+	/**
+	 * Returns the validation progress.
+	 * @return fraction of the file validated, between 0.0 and 1.0
+	 */
+	public double getProgress() {
+		if ( bCompleted ) {
+			return 1.0;
 		}
+		return fileSize > 0 ? Math.min( 1.0, (double)consumed / (double)fileSize ) : 0.0;
 	}
 
-	public void update(TestFileResult result, long consumed) {
-		if (System.currentTimeMillis() > lastListenerEvent + 1000) {
-			progressBar.setValue( (int)((double)consumed * ratio) );
-			records = result.arcRecords + result.warcRecords + result.gzipEntries;
-			errors = result.arcErrors + result.warcErrors + result.gzipErrors;
-			warnings = result.arcWarnings + result.warcWarnings + result.gzipWarnings;
-			exceptions = result.runtimeErrors;
-			listenerEvent();
+	protected void addConsumed(long consumed) {
+		long previous = this.consumed;
+		if ( consumed > previous ) {
+			if ( bCountConsumed ) {
+				totalConsumed.add( consumed - previous );
+			}
+			this.consumed = consumed;
 		}
 	}
 
-	public void finalUpdate(TestFileResult result, long consumed) {
-		progressBar.setValue( (int)((double)consumed * ratio) );
+	public void update(TestFileResult result, long consumed) {
+		ValidationJob job = this.job;
+		if ( job != null ) {
+			job.checkpoint();
+		}
+		addConsumed( consumed );
 		records = result.arcRecords + result.warcRecords + result.gzipEntries;
 		errors = result.arcErrors + result.warcErrors + result.gzipErrors;
 		warnings = result.arcWarnings + result.warcWarnings + result.gzipWarnings;
 		exceptions = result.runtimeErrors;
-		listenerEvent();
+		changed();
+	}
+
+	public void finalUpdate(TestFileResult result, long consumed) {
+		setCounters( result.arcRecords + result.warcRecords + result.gzipEntries,
+				result.arcErrors + result.warcErrors + result.gzipErrors,
+				result.arcWarnings + result.warcWarnings + result.gzipWarnings,
+				result.runtimeErrors, consumed );
+	}
+
+	/**
+	 * Set the counters directly, used for results validated elsewhere.
+	 * @param records number of records and gzip entries
+	 * @param errors number of errors
+	 * @param warnings number of warnings
+	 * @param exceptions number of runtime errors
+	 * @param consumed number of bytes consumed
+	 */
+	public void setCounters(int records, int errors, int warnings, int exceptions, long consumed) {
+		addConsumed( consumed );
+		this.records = records;
+		this.errors = errors;
+		this.warnings = warnings;
+		this.exceptions = exceptions;
+		changed();
 	}
 
 	public void validate()  {
+		bCompleted = false;
+		consumed = 0;
+		changed();
+
+		ValidationJob job = this.job;
+		// Read before validating, an archive which grows meanwhile gets a stale index.
 		long fileSize = file.length();
-		progressBar.setMinimum(0);
-		progressBar.setMaximum(Integer.MAX_VALUE);
-		progressBar.setValue(0);
-		ratio = (double)Integer.MAX_VALUE / (double)fileSize;
+		long lastModified = file.lastModified();
+
+		RangeValidator rangeValidator = RangeValidator.getInstance( this );
+		if ( rangeValidator != null ) {
+			TestFileResult result = rangeValidator.validate();
+			bCompleted = (result != null);
+			changed();
+			setIndex( rangeValidator.getEntries(), bCompleted, fileSize, lastModified );
+			return;
+		}
+
+		if ( ValidateIndexer.bEnabled ) {
+			ValidateIndexer validateIndexer = new ValidateIndexer( this );
+			TestFileResult result = validateIndexer.validate();
+			if ( job != null ) {
+				job.checkpoint();
+			}
+			bCompleted = (result != null);
+			changed();
+			setIndex( validateIndexer.getEntries(), bCompleted, fileSize, lastModified );
+			return;
+		}
 
 		TestFile2 testFile = new TestFile2();
 		TestOptions options = new TestOptions();
@@ -125,13 +239,144 @@ public abstract class ArchiveFileBase implements TestFileUpdateCallback {
 		testFile.callback = this;
 
 		TestFileResult result = testFile.processFile(file, options, null);
+		if ( job != null ) {
+			// The parser may have swallowed the cancellation thrown from update().
+			job.checkpoint();
+		}
+		bCompleted = (result != null);
+		changed();
+	}
+
+	/**
+	 * Keep the record index built while validating for the listers, in the
+	 * index cache and the sidecar index file. Validation builds the index by
+	 * default, so a validated archive opens from its sidecar index. Only with
+	 * <code>jwattools.validator.index=false</code> is the sidecar index
+	 * written when the archive is first opened.
+	 * @param entries record index
+	 * @param bComplete the validation completed, a partial index is dropped
+	 * @param fileSize size of the archive before it was validated
+	 * @param lastModified modification time of the archive before it was validated
+	 */
+	protected void setIndex(ArchiveIndex entries, boolean bComplete, long fileSize, long lastModified) {
+		if ( !bKeepIndex || entries == null || !bComplete ) {
+			return;
+		}
+		IndexCache.instance.put( file, entries, fileSize, lastModified, false );
+		SidecarIndex.save( file, entries, fileSize, lastModified );
+		addUris( entries, fileSize, lastModified );
 	}
 
-	public List<ArchiveEntry> index() {
-		List<ArchiveEntry> entries = new ArrayList<ArchiveEntry>();
+	/**
+	 * Add the URIs of a complete index to the library's URI index,
+	 * which skips archives it has already. Called as archives are validated,
+	 * and as they are indexed for a lister if validation did not index them.
+	 * @param entries complete record index
+	 * @param fileSize size of the archive before it was indexed
+	 * @param lastModified modification time of the archive before it was indexed
+	 */
+	protected void addUris(ArchiveIndex entries, long fileSize, long lastModified) {
+		UriIndex uriIndex = UriIndex.getInstance();
+		if ( uriIndex != null ) {
+			uriIndex.add( file, entries, fileSize, lastModified );
+		}
+	}
 
+	/**
+	 * Returns the record index from the index cache, or else the sidecar
+	 * index written the last time, or indexes the archive if neither is
+	 * there. The index is pinned in the cache until it is released with
+	 * <code>releaseIndex</code>.
+	 * @return record index
+	 */
+	public ArchiveIndex index() {
+		return index( new Indexer() );
+	}
 
-		return entries;
+	/**
+	 * Returns the record index like <code>index()</code>, using the given
+	 * indexer if the archive has to be indexed. An index which was cancelled
+	 * before the end of the archive is returned, but neither cached nor saved.
+	 * @param indexer indexer, which may pass on entries as they are indexed
+	 * @return record index, complete unless the indexer was cancelled
+	 */
+	public ArchiveIndex index(Indexer indexer) {
+		IndexLock lock = acquireIndexLock( file );
+		try {
+			synchronized ( lock ) {
+				ArchiveIndex entries = IndexCache.instance.get( file, true );
+				if ( entries != null ) {
+					return entries;
+				}
+				long fileSize = file.length();
+				long lastModified = file.lastModified();
+				entries = SidecarIndex.load( file );
+				if ( entries != null ) {
+					IndexCache.instance.put( file, entries, fileSize, lastModified, true );
+					addUris( entries, fileSize, lastModified );
+					return entries;
+				}
+				MemoryGovernor.Ticket ticket = MemoryGovernor.instance.admit( this );
+				try {
+					entries = indexer.index( file );
+				}
+				finally {
+					MemoryGovernor.instance.release( ticket );
+				}
+				if ( !indexer.isCancelled() ) {
+					IndexCache.instance.put( file, entries, fileSize, lastModified, true );
+					SidecarIndex.save( file, entries, fileSize, lastModified );
+					addUris( entries, fileSize, lastModified );
+				}
+				return entries;
+			}
+		}
+		finally {
+			releaseIndexLock( lock );
+		}
+	}
+
+	/**
+	 * Returns the lock held while indexing an archive, shared by all library
+	 * entries of the same file, so a second window waits for the index
+	 * instead of indexing too. Each call must be paired with
+	 * <code>releaseIndexLock</code>.
+	 * @param file archive file
+	 * @return index lock of the archive
+	 */
+	protected static IndexLock acquireIndexLock(File file) {
+		String key = IndexCache.getKey( file );
+		synchronized ( indexLocks ) {
+			IndexLock lock = indexLocks.get( key );
+			if ( lock == null ) {
+				lock = new IndexLock( key );
+				indexLocks.put( key, lock );
+			}
+			++lock.users;
+			return lock;
+		}
+	}
+
+	/**
+	 * Stop using an index lock, dropping it if nobody else uses it.
+	 * @param lock index lock of the archive
+	 */
+	protected static void releaseIndexLock(IndexLock lock) {
+		synchronized ( indexLocks ) {
+			if ( --lock.users == 0 ) {
+				indexLocks.remove( lock.key );
+			}
+		}
+	}
+
+	/**
+	 * Unpin an index returned by <code>index</code> once it is no longer used.
+	 * @param entries record index
+	 */
+	public void releaseIndex(ArchiveIndex entries) {
+		if ( entries != null ) {
+			IndexCache.instance.release( file, entries );
+		}
 	}
 
 }
@@ -1,13 +0,0 @@
-/*
- * Created on 21/11/2011
- *
- * TODO To change the template for this generated file go to
- * Window - Preferences - Java - Code Style - Code Templates
- */
-package org.jwat.tools.gui.library;
-
-public interface ArchiveFileChangeListener {
-
-	public void archiveFileChangeEvent(ArchiveFileBase archiveFile);
-
-}
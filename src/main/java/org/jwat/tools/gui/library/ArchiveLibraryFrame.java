@@ -18,27 +18,29 @@ import javax.swing.BorderFactory;
 import javax.swing.Box;
 import javax.swing.BoxLayout;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JFileChooser;
 import javax.swing.JInternalFrame;
 import javax.swing.JLabel;
+import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JPopupMenu;
 import javax.swing.JScrollPane;
 import javax.swing.JTable;
 import javax.swing.JTextField;
 import javax.swing.ListSelectionModel;
+import javax.swing.Timer;
 import javax.swing.border.Border;
 import javax.swing.border.CompoundBorder;
 import javax.swing.border.EmptyBorder;
 import javax.swing.border.TitledBorder;
-import javax.swing.table.DefaultTableCellRenderer;
 import javax.swing.table.TableCellRenderer;
 import javax.swing.table.TableModel;
 import javax.swing.table.TableRowSorter;
 
 import org.jwat.tools.gui.Desktop;
-import org.jwat.tools.gui.Indexer;
-import org.jwat.tools.gui.explorer.ArchiveEntry;
+import org.jwat.tools.gui.UriIndex;
 import org.jwat.tools.gui.lister.ArchiveLister;
 
 //import com.antiaction.bittorrent.client.ui.JProgressBarTableCellRenderer;
@@ -54,7 +56,7 @@ import com.jgoodies.forms.layout.FormLayout;
  * Window - Preferences - Java - Code Style - Code Templates
  */
 
-public class ArchiveLibraryFrame extends JInternalFrame implements ActionListener, ItemListener, FocusListener, KeyListener, MouseListener {
+public class ArchiveLibraryFrame extends JInternalFrame implements ActionListener, ItemListener, FocusListener, KeyListener, MouseListener, ArchiveSink {
 
 	/**
 	 * UID
@@ -71,6 +73,18 @@ public class ArchiveLibraryFrame extends JInternalFrame implements ActionListene
     private final JTextField tfSource = new JTextField( 24 );
 	private final JButton buttonSelectSource = new JButton( "..." );
 	private final JButton buttonAdd = new JButton( "Add" );
+	private final JButton buttonWatch = new JButton( "Watch" );
+
+	private final JLabel labelUri = new JLabel( "URI:" );
+	private final JTextField tfUri = new JTextField( 32 );
+	private final JCheckBox cbUriPrefix = new JCheckBox( "Prefix", true );
+	private final JButton buttonUriSearch = new JButton( "Search" );
+
+	/** Validator pool status line. */
+	private final JLabel labelStatus = new JLabel( " " );
+
+	/** Timer refreshing the status line. */
+	private Timer statusTimer;
 
 	/** Hashing table model. */
 	private ArchiveLibraryTableModel libraryTableModel;
@@ -80,6 +94,9 @@ public class ArchiveLibraryFrame extends JInternalFrame implements ActionListene
 
 	private File sourceFile = null;
 
+	/** Archive file the context menu was opened on. */
+	private ArchiveFileBase popupFile = null;
+
 	public ArchiveLibraryFrame() {
 		 //resizable, closable, maximizable, iconifiable
 		super( "Archive Library", true, true, true, true );
@@ -93,7 +110,7 @@ public class ArchiveLibraryFrame extends JInternalFrame implements ActionListene
 
 		JPanel layoutPane = new JPanel();
 		layoutPane.setBorder( BorderFactory.createEmptyBorder( 10, 10, 10, 10 ) );
-		layoutPane.setLayout( new BoxLayout(layoutPane, BoxLayout.PAGE_AXIS) );
+		layoutPane.setLayout( new BorderLayout() );
 
 		// Add	
 
@@ -107,13 +124,17 @@ public class ArchiveLibraryFrame extends JInternalFrame implements ActionListene
 		buttonAdd.setEnabled( false );
 		buttonAdd.setActionCommand( "source.add" );
 		buttonAdd.addActionListener( this );
+		buttonWatch.setEnabled( false );
+		buttonWatch.setToolTipText( "Add the folder and keep adding archives as they are closed" );
+		buttonWatch.setActionCommand( "source.watch" );
+		buttonWatch.addActionListener( this );
 
 		Box sourceBox = Box.createVerticalBox();
 		Border sourceBorder = new TitledBorder( null, "Source Folder or File", TitledBorder.LEFT, TitledBorder.TOP );
 		sourceBox.setBorder( new CompoundBorder( sourceBorder, border5 ) );
 
 		FormLayout sourceLayout = new FormLayout(
-				"right:pref, 4dlu, pref, 0dlu, left:pref, 4dlu, pref",			// columns
+				"right:pref, 4dlu, pref, 0dlu, left:pref, 4dlu, pref, 4dlu, pref",	// columns
 				"pref" );											// rows
 
 		sourceLayout.setRowGroups( new int[][]{ { 1 } } );
@@ -126,6 +147,7 @@ public class ArchiveLibraryFrame extends JInternalFrame implements ActionListene
 		sourcePanel.add( tfSource, cc.xy( 3, 1 ) );
 		sourcePanel.add( buttonSelectSource, cc.xy( 5, 1 ) );
 		sourcePanel.add( buttonAdd, cc.xy( 7, 1) );
+		sourcePanel.add( buttonWatch, cc.xy( 9, 1) );
 
 		//sourceBox.setPreferredSize( sourceBox.getPreferredSize() );
 
@@ -133,6 +155,39 @@ public class ArchiveLibraryFrame extends JInternalFrame implements ActionListene
 
 		tfSource.setMaximumSize( tfSource.getPreferredSize() );
 
+		// Find URI
+
+		boolean bUriIndex = UriIndex.bEnabled;
+		tfUri.setEditable( bUriIndex );
+		tfUri.setActionCommand( "uri.search" );
+		tfUri.addActionListener( this );
+		cbUriPrefix.setEnabled( bUriIndex );
+		cbUriPrefix.setToolTipText( "Find URIs starting with the text instead of equal to it" );
+		buttonUriSearch.setEnabled( bUriIndex );
+		buttonUriSearch.setActionCommand( "uri.search" );
+		buttonUriSearch.addActionListener( this );
+
+		Box uriBox = Box.createVerticalBox();
+		Border uriBorder = new TitledBorder( null, "Find URI in Indexed Archives", TitledBorder.LEFT, TitledBorder.TOP );
+		uriBox.setBorder( new CompoundBorder( uriBorder, border5 ) );
+
+		FormLayout uriLayout = new FormLayout(
+				"right:pref, 4dlu, pref, 4dlu, pref, 4dlu, pref",	// columns
+				"pref" );											// rows
+
+		JPanel uriPanel = new JPanel( uriLayout );
+		uriPanel.setLayout( new BoxLayout(uriPanel, BoxLayout.LINE_AXIS) );
+
+		cc = new CellConstraints();
+		uriPanel.add( labelUri, cc.xy( 1, 1 ) );
+		uriPanel.add( tfUri, cc.xy( 3, 1 ) );
+		uriPanel.add( cbUriPrefix, cc.xy( 5, 1 ) );
+		uriPanel.add( buttonUriSearch, cc.xy( 7, 1 ) );
+
+		uriBox.add( uriPanel );
+
+		tfUri.setMaximumSize( tfUri.getPreferredSize() );
+
 		//box.add( Box.createVerticalStrut( 8 ) );
 
 		// Table
@@ -153,12 +208,13 @@ public class ArchiveLibraryFrame extends JInternalFrame implements ActionListene
 
 		table.setSelectionMode( ListSelectionModel.SINGLE_SELECTION );
 
-//		table.getColumn( "Progress" ).setCellRenderer( new JProgressBarTableCellRenderer() );
-        table.getColumn( "Progress" ).setCellRenderer( new DefaultTableCellRenderer() );
+		table.getColumn( "Progress" ).setCellRenderer( new JProgressBarTableCellRenderer() );
 
 		TableRowSorter<TableModel> sorter = new TableRowSorter<TableModel>(table.getModel());
 		table.setRowSorter(sorter);
-		sorter.setSortsOnUpdates( true );
+		// Updated rows are re-sorted once per refresh by the model, not once per update event.
+		sorter.setSortsOnUpdates( false );
+		libraryTableModel.setRowSorter( sorter );
 
 		/*
 		List <RowSorter.SortKey> sortKeys = new ArrayList<RowSorter.SortKey>();
@@ -170,8 +226,17 @@ public class ArchiveLibraryFrame extends JInternalFrame implements ActionListene
 
 		JScrollPane scrollpane = new JScrollPane( table );
 
-		layoutPane.add( sourceBox, BorderLayout.PAGE_START );
+		Box northBox = Box.createVerticalBox();
+		northBox.add( sourceBox );
+		northBox.add( uriBox );
+
+		layoutPane.add( northBox, BorderLayout.PAGE_START );
 		layoutPane.add( scrollpane, BorderLayout.CENTER );
+		layoutPane.add( labelStatus, BorderLayout.PAGE_END );
+
+		statusTimer = new Timer( 1000, this );
+		statusTimer.setActionCommand( "status.update" );
+		statusTimer.start();
 
 		// Content
 
@@ -250,19 +315,9 @@ public class ArchiveLibraryFrame extends JInternalFrame implements ActionListene
 				table.getSelectionModel().setSelectionInterval( rowIndex, rowIndex );
 
 				rowIndex = table.getRowSorter().convertRowIndexToModel(rowIndex);
-				final ArchiveFileBase archiveFile = libraryTableModel.getAtRow(rowIndex);
-
-		        javax.swing.SwingUtilities.invokeLater(new Runnable() {
-		            public void run() {
-						Indexer indexer = new Indexer();
-						List<ArchiveEntry> entries = indexer.index(archiveFile.file);
-						//new ArchiveExplorer(archiveFile.file.getPath(), entries);
-						new ArchiveLister(archiveFile.file.getPath(), entries);
-		            }
-		        });
-
+				popupFile = libraryTableModel.getAtRow(rowIndex);
+				showPopup( e );
 			}
-			//showPopup( e );
 		}
 	}
 
@@ -276,25 +331,94 @@ public class ArchiveLibraryFrame extends JInternalFrame implements ActionListene
 				table.getSelectionModel().setSelectionInterval( rowIndex, rowIndex );
 
 				rowIndex = table.getRowSorter().convertRowIndexToModel(rowIndex);
-				final ArchiveFileBase archiveFile = libraryTableModel.getAtRow(rowIndex);
-
-		        javax.swing.SwingUtilities.invokeLater(new Runnable() {
-		            public void run() {
-						Indexer indexer = new Indexer();
-						List<ArchiveEntry> entries = indexer.index(archiveFile.file);
-						//new ArchiveExplorer(archiveFile.file.getPath(), entries);
-						new ArchiveLister(archiveFile.file.getPath(), entries);
-		            }
-		        });
-
+				popupFile = libraryTableModel.getAtRow(rowIndex);
+				showPopup( e );
 			}
-			//showPopup( e );
 		}
 	}
 
 	public void mouseEntered(MouseEvent e) {
 	}
 
+	public void showPopup(MouseEvent e) {
+		ValidationJob job = popupFile.job;
+		int state = job != null ? job.getState() : ValidationJob.FINISHED;
+		boolean bActive = job != null && job.isActive();
+		JPopupMenu menu = new JPopupMenu();
+		JMenuItem menuItem;
+		menuItem = menu.add( "Open" );
+		menuItem.setActionCommand( "archive.open" );
+		menuItem.addActionListener( this );
+		menu.addSeparator();
+		menuItem = menu.add( "Validate next" );
+		menuItem.setActionCommand( "job.front" );
+		menuItem.addActionListener( this );
+		menuItem.setEnabled( bActive || !popupFile.bCompleted );
+		menuItem = menu.add( "Raise priority" );
+		menuItem.setActionCommand( "job.raise" );
+		menuItem.addActionListener( this );
+		menuItem.setEnabled( state == ValidationJob.QUEUED );
+		menuItem = menu.add( "Lower priority" );
+		menuItem.setActionCommand( "job.lower" );
+		menuItem.addActionListener( this );
+		menuItem.setEnabled( state == ValidationJob.QUEUED );
+		menuItem = menu.add( "Pause" );
+		menuItem.setActionCommand( "job.pause" );
+		menuItem.addActionListener( this );
+		menuItem.setEnabled( (state == ValidationJob.QUEUED || state == ValidationJob.RUNNING) && !job.isRunningPaused() );
+		menuItem = menu.add( "Resume" );
+		menuItem.setActionCommand( "job.resume" );
+		menuItem.addActionListener( this );
+		menuItem.setEnabled( state == ValidationJob.PAUSED || (job != null && job.isRunningPaused()) );
+		menuItem = menu.add( "Cancel" );
+		menuItem.setActionCommand( "job.cancel" );
+		menuItem.addActionListener( this );
+		menuItem.setEnabled( bActive );
+		menuItem = menu.add( "Validate again" );
+		menuItem.setActionCommand( "job.validate" );
+		menuItem.addActionListener( this );
+		menuItem.setEnabled( !bActive );
+		menu.show( e.getComponent(), e.getX(), e.getY() );
+	}
+
+	private void openArchive(final ArchiveFileBase archiveFile) {
+		// The user wants this one now, validate it before everything else.
+		Desktop.validatorThread.moveToFront( archiveFile );
+		// Indexes in the background, unless the index built while validating is still around.
+		new ArchiveLister(archiveFile);
+	}
+
+	private void jobAction(String cmd) {
+		ArchiveFileBase archiveFile = popupFile;
+		if ( archiveFile == null ) {
+			return;
+		}
+		if ( "archive.open".equals( cmd ) ) {
+			openArchive( archiveFile );
+		}
+		else if ( "job.front".equals( cmd ) ) {
+			Desktop.validatorThread.moveToFront( archiveFile );
+		}
+		else if ( "job.raise".equals( cmd ) && archiveFile.job != null ) {
+			Desktop.validatorThread.setPriority( archiveFile, archiveFile.job.getPriority() + 1 );
+		}
+		else if ( "job.lower".equals( cmd ) && archiveFile.job != null ) {
+			Desktop.validatorThread.setPriority( archiveFile, archiveFile.job.getPriority() - 1 );
+		}
+		else if ( "job.pause".equals( cmd ) ) {
+			Desktop.validatorThread.pause( archiveFile );
+		}
+		else if ( "job.resume".equals( cmd ) ) {
+			Desktop.validatorThread.resume( archiveFile );
+		}
+		else if ( "job.cancel".equals( cmd ) ) {
+			Desktop.validatorThread.cancel( archiveFile );
+		}
+		else if ( "job.validate".equals( cmd ) ) {
+			Desktop.validatorThread.add( archiveFile );
+		}
+	}
+
 	public void mouseExited(MouseEvent e) {
 	}
 
@@ -346,11 +470,33 @@ public class ArchiveLibraryFrame extends JInternalFrame implements ActionListene
 		else if ( "source.add".equals( cmd ) ) {
 			addSource();
 		}
+		else if ( "source.watch".equals( cmd ) ) {
+			watchSource();
+		}
+		else if ( "uri.search".equals( cmd ) ) {
+			searchUri();
+		}
+		else if ( "status.update".equals( cmd ) ) {
+			updateStatus();
+		}
+		else if ( cmd.startsWith( "job." ) || cmd.startsWith( "archive." ) ) {
+			jobAction( cmd );
+		}
 		else if ( "close".equals( cmd ) ) {
 			setVisible( false );
 		}
 	}
 
+	private void updateStatus() {
+		if ( Desktop.validatorThread != null ) {
+			labelStatus.setText( String.format( "Validators: %d (%d active)  Queued: %d  Throughput: %.1f MB/s",
+					Desktop.validatorThread.getPoolSize(),
+					Desktop.validatorThread.getActiveCount(),
+					Desktop.validatorThread.getQueueSize(),
+					Desktop.validatorThread.getThroughput() / (1024.0 * 1024.0) ) );
+		}
+	}
+
 	private void selectSource() {
 		JFileChooser jfile = new JFileChooser();
 		jfile.setDialogType( JFileChooser.OPEN_DIALOG );
@@ -393,6 +539,7 @@ public class ArchiveLibraryFrame extends JInternalFrame implements ActionListene
 		if ( sourceFile != null && sourceFile.exists()) {
 			buttonAdd.setEnabled( true );
 		}
+		buttonWatch.setEnabled( sourceFile != null && sourceFile.isDirectory() );
 	}
 
 	private void addSource() {
@@ -401,8 +548,26 @@ public class ArchiveLibraryFrame extends JInternalFrame implements ActionListene
 		}
 	}
 
+	private void watchSource() {
+		if ( sourceFile != null && sourceFile.isDirectory() ) {
+			Desktop.scannerThread.watch( sourceFile );
+		}
+	}
+
+	private void searchUri() {
+		String query = tfUri.getText().trim();
+		if ( query.length() > 0 && UriIndex.bEnabled ) {
+			new UriSearchFrame( query, cbUriPrefix.isSelected() );
+		}
+	}
+
 	public void addFile(ArchiveFileBase archiveFile) {
 		libraryTableModel.add( archiveFile );
 	}
 
+	@Override
+	public ArchiveFileBase addFileIfAbsent(ArchiveFileBase archiveFile) {
+		return libraryTableModel.addIfAbsent( archiveFile );
+	}
+
 }
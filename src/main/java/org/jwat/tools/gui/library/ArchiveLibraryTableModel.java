@@ -1,11 +1,19 @@
 package org.jwat.tools.gui.library;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
-import javax.swing.JProgressBar;
+import javax.swing.RowSorter;
+import javax.swing.Timer;
 import javax.swing.event.TableModelEvent;
 import javax.swing.event.TableModelListener;
 import javax.swing.table.TableModel;
@@ -17,7 +25,7 @@ import javax.swing.table.TableModel;
  * Window - Preferences - Java - Code Style - Code Templates
  */
 
-public class ArchiveLibraryTableModel implements TableModel, ArchiveFileChangeListener {
+public class ArchiveLibraryTableModel implements TableModel {
 
 	/**
      * Returns the number of columns in the model. A
@@ -34,19 +42,92 @@ public class ArchiveLibraryTableModel implements TableModel, ArchiveFileChangeLi
 	/** Array of column names. */
 	private String[] columnNames = { "Records", "Errors", "Warnings", "Exceptions", "Progress", "Size", "Name",  "Path" };
 	/** Array of column classes. */
-	private Class<?>[] columnClasses = { Integer.class, Integer.class, Integer.class, Integer.class, JProgressBar.class, String.class, String.class, String.class };
+	private Class<?>[] columnClasses = { Integer.class, Integer.class, Integer.class, Integer.class, Double.class, String.class, String.class, String.class };
 
-	/** Backend list of table entries. */
+	/** Interval between publishing added files and refreshing changed ones, in milliseconds. */
+	protected static final int PUBLISH_INTERVAL = 250;
+
+	/** Backend list of table entries, only appended to on the EDT. */
 	private List<ArchiveFileBase> rows = new ArrayList<ArchiveFileBase>();
 
+	/** Table entries by absolute path, including entries not yet published. */
+	private Map<String, ArchiveFileBase> fileMap = new HashMap<String, ArchiveFileBase>();
+
+	/** Added entries waiting to be published to the table on the EDT. */
+	private List<ArchiveFileBase> pending = new ArrayList<ArchiveFileBase>();
+
+	/** Row of each published entry, only used on the EDT. */
+	private Map<ArchiveFileBase, Integer> rowIndexes = new IdentityHashMap<ArchiveFileBase, Integer>();
+
+	/** Timer publishing pending entries and refreshing changed ones on the EDT. */
+	private Timer publishTimer;
+
+	/** Sorter re-sorted once after each refresh of changed rows, if sorted at all. */
+	private RowSorter<?> rowSorter;
+
+	public ArchiveLibraryTableModel() {
+		ArchiveFileBase.trackChanges();
+		publishTimer = new Timer( PUBLISH_INTERVAL, new ActionListener() {
+			@Override
+			public void actionPerformed(ActionEvent e) {
+				publishPending();
+				refreshChanged();
+			}
+		} );
+		publishTimer.start();
+	}
+
+	/**
+	 * Set the sorter of the table, which does not sort on updates, so it can
+	 * be re-sorted once per refresh. Must be called on the EDT.
+	 * @param rowSorter row sorter of the table
+	 */
+	public void setRowSorter(RowSorter<?> rowSorter) {
+		this.rowSorter = rowSorter;
+	}
+
 	public void add(ArchiveFileBase archiveFile) {
-		TableModelEvent event = null;
+		addIfAbsent( archiveFile );
+	}
+
+	/**
+	 * Add an archive file unless a file with the same path is already in the table.
+	 * The file is queued and shows up in the table with the next published batch.
+	 * May be called from any thread.
+	 * @param archiveFile archive file to add
+	 * @return the archive file already in the table or null if the new one was added
+	 */
+	public ArchiveFileBase addIfAbsent(ArchiveFileBase archiveFile) {
+		ArchiveFileBase existing;
 
 		synchronized ( rows ) {
-			event = new TableModelEvent( this, rows.size(), rows.size(), TableModelEvent.ALL_COLUMNS, TableModelEvent.INSERT );
-			rows.add( archiveFile );
+			existing = fileMap.get( archiveFile.file.getAbsolutePath() );
+			if ( existing == null ) {
+				fileMap.put( archiveFile.file.getAbsolutePath(), archiveFile );
+				pending.add( archiveFile );
+			}
+		}
+		return existing;
+	}
+
+	/**
+	 * Move all pending entries into the table and fire a single insert event
+	 * covering the whole range. Must be called on the EDT.
+	 */
+	protected void publishPending() {
+		TableModelEvent event = null;
+		ArchiveFileBase archiveFile;
 
-			archiveFile.addListener( this );
+		synchronized ( rows ) {
+			if ( !pending.isEmpty() ) {
+				event = new TableModelEvent( this, rows.size(), rows.size() + pending.size() - 1, TableModelEvent.ALL_COLUMNS, TableModelEvent.INSERT );
+				for ( int i=0; i<pending.size(); ++i ) {
+					archiveFile = pending.get( i );
+					rowIndexes.put( archiveFile, rows.size() );
+					rows.add( archiveFile );
+				}
+				pending.clear();
+			}
 		}
 
 		if ( event != null ) {
@@ -54,6 +135,48 @@ public class ArchiveLibraryTableModel implements TableModel, ArchiveFileChangeLi
 		}
 	}
 
+	/**
+	 * Repaint the rows of all files whose counters changed since the last
+	 * refresh, one update event per run of adjacent rows, then re-sort the
+	 * table once if it is sorted. Must be called on the EDT.
+	 */
+	protected void refreshChanged() {
+		int[] changed = new int[ 16 ];
+		int count = 0;
+		ArchiveFileBase archiveFile;
+		Integer rowIndex;
+		while ( (archiveFile = ArchiveFileBase.pollChanged()) != null ) {
+			rowIndex = rowIndexes.get( archiveFile );
+			if ( rowIndex != null ) {
+				if ( count == changed.length ) {
+					changed = Arrays.copyOf( changed, count * 2 );
+				}
+				changed[ count++ ] = rowIndex;
+			}
+		}
+		Arrays.sort( changed, 0, count );
+		int first;
+		int last;
+		int i = 0;
+		while ( i < count ) {
+			first = changed[ i ];
+			last = first;
+			while ( ++i < count && changed[ i ] <= last + 1 ) {
+				last = changed[ i ];
+			}
+			eventToListeners( new TableModelEvent( this, first, last, TableModelEvent.ALL_COLUMNS, TableModelEvent.UPDATE ) );
+		}
+		if ( count > 0 && rowSorter != null && !rowSorter.getSortKeys().isEmpty() ) {
+			rowSorter.allRowsChanged();
+		}
+	}
+
+	public ArchiveFileBase get(File file) {
+		synchronized ( rows ) {
+			return fileMap.get( file.getAbsolutePath() );
+		}
+	}
+
 	public ArchiveFileBase getAtRow(int rowIndex) {
 		return rows.get(rowIndex);
 	}
@@ -123,7 +246,7 @@ public class ArchiveLibraryTableModel implements TableModel, ArchiveFileChangeLi
 			case 3:
 				return archiveFile.exceptions;
 			case 4:
-				return archiveFile.progressBar;
+				return archiveFile.getProgress();
 			case 5:
 				// TODO Ineffective!
 				return Long.toString(archiveFile.fileSize);
@@ -208,28 +331,4 @@ public class ArchiveLibraryTableModel implements TableModel, ArchiveFileChangeLi
 		}
 	}
 
-	public void archiveFileChangeEvent(ArchiveFileBase archiveFile) {
-		boolean b;
-		int idx;
-		ArchiveFileBase tmpjob;
-		TableModelEvent event;
-		synchronized ( rows ) {
-			b = true;
-			idx = 0;
-			while ( b ) {
-				if ( idx < rows.size() ) {
-					tmpjob = rows.get( idx );
-					if ( tmpjob == archiveFile ) {
-						event = new TableModelEvent( this, idx, idx, TableModelEvent.ALL_COLUMNS, TableModelEvent.UPDATE );
-						eventToListeners( event );
-					}
-				}
-				else {
-					b = false;
-				}
-				++idx;
-			}
-		}
-	}
-
 }
@@ -0,0 +1,17 @@
+package org.jwat.tools.gui.library;
+
+/**
+ * Receives the archives found by the scanner, the library table in the GUI
+ * or the result writer in headless mode.
+ */
+public interface ArchiveSink {
+
+	/**
+	 * Add an archive file unless a file with the same path is already known.
+	 * May be called concurrently from the scanner's walker threads.
+	 * @param archiveFile archive file to add
+	 * @return the archive file already known or null if the new one was added
+	 */
+	public ArchiveFileBase addFileIfAbsent(ArchiveFileBase archiveFile);
+
+}
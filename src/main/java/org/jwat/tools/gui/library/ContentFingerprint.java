@@ -0,0 +1,85 @@
+package org.jwat.tools.gui.library;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.jwat.common.Base16;
+import org.jwat.tools.gui.Settings;
+
+/**
+ * Identifies archive content independently of its path, so validation
+ * results survive moves and renames. The default fingerprint is a SHA-1 of
+ * the file size and the first and last 64 KB of the file. Setting
+ * <code>jwattools.catalog.fingerprint.full</code> to true switches to a
+ * SHA-1 of the complete file instead.
+ */
+public class ContentFingerprint {
+
+	public static final boolean bFullDigest = Settings.getBoolean( "jwattools.catalog.fingerprint.full", false );
+
+	/** Number of bytes hashed from each end of the file. */
+	protected static final int SAMPLE_SIZE = 64 * 1024;
+
+	protected ContentFingerprint() {
+	}
+
+	/**
+	 * Compute the content fingerprint of a file.
+	 * @param file file to fingerprint
+	 * @return fingerprint string or null if the file could not be read
+	 */
+	public static String compute(File file) {
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance( "SHA-1" );
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException( e );
+		}
+		try (FileChannel channel = FileChannel.open( file.toPath(), StandardOpenOption.READ )) {
+			long fileSize = channel.size();
+			ByteBuffer bb = ByteBuffer.allocate( SAMPLE_SIZE );
+			bb.putLong( fileSize );
+			bb.flip();
+			md.update( bb );
+			if ( bFullDigest ) {
+				update( md, channel, bb, 0, fileSize );
+				return "sha1:" + Base16.encodeArray( md.digest() );
+			}
+			else {
+				update( md, channel, bb, 0, Math.min( SAMPLE_SIZE, fileSize ) );
+				if ( fileSize > SAMPLE_SIZE ) {
+					update( md, channel, bb, Math.max( SAMPLE_SIZE, fileSize - SAMPLE_SIZE ), fileSize );
+				}
+				return "ht1:" + Base16.encodeArray( md.digest() );
+			}
+		}
+		catch (IOException e) {
+			return null;
+		}
+	}
+
+	protected static void update(MessageDigest md, FileChannel channel, ByteBuffer bb, long from, long to) throws IOException {
+		long position = from;
+		int read;
+		while ( position < to ) {
+			bb.clear();
+			if ( to - position < bb.capacity() ) {
+				bb.limit( (int)(to - position) );
+			}
+			read = channel.read( bb, position );
+			if ( read == -1 ) {
+				break;
+			}
+			bb.flip();
+			md.update( bb );
+			position += read;
+		}
+	}
+
+}
@@ -0,0 +1,37 @@
+package org.jwat.tools.gui.library;
+
+import java.awt.Component;
+
+import javax.swing.JProgressBar;
+import javax.swing.JTable;
+import javax.swing.table.TableCellRenderer;
+
+/**
+ * Paints a progress fraction, a <code>Double</code> between 0.0 and 1.0, as
+ * a progress bar. One bar is shared by all cells, like the default renderers
+ * share one label, so the files themselves hold no Swing components.
+ */
+public class JProgressBarTableCellRenderer extends JProgressBar implements TableCellRenderer {
+
+	/**
+	 * UID.
+	 */
+	private static final long serialVersionUID = 3718720398534462081L;
+
+	protected static final int SCALE = 1000;
+
+	public JProgressBarTableCellRenderer() {
+		super( 0, SCALE );
+		setStringPainted( true );
+		setBorderPainted( false );
+	}
+
+	@Override
+	public Component getTableCellRendererComponent(JTable table, Object value, boolean isSelected, boolean hasFocus, int row, int column) {
+		double progress = (value instanceof Double) ? (Double)value : 0.0;
+		setValue( (int)(progress * SCALE) );
+		setString( String.format( "%.1f%%", progress * 100.0 ) );
+		return this;
+	}
+
+}
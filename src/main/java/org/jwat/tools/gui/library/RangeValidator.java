@@ -0,0 +1,649 @@
+package org.jwat.tools.gui.library;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+
+import org.jwat.arc.ArcReader;
+import org.jwat.arc.ArcReaderFactory;
+import org.jwat.arc.ArcRecordBase;
+import org.jwat.archive.FileIdent;
+import org.jwat.common.ByteCountingPushBackInputStream;
+import org.jwat.common.Diagnosis;
+import org.jwat.common.RandomAccessFileInputStream;
+import org.jwat.common.UriProfile;
+import org.jwat.gzip.GzipEntry;
+import org.jwat.gzip.GzipReader;
+import org.jwat.tools.gui.DigestPipeline;
+import org.jwat.tools.gui.HeaderIdent;
+import org.jwat.tools.gui.InflateGate;
+import org.jwat.tools.gui.Indexer;
+import org.jwat.tools.gui.ReaderPool;
+import org.jwat.tools.gui.Settings;
+import org.jwat.tools.gui.ThreadFactories;
+import org.jwat.tools.gui.ValidatorThreadPool;
+import org.jwat.tools.gui.explorer.ArchiveEntry;
+import org.jwat.tools.gui.explorer.ArchiveIndex;
+import org.jwat.tools.tasks.test.TestFileResult;
+import org.jwat.tools.tasks.test.TestFileResultItemDiagnosis;
+import org.jwat.tools.tasks.test.TestFileResultItemThrowable;
+import org.jwat.warc.WarcReader;
+import org.jwat.warc.WarcReaderFactory;
+import org.jwat.warc.WarcRecord;
+
+/**
+ * Validates a large compressed archive in parallel by splitting it into
+ * contiguous ranges of gzip members. Split points are found by scanning
+ * forward from evenly spaced offsets for a gzip header which actually
+ * inflates into a record. Each range is validated on its own worker and
+ * the per range counters and diagnoses are merged in file order. Each range beyond the
+ * first takes a reader slot of the archive's <code>IoDevice</code>, so the
+ * ranges are limited to the slots free when the validation starts.
+ *
+ * Enabled with <code>jwattools.validator.split</code> (default false) for
+ * compressed ARC/WARC files of at least
+ * <code>jwattools.validator.split.threshold</code> bytes (default 1 GB).
+ * Otherwise these files are validated by <code>TestFile2</code> like all
+ * others. Every record of every gzip member is parsed with its digests
+ * verified, and a record or member which cannot be read is counted as an
+ * error and a runtime error.
+ */
+public class RangeValidator {
+
+	public static final boolean bSplitEnabled = Settings.getBoolean( "jwattools.validator.split", false );
+
+	public static final long SPLIT_THRESHOLD = Settings.getLong( "jwattools.validator.split.threshold", 1024L * 1024L * 1024L );
+
+	/** Smallest range worth validating on its own worker. */
+	protected static final long MIN_RANGE_SIZE = 256L * 1024L * 1024L;
+
+	/** Buffer size used when scanning for gzip member headers. */
+	protected static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+	/** Bytes inflated when verifying a gzip member header candidate. */
+	protected static final int VERIFY_INFLATE_SIZE = 16;
+
+	/** Workers shared by all range validations. */
+	protected static ExecutorService rangeExecutor;
+
+	protected File file;
+
+	protected int fileId;
+
+	protected ArchiveFileBase archiveFile;
+
+	/** Per range results, in file order. */
+	protected TestFileResult[] results;
+
+	/** Per range consumed bytes, in file order. */
+	protected long[] consumed;
+
+	/** Per range record index entries, in file order. */
+	protected ArchiveIndex[] rangeEntries;
+
+	/** Time of the last progress update sent to the archive file. */
+	protected long lastUpdate = 0;
+
+	protected RangeValidator(ArchiveFileBase archiveFile, int fileId) {
+		this.archiveFile = archiveFile;
+		this.file = archiveFile.file;
+		this.fileId = fileId;
+	}
+
+	protected static synchronized ExecutorService getExecutor() {
+		if ( rangeExecutor == null ) {
+			rangeExecutor = ThreadFactories.newTaskExecutor( "Range-Validator", Runtime.getRuntime().availableProcessors() );
+		}
+		return rangeExecutor;
+	}
+
+	/**
+	 * Returns a range validator if the archive is big enough and compressed, otherwise null.
+	 * @param archiveFile archive file to validate
+	 * @return range validator or null
+	 */
+	public static RangeValidator getInstance(ArchiveFileBase archiveFile) {
+		if ( !bSplitEnabled || archiveFile.fileSize < SPLIT_THRESHOLD ) {
+			return null;
+		}
+		int fileId = HeaderIdent.ident( archiveFile.file );
+		if ( fileId != FileIdent.FILEID_WARC_GZ && fileId != FileIdent.FILEID_ARC_GZ ) {
+			return null;
+		}
+		return new RangeValidator( archiveFile, fileId );
+	}
+
+	/**
+	 * Returns a range validator for any compressed ARC/WARC file, regardless
+	 * of its size. Used to split archives across cluster nodes.
+	 * @param archiveFile archive file to validate
+	 * @return range validator or null if the archive is not a compressed ARC/WARC file
+	 */
+	public static RangeValidator getRangeInstance(ArchiveFileBase archiveFile) {
+		int fileId = HeaderIdent.ident( archiveFile.file );
+		if ( fileId != FileIdent.FILEID_WARC_GZ && fileId != FileIdent.FILEID_ARC_GZ ) {
+			return null;
+		}
+		return new RangeValidator( archiveFile, fileId );
+	}
+
+	/**
+	 * Split the archive into ranges starting at gzip member boundaries.
+	 * @param parts number of ranges wanted
+	 * @return sorted list of range boundaries starting with 0 and ending with the file size
+	 */
+	public List<Long> split(int parts) {
+		return findBoundaries( file.length(), parts );
+	}
+
+	/**
+	 * Validate only the gzip members starting in [start, end), as handed out by
+	 * <code>split</code>. Progress is reported to the archive file, but the
+	 * result is only returned and not applied to it.
+	 * @param start offset of the first gzip member
+	 * @param end offset where the next range starts
+	 * @return result of the range
+	 */
+	public TestFileResult validatePart(long start, long end) {
+		results = new TestFileResult[] { new TestFileResult() };
+		consumed = new long[ 1 ];
+		rangeEntries = new ArchiveIndex[] { new ArchiveIndex() };
+		validateRange( 0, start, end );
+		ValidationJob job = archiveFile.job;
+		if ( job != null ) {
+			job.checkpoint();
+		}
+		synchronized ( this ) {
+			return results[ 0 ];
+		}
+	}
+
+	/**
+	 * Returns the number of bytes consumed so far.
+	 * @return consumed bytes of all ranges
+	 */
+	public synchronized long getConsumed() {
+		return (consumed != null) ? totalConsumed() : 0;
+	}
+
+	/**
+	 * Validate the archive and report progress and the merged result to the archive file.
+	 * @return merged result of all ranges
+	 */
+	public TestFileResult validate() {
+		long fileSize = file.length();
+		int parts = (int)Math.max( 1, Math.min( Runtime.getRuntime().availableProcessors(), fileSize / MIN_RANGE_SIZE ) );
+		ValidationJob job = archiveFile.job;
+		ValidatorThreadPool pool = (job != null) ? job.pool : null;
+		// The job holds one reader slot, every other range needs one too.
+		int extraReaders = 0;
+		if ( pool != null && parts > 1 ) {
+			extraReaders = pool.acquireReaders( job, parts - 1 );
+			parts = 1 + extraReaders;
+		}
+		try {
+			return validate( fileSize, parts );
+		}
+		finally {
+			if ( pool != null ) {
+				pool.releaseReaders( job, extraReaders );
+			}
+		}
+	}
+
+	/**
+	 * Validate the archive in up to the given number of ranges.
+	 * @param fileSize archive file size
+	 * @param parts number of ranges wanted
+	 * @return merged result of all ranges
+	 */
+	protected TestFileResult validate(long fileSize, int parts) {
+		List<Long> boundaries = findBoundaries( fileSize, parts );
+		int ranges = boundaries.size() - 1;
+		results = new TestFileResult[ ranges ];
+		consumed = new long[ ranges ];
+		rangeEntries = new ArchiveIndex[ ranges ];
+		for ( int i=0; i<ranges; ++i ) {
+			results[ i ] = new TestFileResult();
+			rangeEntries[ i ] = new ArchiveIndex();
+		}
+		List<Future<?>> futures = new ArrayList<Future<?>>();
+		for ( int i=1; i<ranges; ++i ) {
+			final int range = i;
+			final long start = boundaries.get( i );
+			final long end = boundaries.get( i + 1 );
+			futures.add( getExecutor().submit( new Runnable() {
+				@Override
+				public void run() {
+					validateRange( range, start, end );
+				}
+			} ) );
+		}
+		// The calling thread validates the first range itself.
+		validateRange( 0, boundaries.get( 0 ), boundaries.get( 1 ) );
+		ValidationJob job = archiveFile.job;
+		for ( int i=0; i<futures.size(); ++i ) {
+			try {
+				futures.get( i ).get();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			catch (ExecutionException e) {
+				e.printStackTrace();
+			}
+		}
+		if ( job != null ) {
+			job.checkpoint();
+		}
+		TestFileResult result;
+		synchronized ( this ) {
+			result = merge();
+		}
+		archiveFile.finalUpdate( result, fileSize );
+		return result;
+	}
+
+	/**
+	 * Returns the record index built by the ranges, in file order.
+	 * @return record index or null if the archive has not been validated
+	 */
+	public ArchiveIndex getEntries() {
+		if ( rangeEntries == null ) {
+			return null;
+		}
+		if ( rangeEntries.length == 1 ) {
+			rangeEntries[ 0 ].setDigestsVerified( true );
+			rangeEntries[ 0 ].trimToSize();
+			return rangeEntries[ 0 ];
+		}
+		int count = 0;
+		for ( ArchiveIndex range : rangeEntries ) {
+			count += range.size();
+		}
+		ArchiveIndex entries = new ArchiveIndex( count );
+		entries.setDigestsVerified( true );
+		for ( ArchiveIndex range : rangeEntries ) {
+			entries.addAll( range );
+		}
+		entries.trimToSize();
+		return entries;
+	}
+
+	/**
+	 * Find the offsets of the gzip members closest after evenly spaced split points.
+	 * @param fileSize archive file size
+	 * @param parts number of ranges wanted
+	 * @return sorted list of range boundaries starting with 0 and ending with the file size
+	 */
+	protected List<Long> findBoundaries(long fileSize, int parts) {
+		List<Long> boundaries = new ArrayList<Long>();
+		boundaries.add( 0L );
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile( file, "r" );
+			long offset;
+			long last = 0;
+			for ( int i=1; i<parts; ++i ) {
+				offset = findMemberStart( raf, Math.max( last + 1, fileSize * i / parts ), fileSize );
+				if ( offset == -1 ) {
+					break;
+				}
+				boundaries.add( offset );
+				last = offset;
+			}
+		}
+		catch (IOException e) {
+			e.printStackTrace();
+		}
+		finally {
+			if ( raf != null ) {
+				try {
+					raf.close();
+				}
+				catch (IOException e) {
+				}
+			}
+		}
+		boundaries.add( fileSize );
+		return boundaries;
+	}
+
+	/**
+	 * Scan forward for the next verified gzip member header.
+	 * @param raf archive file
+	 * @param from offset to start scanning from
+	 * @param limit offset to stop scanning at
+	 * @return offset of the gzip member or -1 if none was found
+	 * @throws IOException if an I/O error occurs while reading the archive
+	 */
+	protected long findMemberStart(RandomAccessFile raf, long from, long limit) throws IOException {
+		byte[] buffer = new byte[ SCAN_BUFFER_SIZE ];
+		long offset = from;
+		int read;
+		int i;
+		while ( offset < limit ) {
+			raf.seek( offset );
+			read = raf.read( buffer );
+			if ( read < 4 ) {
+				break;
+			}
+			for ( i=0; i<read - 3; ++i ) {
+				if ( (buffer[ i ] & 255) == 0x1f && (buffer[ i + 1 ] & 255) == 0x8b && buffer[ i + 2 ] == 8 && (buffer[ i + 3 ] & 0xe0) == 0 ) {
+					if ( verifyMemberStart( raf, offset + i ) ) {
+						return offset + i;
+					}
+				}
+			}
+			// Overlap so a header split across two reads is not missed.
+			offset += read - 3;
+		}
+		return -1;
+	}
+
+	/**
+	 * Check that a candidate gzip header inflates into the start of a record.
+	 * @param raf archive file
+	 * @param offset offset of candidate gzip header
+	 * @return true if the candidate is a gzip member start
+	 * @throws IOException if an I/O error occurs while reading the archive
+	 */
+	protected boolean verifyMemberStart(RandomAccessFile raf, long offset) throws IOException {
+		byte[] compressed = new byte[ 4096 ];
+		raf.seek( offset );
+		int len = raf.read( compressed );
+		if ( len <= 0 ) {
+			return false;
+		}
+		byte[] inflated = new byte[ VERIFY_INFLATE_SIZE ];
+		int inflatedLen = 0;
+		int read;
+		try (InputStream in = new GZIPInputStream( new ByteArrayInputStream( compressed, 0, len ), len )) {
+			while ( inflatedLen < inflated.length && (read = in.read( inflated, inflatedLen, inflated.length - inflatedLen )) != -1 ) {
+				inflatedLen += read;
+			}
+		}
+		catch (IOException e) {
+			if ( inflatedLen == 0 ) {
+				return false;
+			}
+		}
+		if ( inflatedLen < VERIFY_INFLATE_SIZE ) {
+			return false;
+		}
+		if ( fileId == FileIdent.FILEID_WARC_GZ ) {
+			return inflated[ 0 ] == 'W' && inflated[ 1 ] == 'A' && inflated[ 2 ] == 'R' && inflated[ 3 ] == 'C' && inflated[ 4 ] == '/';
+		}
+		// ARC record header lines start with the URL and contain no control characters.
+		for ( int i=0; i<inflatedLen; ++i ) {
+			if ( inflated[ i ] < 0x20 || inflated[ i ] > 0x7e ) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Validate all gzip members starting in the range [start, end).
+	 * @param range range index
+	 * @param start offset of the first gzip member in the range
+	 * @param end offset where the next range starts
+	 */
+	protected void validateRange(int range, long start, long end) {
+		TestFileResult result = results[ range ];
+		RandomAccessFile raf = null;
+		GzipReader gzipReader = null;
+		GzipEntry gzipEntry;
+		ByteCountingPushBackInputStream in;
+		ArcReader arcReader;
+		WarcReader warcReader;
+		ArcRecordBase arcRecord;
+		WarcRecord warcRecord;
+		long entryOffset;
+		ArchiveEntry entry;
+		ArchiveIndex entries = rangeEntries[ range ];
+		ValidationJob job = archiveFile.job;
+		DigestPipeline digestPipeline = null;
+		LinkedList<Integer> digestEntries = new LinkedList<Integer>();
+		LinkedList<CompletableFuture<List<Diagnosis>>> digestResults = new LinkedList<CompletableFuture<List<Diagnosis>>>();
+		if ( DigestPipeline.bEnabled && fileId == FileIdent.FILEID_WARC_GZ ) {
+			digestPipeline = new DigestPipeline();
+		}
+		ReaderPool pool = ReaderPool.get();
+		try {
+			raf = new RandomAccessFile( file, "r" );
+			raf.seek( start );
+			gzipReader = pool.getGzipReader( new RandomAccessFileInputStream( raf ) );
+			while ( (gzipEntry = gzipReader.getNextEntry()) != null ) {
+				entryOffset = start + gzipEntry.getStartOffset();
+				if ( entryOffset >= end ) {
+					break;
+				}
+				if ( job != null ) {
+					job.checkpoint();
+				}
+				in = pool.getStream( gzipEntry.getInputStream() );
+				InflateGate.instance.enter();
+				try {
+					// A gzip member may hold more than one record.
+					if ( fileId == FileIdent.FILEID_WARC_GZ ) {
+						warcReader = WarcReaderFactory.getReaderUncompressed();
+						warcReader.setWarcTargetUriProfile( UriProfile.RFC3986_ABS_16BIT_LAX );
+						warcReader.setBlockDigestEnabled( digestPipeline == null );
+						warcReader.setPayloadDigestEnabled( digestPipeline == null );
+						while ( (warcRecord = warcReader.getNextRecordFrom( in, entryOffset )) != null ) {
+							entry = Indexer.createEntry( warcRecord, entryOffset, true );
+							if ( digestPipeline != null ) {
+								// Its position once added to the index below.
+								digestEntries.add( entries.size() );
+								digestResults.add( digestPipeline.submit( warcRecord ) );
+							}
+							warcRecord.close();
+							Indexer.setDiagnostics( entry, warcRecord.diagnostics );
+							entries.add( entry );
+							synchronized ( this ) {
+								++result.warcRecords;
+								result.warcErrors += warcRecord.diagnostics.getErrors().size();
+								result.warcWarnings += warcRecord.diagnostics.getWarnings().size();
+								addDiagnoses( result, "WARC", entry.offset, warcRecord.diagnostics.getErrors(), warcRecord.diagnostics.getWarnings() );
+							}
+						}
+						warcReader.close();
+					}
+					else {
+						arcReader = ArcReaderFactory.getReaderUncompressed();
+						arcReader.setUriProfile( UriProfile.RFC3986_ABS_16BIT_LAX );
+						arcReader.setBlockDigestEnabled( true );
+						arcReader.setPayloadDigestEnabled( true );
+						while ( (arcRecord = arcReader.getNextRecordFrom( in, entryOffset )) != null ) {
+							entry = Indexer.createEntry( arcRecord, entryOffset, true );
+							arcRecord.close();
+							Indexer.setDiagnostics( entry, arcRecord.diagnostics );
+							entries.add( entry );
+							synchronized ( this ) {
+								++result.arcRecords;
+								result.arcErrors += arcRecord.diagnostics.getErrors().size();
+								result.arcWarnings += arcRecord.diagnostics.getWarnings().size();
+								addDiagnoses( result, "ARC", entry.offset, arcRecord.diagnostics.getErrors(), arcRecord.diagnostics.getWarnings() );
+							}
+						}
+						arcReader.close();
+					}
+					in.close();
+				}
+				catch (CancellationException e) {
+					throw e;
+				}
+				catch (Exception e) {
+					// The gzip reader moves on to the next member once this one is closed.
+					reportError( result, e, entryOffset );
+				}
+				finally {
+					InflateGate.instance.exit();
+				}
+				gzipEntry.close();
+				synchronized ( this ) {
+					countDigestErrors( result, entries, digestEntries, digestResults, false );
+					++result.gzipEntries;
+					result.gzipErrors += gzipEntry.diagnostics.getErrors().size();
+					result.gzipWarnings += gzipEntry.diagnostics.getWarnings().size();
+					addDiagnoses( result, "GZip", entryOffset, gzipEntry.diagnostics.getErrors(), gzipEntry.diagnostics.getWarnings() );
+					consumed[ range ] = gzipReader.getConsumed();
+					if ( System.currentTimeMillis() > lastUpdate + 1000 ) {
+						lastUpdate = System.currentTimeMillis();
+						archiveFile.update( merge(), totalConsumed() );
+					}
+				}
+			}
+		}
+		catch (CancellationException e) {
+			// Cancelled, the job is checked again once all ranges are done.
+		}
+		catch (Throwable t) {
+			// The rest of the range cannot be read, which must not pass as valid.
+			reportError( result, t, consumed[ range ] + start );
+		}
+		finally {
+			if ( digestPipeline != null ) {
+				digestPipeline.close();
+				synchronized ( this ) {
+					countDigestErrors( result, entries, digestEntries, digestResults, true );
+				}
+			}
+			if ( gzipReader != null ) {
+				try {
+					gzipReader.close();
+				}
+				catch (IOException e) {
+				}
+			}
+			if ( raf != null ) {
+				try {
+					raf.close();
+				}
+				catch (IOException e) {
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add the digest mismatches of verified records to their error counts,
+	 * count them as WARC errors and keep them as the records' diagnoses.
+	 * Must be called while holding the lock.
+	 * @param result range result
+	 * @param entries record index of the range
+	 * @param digestEntries index positions of the pending digest verifications
+	 * @param digestResults pending digest verifications in record order
+	 * @param bAll wait for all pending verifications, otherwise only count those already done
+	 */
+	protected void countDigestErrors(TestFileResult result, ArchiveIndex entries, LinkedList<Integer> digestEntries, LinkedList<CompletableFuture<List<Diagnosis>>> digestResults, boolean bAll) {
+		CompletableFuture<List<Diagnosis>> digestResult;
+		List<Diagnosis> diagnoses;
+		int entry;
+		while ( !digestResults.isEmpty() ) {
+			digestResult = digestResults.getFirst();
+			if ( !bAll && !digestResult.isDone() ) {
+				break;
+			}
+			diagnoses = digestResult.join();
+			entry = digestEntries.removeFirst();
+			entries.addErrors( entry, diagnoses.size() );
+			result.warcErrors += diagnoses.size();
+			addDiagnoses( result, "WARC", entries.getOffset( entry ), diagnoses, Collections.<Diagnosis>emptyList() );
+			digestResults.removeFirst();
+		}
+	}
+
+	/**
+	 * Keep the diagnoses of a record or gzip member in the range result, like
+	 * <code>TestFile2</code> does, if there are any.
+	 * Must be called while holding the lock.
+	 * @param result range result
+	 * @param type type of the record or gzip member
+	 * @param offset offset of the record or gzip member
+	 * @param errors error diagnoses
+	 * @param warnings warning diagnoses
+	 */
+	protected void addDiagnoses(TestFileResult result, String type, long offset, List<Diagnosis> errors, List<Diagnosis> warnings) {
+		if ( !errors.isEmpty() || !warnings.isEmpty() ) {
+			TestFileResultItemDiagnosis item = new TestFileResultItemDiagnosis();
+			item.type = type;
+			item.offset = offset;
+			item.errors = errors;
+			item.warnings = warnings;
+			result.rdList.add( item );
+		}
+	}
+
+	/**
+	 * Count a record or gzip member which could not be read as an error of
+	 * the archive and as a runtime error, and keep its cause in the range
+	 * result like <code>TestFile2</code> does.
+	 * @param result range result
+	 * @param t cause
+	 * @param offset offset of the gzip member or of the last position read
+	 */
+	protected void reportError(TestFileResult result, Throwable t, long offset) {
+		TestFileResultItemThrowable item = new TestFileResultItemThrowable();
+		item.startOffset = offset;
+		item.offset = offset;
+		item.t = t;
+		synchronized ( this ) {
+			result.throwableList.add( item );
+			++result.runtimeErrors;
+			if ( fileId == FileIdent.FILEID_WARC_GZ ) {
+				++result.warcErrors;
+			}
+			else {
+				++result.arcErrors;
+			}
+		}
+	}
+
+	private long totalConsumed() {
+		long total = 0;
+		for ( int i=0; i<consumed.length; ++i ) {
+			total += consumed[ i ];
+		}
+		return total;
+	}
+
+	/**
+	 * Merge the per range counters and diagnoses in file order. Must be called while holding the lock.
+	 * @return merged result
+	 */
+	protected TestFileResult merge() {
+		TestFileResult merged = new TestFileResult();
+		TestFileResult result;
+		for ( int i=0; i<results.length; ++i ) {
+			result = results[ i ];
+			merged.gzipEntries += result.gzipEntries;
+			merged.gzipErrors += result.gzipErrors;
+			merged.gzipWarnings += result.gzipWarnings;
+			merged.arcRecords += result.arcRecords;
+			merged.arcErrors += result.arcErrors;
+			merged.arcWarnings += result.arcWarnings;
+			merged.warcRecords += result.warcRecords;
+			merged.warcErrors += result.warcErrors;
+			merged.warcWarnings += result.warcWarnings;
+			merged.runtimeErrors += result.runtimeErrors;
+			merged.rdList.addAll( result.rdList );
+			merged.throwableList.addAll( result.throwableList );
+		}
+		return merged;
+	}
+
+}
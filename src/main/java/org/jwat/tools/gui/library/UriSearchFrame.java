@@ -0,0 +1,320 @@
+package org.jwat.tools.gui.library;
+
+import java.awt.BorderLayout;
+import java.awt.Dimension;
+import java.awt.event.KeyEvent;
+import java.awt.event.KeyListener;
+import java.awt.event.MouseEvent;
+import java.awt.event.MouseListener;
+import java.awt.event.WindowEvent;
+import java.awt.event.WindowListener;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JSplitPane;
+import javax.swing.JTable;
+import javax.swing.JTextPane;
+import javax.swing.ListSelectionModel;
+import javax.swing.SwingWorker;
+import javax.swing.table.TableModel;
+import javax.swing.table.TableRowSorter;
+
+import org.jwat.tools.gui.Lookup;
+import org.jwat.tools.gui.UriIndex;
+
+/**
+ * Lists the records in the library with a URI, or with URIs starting with a
+ * prefix, found in the URI index. A selected record is read from its archive
+ * through <code>Lookup</code> on a background thread.
+ */
+public class UriSearchFrame extends JPanel implements KeyListener, MouseListener, WindowListener {
+
+	/**
+	 * UID.
+	 */
+	private static final long serialVersionUID = -2271449317207386329L;
+
+	/** Maximum number of records listed. */
+	protected static final int MAX_HITS = 1000;
+
+	/** Records longer than this are not shown. */
+	protected static final int MAX_PAYLOAD_SHOWN = 16384;
+
+	private final JLabel labelStatus = new JLabel( "Searching ..." );
+
+	private UriSearchTableModel searchTableModel;
+
+	private JTable table;
+
+	private JTextPane headerPane;
+
+	private JTextPane outputPane;
+
+	/** Lookup on the archive of the record shown last, guarded by <code>lookupLock</code>. */
+	private Lookup lookup;
+
+	/** Archive the lookup reads. */
+	private File lookupFile;
+
+	/** Serializes the record reads and closing the lookup. */
+	private final Object lookupLock = new Object();
+
+	/** Set once the window is closed, no lookup is opened after that. */
+	private boolean bClosed = false;
+
+	/** Number of the record read requested last, earlier reads are not shown. */
+	private int showSequence = 0;
+
+	private JFrame frame;
+
+	/**
+	 * Search the URI index on a background thread and list the records found.
+	 * @param query URI or URI prefix
+	 * @param bPrefix match URIs starting with the query
+	 */
+	public UriSearchFrame(final String query, final boolean bPrefix) {
+		super( new BorderLayout() );
+
+		searchTableModel = new UriSearchTableModel();
+
+		table = new JTable( searchTableModel );
+		table.getColumnModel().getColumn( 0 ).setPreferredWidth( 48 * 10 );
+		table.getColumnModel().getColumn( 1 ).setPreferredWidth( 16 * 10 );
+		table.getColumnModel().getColumn( 2 ).setPreferredWidth( 10 * 10 );
+		table.getColumnModel().getColumn( 3 ).setPreferredWidth( 32 * 10 );
+		table.addMouseListener( this );
+		table.addKeyListener( this );
+		table.setSelectionMode( ListSelectionModel.SINGLE_SELECTION );
+		table.setRowSorter( new TableRowSorter<TableModel>( searchTableModel ) );
+
+		JScrollPane tableView = new JScrollPane( table );
+
+		headerPane = new JTextPane();
+		headerPane.setEditable( false );
+		outputPane = new JTextPane();
+		outputPane.setEditable( false );
+
+		JSplitPane splitPane1 = new JSplitPane( JSplitPane.VERTICAL_SPLIT );
+		JSplitPane splitPane2 = new JSplitPane( JSplitPane.HORIZONTAL_SPLIT );
+		splitPane1.setTopComponent( tableView );
+		splitPane1.setBottomComponent( splitPane2 );
+		splitPane1.setResizeWeight( 0.5d );
+		splitPane2.setLeftComponent( new JScrollPane( headerPane ) );
+		splitPane2.setRightComponent( new JScrollPane( outputPane ) );
+		splitPane2.setResizeWeight( 0.5d );
+		splitPane1.setPreferredSize( new Dimension( 800, 500 ) );
+
+		add( labelStatus, BorderLayout.NORTH );
+		add( splitPane1, BorderLayout.CENTER );
+
+		frame = new JFrame( "URI Search: " + query );
+		frame.setDefaultCloseOperation( JFrame.DISPOSE_ON_CLOSE );
+		frame.addWindowListener( this );
+		frame.add( this );
+		frame.pack();
+		frame.setVisible( true );
+
+		new SwingWorker<List<UriIndex.Hit>, Void>() {
+			@Override
+			protected List<UriIndex.Hit> doInBackground() throws Exception {
+				return UriIndex.getInstance().search( query, bPrefix, MAX_HITS );
+			}
+			@Override
+			protected void done() {
+				List<UriIndex.Hit> hits;
+				try {
+					hits = get();
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+					labelStatus.setText( "Search failed: " + e.getCause() );
+					return;
+				}
+				searchTableModel.setHits( hits );
+				labelStatus.setText( (hits.size() < MAX_HITS ? hits.size() + " record(s)" : "First " + MAX_HITS + " records")
+						+ (bPrefix ? " with URIs starting with " : " with URI ") + query );
+			}
+		}.execute();
+	}
+
+	/**
+	 * Read a record on a background thread and show its header and, if it
+	 * is small, its payload.
+	 * @param hit record found
+	 */
+	private void showRecord(final UriIndex.Hit hit) {
+		final int sequence = ++showSequence;
+		new SwingWorker<String[], Void>() {
+			@Override
+			protected String[] doInBackground() throws Exception {
+				synchronized ( lookupLock ) {
+					return readRecord( hit );
+				}
+			}
+			@Override
+			protected void done() {
+				if ( sequence != showSequence ) {
+					return;
+				}
+				String[] texts;
+				try {
+					texts = get();
+				}
+				catch (InterruptedException e) {
+					return;
+				}
+				catch (ExecutionException e) {
+					e.getCause().printStackTrace();
+					texts = new String[] { "Unable to read the record: " + e.getCause(), "" };
+				}
+				if ( texts == null ) {
+					return;
+				}
+				headerPane.setText( texts[ 0 ] );
+				headerPane.setCaretPosition( 0 );
+				outputPane.setText( texts[ 1 ] );
+				outputPane.setCaretPosition( 0 );
+			}
+		}.execute();
+	}
+
+	/**
+	 * Read the header and, if it is small, the payload of a record.
+	 * Must be called while holding <code>lookupLock</code>.
+	 * @param hit record found
+	 * @return header and payload text, or null if the window is closed
+	 */
+	private String[] readRecord(UriIndex.Hit hit) throws IOException {
+		if ( bClosed ) {
+			return null;
+		}
+		if ( lookup == null || !hit.file.equals( lookupFile ) ) {
+			closeLookup();
+			lookup = Lookup.getInstance( hit.file );
+			lookupFile = hit.file;
+		}
+		lookup.lookup_entry( hit.offset );
+		InputStream input = lookup.payload_inputstream;
+		try {
+			String header = new String( lookup.header ) + new String( lookup.payloadHeader );
+			String payload = "";
+			if ( input != null && lookup.payload_length >= 0 && lookup.payload_length < MAX_PAYLOAD_SHOWN ) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream( lookup.payload_length );
+				byte[] buffer = new byte[ 8192 ];
+				int read;
+				while ( (read = input.read( buffer )) != -1 ) {
+					out.write( buffer, 0, read );
+				}
+				payload = new String( out.toByteArray() );
+			}
+			return new String[] { header, payload };
+		}
+		finally {
+			if ( input != null ) {
+				input.close();
+			}
+		}
+	}
+
+	private void showSelectedRecord() {
+		int rowIndex = table.getSelectedRow();
+		if ( rowIndex != -1 ) {
+			rowIndex = table.getRowSorter().convertRowIndexToModel( rowIndex );
+			showRecord( searchTableModel.getAtRow( rowIndex ) );
+		}
+	}
+
+	private void closeLookup() {
+		if ( lookup != null ) {
+			try {
+				lookup.close();
+			}
+			catch (IOException e) {
+				e.printStackTrace();
+			}
+			lookup = null;
+			lookupFile = null;
+		}
+	}
+
+	public void mouseClicked(MouseEvent e) {
+	}
+
+	public void mousePressed(MouseEvent e) {
+	}
+
+	public void mouseReleased(MouseEvent e) {
+		if ( e.getClickCount() == 1 ) {
+			showSelectedRecord();
+		}
+	}
+
+	public void mouseEntered(MouseEvent e) {
+	}
+
+	public void mouseExited(MouseEvent e) {
+	}
+
+	public void keyTyped(KeyEvent event) {
+	}
+
+	public void keyPressed(KeyEvent event) {
+		if ( event.getKeyCode() == KeyEvent.VK_ENTER ) {
+			showSelectedRecord();
+			event.consume();
+		}
+	}
+
+	public void keyReleased(KeyEvent event) {
+	}
+
+	@Override
+	public void windowOpened(WindowEvent e) {
+	}
+
+	@Override
+	public void windowClosing(WindowEvent e) {
+	}
+
+	@Override
+	public void windowClosed(WindowEvent e) {
+		new SwingWorker<Void, Void>() {
+			@Override
+			protected Void doInBackground() throws Exception {
+				synchronized ( lookupLock ) {
+					bClosed = true;
+					closeLookup();
+				}
+				return null;
+			}
+		}.execute();
+	}
+
+	@Override
+	public void windowIconified(WindowEvent e) {
+	}
+
+	@Override
+	public void windowDeiconified(WindowEvent e) {
+	}
+
+	@Override
+	public void windowActivated(WindowEvent e) {
+	}
+
+	@Override
+	public void windowDeactivated(WindowEvent e) {
+	}
+
+}
@@ -0,0 +1,182 @@
+package org.jwat.tools.gui.library;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
+import javax.swing.table.TableModel;
+
+import org.jwat.tools.gui.UriIndex;
+
+public class UriSearchTableModel implements TableModel {
+
+	/**
+     * Returns the number of columns in the model. A
+     * <code>JTable</code> uses this method to determine how many columns it
+     * should create and display by default.
+     *
+     * @return the number of columns in the model
+     * @see #getRowCount
+     */
+	public int getColumnCount() {
+		return columnNames.length;
+	}
+
+	/** Array of column names. */
+	private String[] columnNames = { "URI", "Date", "Offset", "Archive" };
+	/** Array of column classes. */
+	private Class<?>[] columnClasses = { String.class, Date.class, Long.class, String.class };
+
+	/** Backend list of matching records. */
+	private List<UriIndex.Hit> rows = new ArrayList<UriIndex.Hit>();
+
+	/**
+	 * Show the records found by a search. Called on the EDT.
+	 * @param hits matching records
+	 */
+	public void setHits(List<UriIndex.Hit> hits) {
+		rows = hits;
+		eventToListeners( new TableModelEvent( this ) );
+	}
+
+	public UriIndex.Hit getAtRow(int rowIndex) {
+		return rows.get( rowIndex );
+	}
+
+	/**
+     * Returns the name of the column at <code>columnIndex</code>.  This is used
+     * to initialize the table's column header name.  Note: this name does
+     * not need to be unique; two columns in a table can have the same name.
+     *
+     * @param	columnIndex	the index of the column
+     * @return  the name of the column
+     */
+	public String getColumnName(int columnIndex) {
+		return columnNames[ columnIndex ];
+	}
+
+    /**
+     * Returns the most specific superclass for all the cell values
+     * in the column.  This is used by the <code>JTable</code> to set up a
+     * default renderer and editor for the column.
+     *
+     * @param columnIndex  the index of the column
+     * @return the common ancestor class of the object values in the model.
+     */
+	public Class<?> getColumnClass(int columnIndex) {
+		return columnClasses[ columnIndex ];
+	}
+
+    /**
+     * Returns the number of rows in the model. A
+     * <code>JTable</code> uses this method to determine how many rows it
+     * should display.  This method should be quick, as it
+     * is called frequently during rendering.
+     *
+     * @return the number of rows in the model
+     * @see #getColumnCount
+     */
+	public int getRowCount() {
+		return rows.size();
+	}
+
+	/**
+     * Returns the value for the cell at <code>columnIndex</code> and
+     * <code>rowIndex</code>.
+     *
+     * @param	rowIndex	the row whose value is to be queried
+     * @param	columnIndex 	the column whose value is to be queried
+     * @return	the value Object at the specified cell
+     */
+	public Object getValueAt(int rowIndex, int columnIndex) {
+		UriIndex.Hit hit = rows.get( rowIndex );
+		switch ( columnIndex ) {
+			case 0:
+				return hit.uri;
+			case 1:
+				return hit.date;
+			case 2:
+				return hit.offset;
+			case 3:
+				return hit.file.getPath();
+			default:
+				return null;
+		}
+	}
+
+    /**
+     * Returns true if the cell at <code>rowIndex</code> and
+     * <code>columnIndex</code>
+     * is editable.  Otherwise, <code>setValueAt</code> on the cell will not
+     * change the value of that cell.
+     *
+     * @param	rowIndex	the row whose value to be queried
+     * @param	columnIndex	the column whose value to be queried
+     * @return	true if the cell is editable
+     * @see #setValueAt
+     */
+	public boolean isCellEditable(int rowIndex, int columnIndex) {
+		return false;
+	}
+
+    /**
+     * Sets the value in the cell at <code>columnIndex</code> and
+     * <code>rowIndex</code> to <code>aValue</code>.
+     *
+     * @param	aValue		 the new value
+     * @param	rowIndex	 the row whose value is to be changed
+     * @param	columnIndex 	 the column whose value is to be changed
+     * @see #getValueAt
+     * @see #isCellEditable
+     */
+	public void setValueAt(Object aValue, int rowIndex, int columnIndex) {
+	}
+
+	/** Set of registered listeners. */
+	private Set<TableModelListener> listenerSet = new HashSet<TableModelListener>();
+
+    /**
+     * Adds a listener to the list that is notified each time a change
+     * to the data model occurs.
+     *
+     * @param	l		the TableModelListener
+     */
+	public void addTableModelListener(TableModelListener l) {
+		synchronized ( listenerSet ) {
+			listenerSet.add( l );
+		}
+	}
+
+    /**
+     * Removes a listener from the list that is notified each time a
+     * change to the data model occurs.
+     *
+     * @param	l		the TableModelListener
+     */
+	public void removeTableModelListener(TableModelListener l) {
+		synchronized ( listenerSet ) {
+			listenerSet.remove( l );
+		}
+	}
+
+	/**
+	 * Send <code>TableModelEvent</code> to all registered listeners.
+	 * @param event <code>TableModelEvent</code> object.
+	 */
+	public void eventToListeners(TableModelEvent event) {
+		if ( event != null ) {
+			Iterator<TableModelListener> listeners = listenerSet.iterator();
+			TableModelListener listener;
+			while ( listeners.hasNext() ) {
+				listener = listeners.next();
+				listener.tableChanged( event );
+			}
+		}
+	}
+
+}
@@ -0,0 +1,220 @@
+package org.jwat.tools.gui.library;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jwat.tools.gui.MemoryGovernor;
+import org.jwat.tools.gui.ValidatorThreadPool;
+
+/**
+ * Handle for one queued or running validation of an <code>ArchiveFileBase</code>.
+ * Jobs are ordered by priority, highest first, and then by submission order.
+ * A running job is paused or cancelled from inside the read loop, each time
+ * the validator reports progress through <code>checkpoint()</code>.
+ *
+ * <code>PAUSED</code> is a job held out of the queue before it started,
+ * <code>RUNNING_PAUSED</code> a started job blocked in its checkpoint which
+ * still holds its worker.
+ */
+public class ValidationJob implements Runnable, Comparable<ValidationJob> {
+
+	public static final int QUEUED = 0;
+	public static final int RUNNING = 1;
+	public static final int PAUSED = 2;
+	public static final int CANCELLED = 3;
+	public static final int FINISHED = 4;
+	public static final int RUNNING_PAUSED = 5;
+
+	public static final String[] STATE_NAMES = { "Queued", "Running", "Paused", "Cancelled", "Finished", "Paused (running)" };
+
+	protected static final AtomicLong sequenceCounter = new AtomicLong();
+
+	public final ArchiveFileBase archiveFile;
+
+	protected final Runnable task;
+
+	protected final long sequence;
+
+	protected volatile int priority = 0;
+
+	protected volatile int state = QUEUED;
+
+	protected volatile boolean bCancelRequested = false;
+
+	protected volatile boolean bPauseRequested = false;
+
+	/** The archive changed while the job was running, validate it again when done. */
+	protected volatile boolean bRerunRequested = false;
+
+	/** Memory reserved for the job while it is handed to the executor, null otherwise. */
+	public volatile MemoryGovernor.Ticket ticket;
+
+	/** Pool the job was queued on, which hands out extra reader slots. */
+	public volatile ValidatorThreadPool pool;
+
+	/** Time the job started running, 0 if it has not started. */
+	protected volatile long startTime = 0;
+
+	/** Time the job stopped running, 0 if it has not stopped. */
+	protected volatile long endTime = 0;
+
+	public ValidationJob(ArchiveFileBase archiveFile, Runnable task) {
+		this.archiveFile = archiveFile;
+		this.task = task;
+		this.sequence = sequenceCounter.incrementAndGet();
+	}
+
+	public int getPriority() {
+		return priority;
+	}
+
+	public void setPriority(int priority) {
+		this.priority = priority;
+	}
+
+	public int getState() {
+		return state;
+	}
+
+	public void setState(int state) {
+		this.state = state;
+	}
+
+	public boolean isCancelled() {
+		return bCancelRequested;
+	}
+
+	public boolean isActive() {
+		return state == QUEUED || state == RUNNING || state == PAUSED || state == RUNNING_PAUSED;
+	}
+
+	public long getStartTime() {
+		return startTime;
+	}
+
+	public long getEndTime() {
+		return endTime;
+	}
+
+	/**
+	 * Returns the time spent running so far, or in total once stopped.
+	 * @return elapsed time in milliseconds
+	 */
+	public long getElapsed() {
+		long start = startTime;
+		if ( start == 0 ) {
+			return 0;
+		}
+		long end = endTime;
+		return (end != 0 ? end : System.currentTimeMillis()) - start;
+	}
+
+	@Override
+	public void run() {
+		if ( bCancelRequested ) {
+			state = CANCELLED;
+			return;
+		}
+		started();
+		try {
+			task.run();
+		}
+		catch (CancellationException e) {
+		}
+		finally {
+			stopped();
+		}
+	}
+
+	/**
+	 * Mark the job as running, also used for jobs which run on other nodes.
+	 */
+	public void started() {
+		state = RUNNING;
+		startTime = System.currentTimeMillis();
+		endTime = 0;
+	}
+
+	/**
+	 * Mark the job as finished, or cancelled if that was requested.
+	 */
+	public void stopped() {
+		endTime = System.currentTimeMillis();
+		state = bCancelRequested ? CANCELLED : FINISHED;
+	}
+
+	/**
+	 * Request cancellation. A running job stops at its next checkpoint.
+	 */
+	public synchronized void cancel() {
+		bCancelRequested = true;
+		bPauseRequested = false;
+		bRerunRequested = false;
+		notifyAll();
+	}
+
+	/**
+	 * Ask for the archive to be validated again once this run is done,
+	 * because it changed after the run started. Cleared by cancelling.
+	 */
+	public void requestRerun() {
+		bRerunRequested = true;
+	}
+
+	public boolean isRerunRequested() {
+		return bRerunRequested;
+	}
+
+	/**
+	 * Returns true if pausing was requested while running, as opposed to the
+	 * job being held out of the queue by the pool.
+	 * @return true if the job is, or is about to be, blocked in <code>checkpoint()</code>
+	 */
+	public boolean isRunningPaused() {
+		return bPauseRequested;
+	}
+
+	public synchronized void pause() {
+		bPauseRequested = true;
+	}
+
+	public synchronized void resume() {
+		bPauseRequested = false;
+		notifyAll();
+	}
+
+	/**
+	 * Called by the validating thread while reading. Blocks while the job is
+	 * paused and throws <code>CancellationException</code> to abort the
+	 * read loop once the job is cancelled.
+	 */
+	public void checkpoint() {
+		if ( bPauseRequested ) {
+			synchronized ( this ) {
+				if ( bPauseRequested ) {
+					state = RUNNING_PAUSED;
+					while ( bPauseRequested ) {
+						try {
+							wait();
+						}
+						catch (InterruptedException e) {
+						}
+					}
+					state = RUNNING;
+				}
+			}
+		}
+		if ( bCancelRequested ) {
+			throw new CancellationException( "Validation cancelled: " + archiveFile.filename );
+		}
+	}
+
+	@Override
+	public int compareTo(ValidationJob other) {
+		if ( priority != other.priority ) {
+			return priority > other.priority ? -1 : 1;
+		}
+		return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+	}
+
+}
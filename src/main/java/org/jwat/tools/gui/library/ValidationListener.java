@@ -0,0 +1,15 @@
+package org.jwat.tools.gui.library;
+
+/**
+ * Notified by the validator pool each time a validation job stops running,
+ * whether it completed, failed or was cancelled.
+ */
+public interface ValidationListener {
+
+	/**
+	 * Called on the validating thread once the job has stopped.
+	 * @param archiveFile archive file of the job
+	 */
+	public void validationDone(ArchiveFileBase archiveFile);
+
+}
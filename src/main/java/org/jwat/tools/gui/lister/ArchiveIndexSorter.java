@@ -0,0 +1,166 @@
+package org.jwat.tools.gui.lister;
+
+import java.util.Collections;
+import java.util.List;
+
+import javax.swing.RowSorter;
+import javax.swing.SortOrder;
+
+import org.jwat.tools.gui.explorer.ArchiveIndex;
+
+/**
+ * Sorts the lister table on one column by sorting the index columns
+ * directly. A <code>TableRowSorter</code> asks the model for every value it
+ * compares, which for an <code>ArchiveTableModel</code> would mean a new
+ * string, date or boxed number per value and row on every sort.
+ */
+public class ArchiveIndexSorter extends RowSorter<ArchiveTableModel> {
+
+	private ArchiveTableModel model;
+
+	private List<SortKey> sortKeys = Collections.emptyList();
+
+	/** Model row of each view row, null when rows are shown in index order. */
+	private int[] viewToModel;
+
+	/** View row of each model row, null when rows are shown in index order. */
+	private int[] modelToView;
+
+	public ArchiveIndexSorter(ArchiveTableModel model) {
+		this.model = model;
+	}
+
+	@Override
+	public ArchiveTableModel getModel() {
+		return model;
+	}
+
+	@Override
+	public void toggleSortOrder(int column) {
+		SortOrder sortOrder = SortOrder.ASCENDING;
+		if ( !sortKeys.isEmpty() && sortKeys.get( 0 ).getColumn() == column && sortKeys.get( 0 ).getSortOrder() == SortOrder.ASCENDING ) {
+			sortOrder = SortOrder.DESCENDING;
+		}
+		setSortKeys( Collections.singletonList( new SortKey( column, sortOrder ) ) );
+	}
+
+	@Override
+	public int convertRowIndexToModel(int index) {
+		if ( viewToModel == null ) {
+			if ( index < 0 || index >= model.getRowCount() ) {
+				throw new IndexOutOfBoundsException( "Invalid index" );
+			}
+			return index;
+		}
+		return viewToModel[ index ];
+	}
+
+	@Override
+	public int convertRowIndexToView(int index) {
+		if ( modelToView == null ) {
+			if ( index < 0 || index >= model.getRowCount() ) {
+				throw new IndexOutOfBoundsException( "Invalid index" );
+			}
+			return index;
+		}
+		return modelToView[ index ];
+	}
+
+	/**
+	 * Only the first sort key is used.
+	 */
+	@Override
+	public void setSortKeys(List<? extends SortKey> keys) {
+		if ( keys == null || keys.isEmpty() ) {
+			sortKeys = Collections.emptyList();
+		}
+		else {
+			sortKeys = Collections.singletonList( keys.get( 0 ) );
+		}
+		fireSortOrderChanged();
+		sort();
+	}
+
+	@Override
+	public List<? extends SortKey> getSortKeys() {
+		return sortKeys;
+	}
+
+	@Override
+	public int getViewRowCount() {
+		return (viewToModel != null) ? viewToModel.length : model.getRowCount();
+	}
+
+	@Override
+	public int getModelRowCount() {
+		return model.getRowCount();
+	}
+
+	@Override
+	public void modelStructureChanged() {
+		sort();
+	}
+
+	@Override
+	public void allRowsChanged() {
+		sort();
+	}
+
+	@Override
+	public void rowsInserted(int firstRow, int endRow) {
+		if ( viewToModel != null ) {
+			sort();
+		}
+	}
+
+	@Override
+	public void rowsDeleted(int firstRow, int endRow) {
+		if ( viewToModel != null ) {
+			sort();
+		}
+	}
+
+	@Override
+	public void rowsUpdated(int firstRow, int endRow) {
+		if ( viewToModel != null ) {
+			sort();
+		}
+	}
+
+	@Override
+	public void rowsUpdated(int firstRow, int endRow, int column) {
+		if ( viewToModel != null ) {
+			sort();
+		}
+	}
+
+	/**
+	 * Sort the rows shown by the model and tell the table, with the previous
+	 * order so it can keep the selection.
+	 */
+	private void sort() {
+		int[] lastViewToModel = viewToModel;
+		if ( lastViewToModel == null ) {
+			lastViewToModel = new int[ model.getRowCount() ];
+			for ( int i=0; i<lastViewToModel.length; ++i ) {
+				lastViewToModel[ i ] = i;
+			}
+		}
+		SortKey sortKey = sortKeys.isEmpty() ? null : sortKeys.get( 0 );
+		if ( sortKey == null || sortKey.getSortOrder() == SortOrder.UNSORTED
+				|| (model.getColumnField( sortKey.getColumn() ) == ArchiveIndex.FIELD_INDEX && sortKey.getSortOrder() == SortOrder.ASCENDING) ) {
+			viewToModel = null;
+			modelToView = null;
+		}
+		else {
+			viewToModel = model.getEntries().sort( model.getColumnField( sortKey.getColumn() ),
+					sortKey.getSortOrder() == SortOrder.ASCENDING, model.getRowCount() );
+			modelToView = new int[ viewToModel.length ];
+			for ( int i=0; i<viewToModel.length; ++i ) {
+				modelToView[ viewToModel[ i ] ] = i;
+			}
+		}
+		fireRowSorterChanged( lastViewToModel );
+	}
+
+}
@@ -1,7 +1,9 @@
 package org.jwat.tools.gui.lister;
 
+import java.awt.BorderLayout;
 import java.awt.Dimension;
-import java.awt.GridLayout;
+import java.awt.Image;
+import java.awt.Toolkit;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
@@ -11,33 +13,42 @@ import java.awt.event.MouseListener;
 import java.awt.event.WindowEvent;
 import java.awt.event.WindowListener;
 import java.awt.image.BufferedImage;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 
 import javax.imageio.ImageIO;
 import javax.swing.ImageIcon;
+import javax.swing.JButton;
 import javax.swing.JFrame;
 import javax.swing.JMenuItem;
 import javax.swing.JPanel;
 import javax.swing.JPopupMenu;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
 import javax.swing.JSplitPane;
 import javax.swing.JTable;
 import javax.swing.JTextPane;
-import javax.swing.table.TableModel;
-import javax.swing.table.TableRowSorter;
+import javax.swing.SwingWorker;
 import javax.swing.text.Style;
 import javax.swing.text.StyleConstants;
 import javax.swing.text.StyledDocument;
 
 import org.jwat.common.ContentType;
 import org.jwat.common.Diagnosis;
+import org.jwat.common.Diagnostics;
+import org.jwat.tools.gui.Indexer;
 import org.jwat.tools.gui.Lookup;
 import org.jwat.tools.gui.explorer.ArchiveEntry;
+import org.jwat.tools.gui.explorer.ArchiveIndex;
+import org.jwat.tools.gui.library.ArchiveFileBase;
 import org.jwat.warc.WarcConstants;
 
 public class ArchiveLister extends JPanel implements KeyListener, MouseListener, WindowListener, ActionListener {
@@ -69,8 +80,40 @@ public class ArchiveLister extends JPanel implements KeyListener, MouseListener,
 
     private Lookup lookup;
 
-    public ArchiveLister(String archive, List<ArchiveEntry> entries) {
-        super(new GridLayout(1, 0));
+    /** Archive the index came from, null if the index was given. */
+    private ArchiveFileBase archiveFile;
+
+    /** Index shown, pinned in the index cache while the window is open. */
+    private ArchiveIndex index;
+
+    private boolean bClosed = false;
+
+    private JFrame frame;
+
+    private JPanel statusPanel;
+
+    private JProgressBar progressBar;
+
+    private JButton cancelButton;
+
+    /** Indexes the archive while the table fills, null when done. */
+    private IndexWorker indexWorker;
+
+    /**
+     * Open a lister on an archive and fill it as the archive is indexed
+     * on a background thread, so the first records show at once.
+     * @param archiveFile archive to list
+     */
+    public ArchiveLister(ArchiveFileBase archiveFile) {
+        this(archiveFile.file.getPath(), new ArchiveIndex(16));
+        statusPanel.setVisible(true);
+        this.archiveFile = archiveFile;
+        indexWorker = new IndexWorker(archiveFile);
+        indexWorker.execute();
+    }
+
+    public ArchiveLister(String archive, ArchiveIndex entries) {
+        super(new BorderLayout());
 
         file = new File(archive);
         try {
@@ -97,9 +140,7 @@ public class ArchiveLister extends JPanel implements KeyListener, MouseListener,
 
 		//table.setSelectionMode( ListSelectionModel.SINGLE_SELECTION );
 
-		TableRowSorter<TableModel> sorter = new TableRowSorter<TableModel>(table.getModel());
-		table.setRowSorter(sorter);
-		sorter.setSortsOnUpdates( true );
+		table.setRowSorter( new ArchiveIndexSorter( archiveTableModel ) );
 
         JScrollPane tableView = new JScrollPane(table);
 
@@ -136,10 +177,24 @@ public class ArchiveLister extends JPanel implements KeyListener, MouseListener,
         outputView.setMinimumSize(minimumSize);
         splitPane1.setDividerLocation(100);
         splitPane1.setPreferredSize(new Dimension(500, 300));
-        add(splitPane1);
-
-        JFrame frame = new JFrame("Archive Lister");
+        add(splitPane1, BorderLayout.CENTER);
+
+        progressBar = new JProgressBar(0, 100);
+        progressBar.setStringPainted(true);
+        progressBar.setString("Indexing");
+        cancelButton = new JButton("Cancel");
+        cancelButton.setActionCommand("index.cancel");
+        cancelButton.addActionListener(this);
+        statusPanel = new JPanel(new BorderLayout());
+        statusPanel.add(progressBar, BorderLayout.CENTER);
+        statusPanel.add(cancelButton, BorderLayout.EAST);
+        statusPanel.setVisible(false);
+        add(statusPanel, BorderLayout.SOUTH);
+
+        frame = new JFrame("Archive Lister");
         //frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+        frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
+        frame.addWindowListener(this);
         frame.add(this);
         frame.pack();
         frame.setVisible(true);
@@ -242,10 +297,31 @@ public class ArchiveLister extends JPanel implements KeyListener, MouseListener,
 
 	@Override
 	public void windowClosing(WindowEvent e) {
+		if (indexWorker != null) {
+			indexWorker.cancelIndexing();
+		}
 	}
 
 	@Override
 	public void windowClosed(WindowEvent e) {
+		// Let go of the index and the archive, a hidden frame would keep them.
+		bClosed = true;
+		if (indexWorker != null) {
+			indexWorker.cancelIndexing();
+			indexWorker.releaseIndex();
+		}
+		if (archiveFile != null) {
+			archiveFile.releaseIndex(index);
+		}
+		index = null;
+		if (lookup != null) {
+			try {
+				lookup.close();
+			}
+			catch (IOException ex) {
+				ex.printStackTrace();
+			}
+		}
 	}
 
 	@Override
@@ -268,17 +344,30 @@ public class ArchiveLister extends JPanel implements KeyListener, MouseListener,
         InputStream input = null;
         ContentType contentType;
         try {
+            // The index only has the counts, records with diagnoses are parsed again for them.
+            StringBuilder sb = new StringBuilder();
+            if (entry.errors > 0 || entry.warnings > 0) {
+                Diagnostics<Diagnosis> diagnostics = null;
+                try {
+                    diagnostics = lookup.lookup_diagnostics(entry.offset, archiveTableModel.getEntries().isDigestsVerified());
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                if (diagnostics != null && (diagnostics.hasErrors() || diagnostics.hasWarnings())) {
+                    showDiagnosisList(diagnostics.getErrors().iterator(), sb);
+                    showDiagnosisList(diagnostics.getWarnings().iterator(), sb);
+                } else {
+                    sb.append(entry.errors + " error(s) and " + entry.warnings + " warning(s), details not found in the record.\n");
+                }
+            }
+        	diagnosticsPane.setText(sb.toString());
+        	diagnosticsPane.setCaretPosition(0);
+
         	lookup.lookup_entry(entry.offset);
             input = lookup.payload_inputstream;
         	headerPane.setText(new String(lookup.header) + new String(lookup.payloadHeader));
             headerPane.setCaretPosition(0);
 
-            StringBuilder sb = new StringBuilder();
-            showDiagnosisList(entry.diagnostics.getErrors().iterator(), sb);
-            showDiagnosisList(entry.diagnostics.getWarnings().iterator(), sb);
-        	diagnosticsPane.setText(sb.toString());
-        	diagnosticsPane.setCaretPosition(0);
-
             outputPane.setText("");
         	if (input != null) {
         		if (entry.contentType != null) {
@@ -287,21 +376,14 @@ public class ArchiveLister extends JPanel implements KeyListener, MouseListener,
                         StyledDocument doc = (StyledDocument) outputPane.getDocument();
                         Style style = doc.addStyle("StyleName", null);
 
-                        byte[] image;
+                        Image image;
                         if ("bmp".equalsIgnoreCase(contentType.mediaType)) {
                             BufferedImage bmp = ImageIO.read(input);
                             ByteArrayOutputStream jpg = new ByteArrayOutputStream();
                             ImageIO.write(bmp, "jpg", jpg);
-                            image = jpg.toByteArray();
+                            image = Toolkit.getDefaultToolkit().createImage(jpg.toByteArray());
                         } else {
-                            //image = IOUtils.toByteArray(input);
-                        	image = new byte[lookup.payload_length];
-                        	int offset = 0;
-                        	int numread = 0;
-                        	while (numread != -1 && offset < image.length) {
-                        		offset += numread;
-                        		numread = input.read(image, offset, image.length - offset);
-                        	}
+                            image = lookup.readImage(input, "gif".equalsIgnoreCase(contentType.mediaType));
                         }
 
                         StyleConstants.setIcon(style, new ImageIcon(image));
@@ -398,6 +480,134 @@ public class ArchiveLister extends JPanel implements KeyListener, MouseListener,
 	@Override
 	public void actionPerformed(ActionEvent e) {
 		String command = e.getActionCommand();
+		if ("index.cancel".equals(command) && indexWorker != null) {
+			indexWorker.cancelIndexing();
+		}
+	}
+
+	/**
+	 * Indexes the archive off the EDT. The positions of the entries are
+	 * published as they are parsed and the table shows the index up to the
+	 * last one, in batches coalesced by <code>SwingWorker</code>. The finished
+	 * index is shown when done.
+	 */
+	private class IndexWorker extends SwingWorker<ArchiveIndex, Integer> implements PropertyChangeListener {
+
+		private final ArchiveFileBase archiveFile;
+
+		private final long fileSize;
+
+		private final Indexer indexer = new Indexer() {
+			@Override
+			protected void indexed(ArchiveEntry entry) {
+				publish(entry.index);
+			}
+			@Override
+			protected void progress(long consumed) {
+				if (fileSize > 0) {
+					setProgress((int)Math.min(100L, consumed * 100L / fileSize));
+				}
+			}
+		};
+
+		IndexWorker(ArchiveFileBase archiveFile) {
+			this.archiveFile = archiveFile;
+			this.fileSize = archiveFile.file.length();
+			addPropertyChangeListener(this);
+		}
+
+		/** Index pinned by <code>doInBackground</code>, until taken or released. */
+		private ArchiveIndex pinned;
+
+		private boolean bReleased = false;
+
+		void cancelIndexing() {
+			indexer.cancel();
+			cancel(false);
+		}
+
+		@Override
+		protected ArchiveIndex doInBackground() {
+			ArchiveIndex entries = archiveFile.index(indexer);
+			synchronized (this) {
+				if (bReleased) {
+					archiveFile.releaseIndex(entries);
+				} else {
+					pinned = entries;
+				}
+			}
+			return entries;
+		}
+
+		/**
+		 * Release the pinned index, now or as soon as indexing returns it.
+		 * Called when the result is not going to be shown.
+		 */
+		synchronized void releaseIndex() {
+			bReleased = true;
+			if (pinned != null) {
+				archiveFile.releaseIndex(pinned);
+				pinned = null;
+			}
+		}
+
+		/**
+		 * Hand the pinned index over to the lister.
+		 */
+		synchronized ArchiveIndex takeIndex() {
+			ArchiveIndex entries = pinned;
+			pinned = null;
+			return entries;
+		}
+
+		@Override
+		protected void process(List<Integer> chunks) {
+			// Chunks may arrive after done(), which has shown all of them.
+			if (isDone()) {
+				return;
+			}
+			archiveTableModel.addEntries(indexer.getEntries(), chunks.get(chunks.size() - 1) + 1);
+			showProgress();
+		}
+
+		@Override
+		public void propertyChange(PropertyChangeEvent evt) {
+			if ("progress".equals(evt.getPropertyName()) && !isDone()) {
+				showProgress();
+			}
+		}
+
+		private void showProgress() {
+			progressBar.setValue(getProgress());
+			progressBar.setString("Indexing: " + archiveTableModel.getRowCount() + " records, " + getProgress() + "%");
+		}
+
+		@Override
+		protected void done() {
+			indexWorker = null;
+			if (bClosed) {
+				releaseIndex();
+				return;
+			}
+			try {
+				archiveTableModel.setEntries(get());
+				index = takeIndex();
+				statusPanel.setVisible(false);
+			}
+			catch (CancellationException e) {
+				releaseIndex();
+				progressBar.setString("Cancelled after " + archiveTableModel.getRowCount() + " records");
+				cancelButton.setEnabled(false);
+			}
+			catch (InterruptedException e) {
+			}
+			catch (ExecutionException e) {
+				e.getCause().printStackTrace();
+				progressBar.setString("Indexing failed: " + e.getCause());
+				cancelButton.setEnabled(false);
+			}
+		}
+
 	}
 
 }
@@ -1,10 +1,8 @@
 package org.jwat.tools.gui.lister;
 
-import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.List;
 import java.util.Set;
 
 import javax.swing.event.TableModelEvent;
@@ -12,6 +10,7 @@ import javax.swing.event.TableModelListener;
 import javax.swing.table.TableModel;
 
 import org.jwat.tools.gui.explorer.ArchiveEntry;
+import org.jwat.tools.gui.explorer.ArchiveIndex;
 
 public class ArchiveTableModel implements TableModel {
 
@@ -31,25 +30,72 @@ public class ArchiveTableModel implements TableModel {
 	private String[] columnNames = { "Index", "Errors", "Warnings", "Offset", "Target-URI", "WARC-Date", "Content-Length" };
 	/** Array of column classes. */
 	private Class<?>[] columnClasses = { Integer.class, Integer.class, Integer.class, String.class, String.class, Date.class, Long.class };
+	/** Array of column index fields. */
+	private int[] columnFields = { ArchiveIndex.FIELD_INDEX, ArchiveIndex.FIELD_ERRORS, ArchiveIndex.FIELD_WARNINGS,
+			ArchiveIndex.FIELD_OFFSET, ArchiveIndex.FIELD_URI, ArchiveIndex.FIELD_DATE, ArchiveIndex.FIELD_LENGTH };
 
-	/** Backend list of table entries. */
-	private List<ArchiveEntry> rows = new ArrayList<ArchiveEntry>();
+	/** Backend index of table entries. */
+	private ArchiveIndex index;
 
-	public ArchiveTableModel(List<ArchiveEntry> entries) {
-		TableModelEvent event = null;
+	/** Number of index entries shown, the index may be further along while it is filled. */
+	private int rows;
 
-		synchronized ( rows ) {
-			event = new TableModelEvent( this, rows.size(), rows.size() + entries.size(), TableModelEvent.ALL_COLUMNS, TableModelEvent.INSERT );
-			rows.addAll( entries );
-		}
+	public ArchiveTableModel(ArchiveIndex entries) {
+		index = entries;
+		rows = entries.size();
+	}
 
-		if ( event != null ) {
-			eventToListeners( event );
+	/**
+	 * Show more entries of an index as it is filled. Called on the EDT.
+	 * @param entries index being filled
+	 * @param count number of entries to show
+	 */
+	public void addEntries(ArchiveIndex entries, int count) {
+		showEntries( entries, count, false );
+	}
+
+	/**
+	 * Show the finished index. If it is the index shown while indexing,
+	 * its first entries may have had digest errors added since, so they are
+	 * updated and the rest appended. Called on the EDT.
+	 * @param entries complete index
+	 */
+	public void setEntries(ArchiveIndex entries) {
+		showEntries( entries, entries.size(), true );
+	}
+
+	private void showEntries(ArchiveIndex entries, int count, boolean bUpdate) {
+		int shown = rows;
+		boolean bSame = (entries == index);
+		index = entries;
+		rows = count;
+		if ( (!bSame && shown > 0) || count < shown ) {
+			eventToListeners( new TableModelEvent( this ) );
+			return;
 		}
+		if ( bUpdate && shown > 0 ) {
+			eventToListeners( new TableModelEvent( this, 0, shown - 1, TableModelEvent.ALL_COLUMNS, TableModelEvent.UPDATE ) );
+		}
+		if ( count > shown ) {
+			eventToListeners( new TableModelEvent( this, shown, count - 1, TableModelEvent.ALL_COLUMNS, TableModelEvent.INSERT ) );
+		}
+	}
+
+	public ArchiveIndex getEntries() {
+		return index;
+	}
+
+	/**
+	 * Returns the index field shown in a column, for sorting on the index.
+	 * @param columnIndex the index of the column
+	 * @return one of the <code>ArchiveIndex.FIELD_</code> constants
+	 */
+	public int getColumnField(int columnIndex) {
+		return columnFields[ columnIndex ];
 	}
 
 	public ArchiveEntry getAtRow(int rowIndex) {
-		return rows.get(rowIndex);
+		return index.get(rowIndex);
 	}
 
 	/**
@@ -86,7 +132,7 @@ public class ArchiveTableModel implements TableModel {
      * @see #getColumnCount
      */
 	public int getRowCount() {
-		return rows.size();
+		return rows;
 	}
 
 	/**
@@ -98,30 +144,25 @@ public class ArchiveTableModel implements TableModel {
      * @return	the value Object at the specified cell
      */
 	public Object getValueAt(int rowIndex, int columnIndex) {
-		ArchiveEntry archiveEntry = null;
-		synchronized ( rows ) {
-			if ( rowIndex < rows.size() ) {
-				archiveEntry = rows.get( rowIndex );
-			}
-			else {
-				return null;
-			}
+		if ( rowIndex >= rows ) {
+			return null;
 		}
+		// Read straight from the index columns, only the visible cells are asked for.
 		switch ( columnIndex ) {
 			case 0:
-				return archiveEntry.index;
+				return rowIndex;
 			case 1:
-				return archiveEntry.diagnostics.getErrors().size();
+				return index.getErrors( rowIndex );
 			case 2:
-				return archiveEntry.diagnostics.getWarnings().size();
+				return index.getWarnings( rowIndex );
 			case 3:
-				return archiveEntry.offsetStr;
+				return index.getOffsetString( rowIndex );
 			case 4:
-				return archiveEntry.uri;
+				return index.getUri( rowIndex );
 			case 5:
-				return archiveEntry.date;
+				return index.getDate( rowIndex );
 			case 6:
-				return archiveEntry.contentLength;
+				return index.getContentLength( rowIndex );
 			default:
 				return null;
 		}
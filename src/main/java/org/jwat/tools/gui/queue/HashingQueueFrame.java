@@ -0,0 +1,171 @@
+package org.jwat.tools.gui.queue;
+
+import java.awt.BorderLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.List;
+
+import javax.swing.BorderFactory;
+import javax.swing.JInternalFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTable;
+import javax.swing.Timer;
+import javax.swing.WindowConstants;
+
+import org.jwat.tools.gui.Desktop;
+import org.jwat.tools.gui.IoDevice;
+import org.jwat.tools.gui.MemoryGovernor;
+import org.jwat.tools.gui.ReaderPool;
+import org.jwat.tools.gui.library.ArchiveFileBase;
+import org.jwat.tools.gui.library.ValidationJob;
+
+/**
+ * Live view of the validator pool. Shows every queued, running and recently
+ * finished job with its rate, elapsed time and ETA, and the aggregate
+ * library throughput with a rolling graph of the last few minutes, and the
+ * readers and queue depth of each device archives are read from.
+ * The throughput is sampled while the frame is hidden as well, so the
+ * graph has history as soon as it is opened.
+ */
+public class HashingQueueFrame extends JInternalFrame implements ActionListener {
+
+	/**
+	 * UID.
+	 */
+	private static final long serialVersionUID = -3047236547193458921L;
+
+	/** Interval between refreshes, in milliseconds. */
+	protected static final int REFRESH_INTERVAL = 1000;
+
+	/** Number of samples in the throughput graph. */
+	protected static final int GRAPH_SAMPLES = 300;
+
+	private final JLabel labelSummary = new JLabel( " " );
+
+	private final JLabel labelDevices = new JLabel( " " );
+
+	private HashingQueueTableModel queueTableModel;
+
+	private JTable table;
+
+	private ThroughputGraph graph;
+
+	private Timer refreshTimer;
+
+	private long lastConsumed;
+
+	private long lastTime;
+
+	public HashingQueueFrame() {
+		 //resizable, closable, maximizable, iconifiable
+		super( "Hashing Queue", true, true, true, true );
+		setDefaultCloseOperation( WindowConstants.HIDE_ON_CLOSE );
+
+		JPanel layoutPane = new JPanel( new BorderLayout( 0, 8 ) );
+		layoutPane.setBorder( BorderFactory.createEmptyBorder( 10, 10, 10, 10 ) );
+
+		queueTableModel = new HashingQueueTableModel();
+		table = new JTable( queueTableModel );
+		table.getColumnModel().getColumn( 0 ).setPreferredWidth( 8 * 10 );
+		table.getColumnModel().getColumn( 1 ).setPreferredWidth( 6 * 10 );
+		table.getColumnModel().getColumn( 2 ).setPreferredWidth( 7 * 10 );
+		table.getColumnModel().getColumn( 3 ).setPreferredWidth( 6 * 10 );
+		table.getColumnModel().getColumn( 4 ).setPreferredWidth( 7 * 10 );
+		table.getColumnModel().getColumn( 5 ).setPreferredWidth( 7 * 10 );
+		table.getColumnModel().getColumn( 6 ).setPreferredWidth( 7 * 10 );
+		table.getColumnModel().getColumn( 7 ).setPreferredWidth( 10 * 10 );
+		table.getColumnModel().getColumn( 8 ).setPreferredWidth( 32 * 10 );
+
+		graph = new ThroughputGraph( GRAPH_SAMPLES );
+
+		JPanel topPanel = new JPanel( new BorderLayout( 0, 4 ) );
+		topPanel.add( labelSummary, BorderLayout.PAGE_START );
+		topPanel.add( graph, BorderLayout.CENTER );
+		topPanel.add( labelDevices, BorderLayout.PAGE_END );
+
+		layoutPane.add( topPanel, BorderLayout.PAGE_START );
+		layoutPane.add( new JScrollPane( table ), BorderLayout.CENTER );
+
+		getContentPane().add( layoutPane );
+
+		lastConsumed = ArchiveFileBase.totalConsumed.sum();
+		lastTime = System.nanoTime();
+		refreshTimer = new Timer( REFRESH_INTERVAL, this );
+		refreshTimer.setActionCommand( "queue.refresh" );
+		refreshTimer.start();
+
+		pack();
+		setVisible( false );
+	}
+
+	public void actionPerformed(ActionEvent e) {
+		String cmd = e.getActionCommand();
+		if ( "queue.refresh".equals( cmd ) ) {
+			refresh();
+		}
+	}
+
+	private void refresh() {
+		long consumed = ArchiveFileBase.totalConsumed.sum();
+		long time = System.nanoTime();
+		double throughput = 0.0;
+		if ( time > lastTime ) {
+			throughput = (double)(consumed - lastConsumed) * 1000000000.0 / (double)(time - lastTime);
+		}
+		lastConsumed = consumed;
+		lastTime = time;
+		graph.addSample( throughput );
+		if ( !isVisible() || Desktop.validatorThread == null ) {
+			return;
+		}
+		List<ValidationJob> jobs = Desktop.validatorThread.getJobs();
+		int queued = 0;
+		int running = 0;
+		int paused = 0;
+		int finished = 0;
+		for ( ValidationJob job : jobs ) {
+			switch ( job.getState() ) {
+			case ValidationJob.QUEUED:
+				++queued;
+				break;
+			case ValidationJob.RUNNING:
+				if ( job.isRunningPaused() ) {
+					++paused;
+				}
+				else {
+					++running;
+				}
+				break;
+			case ValidationJob.PAUSED:
+			case ValidationJob.RUNNING_PAUSED:
+				++paused;
+				break;
+			default:
+				++finished;
+				break;
+			}
+		}
+		MemoryGovernor governor = MemoryGovernor.instance;
+		labelSummary.setText( String.format( "Validators: %d  Running: %d  Paused: %d  Queued: %d  Finished: %d  Throughput: %.1f MB/s (%.1f MB/s avg)  Memory: %d/%d MB reserved  Reader pool: %.0f%% hits",
+				Desktop.validatorThread.getPoolSize(), running, paused, queued, finished,
+				throughput / (1024.0 * 1024.0),
+				Desktop.validatorThread.getThroughput() / (1024.0 * 1024.0),
+				governor.getReserved() / (1024L * 1024L), governor.getBudget() / (1024L * 1024L),
+				ReaderPool.getHitRate() * 100.0 ) );
+		List<IoDevice> devices = Desktop.validatorThread.getDevices();
+		StringBuilder sb = new StringBuilder( "<html>" );
+		for ( IoDevice device : devices ) {
+			if ( sb.length() > 6 ) {
+				sb.append( "<br>" );
+			}
+			sb.append( String.format( "Device %s: %d/%d readers, %d queued",
+					device.key.replace( "&", "&amp;" ).replace( "<", "&lt;" ), device.running, device.readers, device.queued ) );
+		}
+		sb.append( "</html>" );
+		labelDevices.setText( devices.isEmpty() ? " " : sb.toString() );
+		queueTableModel.setJobs( jobs );
+	}
+
+}
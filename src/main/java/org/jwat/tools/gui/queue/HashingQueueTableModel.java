@@ -0,0 +1,233 @@
+package org.jwat.tools.gui.queue;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import javax.swing.event.TableModelEvent;
+import javax.swing.event.TableModelListener;
+import javax.swing.table.TableModel;
+
+import org.jwat.tools.gui.library.ArchiveFileBase;
+import org.jwat.tools.gui.library.ValidationJob;
+
+/**
+ * Table of queued, running and recently finished validation jobs.
+ * Rows are replaced with a fresh snapshot from the pool on every refresh.
+ */
+public class HashingQueueTableModel implements TableModel {
+
+	/**
+     * Returns the number of columns in the model. A
+     * <code>JTable</code> uses this method to determine how many columns it
+     * should create and display by default.
+     *
+     * @return the number of columns in the model
+     * @see #getRowCount
+     */
+	public int getColumnCount() {
+		return columnNames.length;
+	}
+
+	/** Array of column names. */
+	private String[] columnNames = { "State", "Priority", "Progress", "MB/s", "Records/s", "Elapsed", "ETA", "Size", "Name" };
+	/** Array of column classes. */
+	private Class<?>[] columnClasses = { String.class, Integer.class, String.class, String.class, String.class, String.class, String.class, String.class, String.class };
+
+	/** Backend list of table entries, only replaced on the EDT. */
+	private List<ValidationJob> rows = new ArrayList<ValidationJob>();
+
+	public HashingQueueTableModel() {
+	}
+
+	public ValidationJob getAtRow(int rowIndex) {
+		return rows.get( rowIndex );
+	}
+
+	/**
+	 * Replace the rows with a new snapshot of jobs. Must be called on the EDT.
+	 * @param jobs jobs to show
+	 */
+	public void setJobs(List<ValidationJob> jobs) {
+		rows = new ArrayList<ValidationJob>( jobs );
+		eventToListeners( new TableModelEvent( this ) );
+	}
+
+    /**
+     * Returns the name of the column at <code>columnIndex</code>.  This is used
+     * to initialize the table's column header name.  Note: this name does
+     * not need to be unique; two columns in a table can have the same name.
+     *
+     * @param	columnIndex	the index of the column
+     * @return  the name of the column
+     */
+	public String getColumnName(int columnIndex) {
+		return columnNames[ columnIndex ];
+	}
+
+    /**
+     * Returns the most specific superclass for all the cell values
+     * in the column.  This is used by the <code>JTable</code> to set up a
+     * default renderer and editor for the column.
+     *
+     * @param columnIndex  the index of the column
+     * @return the common ancestor class of the object values in the model.
+     */
+	public Class<?> getColumnClass(int columnIndex) {
+		return columnClasses[ columnIndex ];
+	}
+
+    /**
+     * Returns the number of rows in the model. A
+     * <code>JTable</code> uses this method to determine how many rows it
+     * should display.  This method should be quick, as it
+     * is called frequently during rendering.
+     *
+     * @return the number of rows in the model
+     * @see #getColumnCount
+     */
+	public int getRowCount() {
+		return rows.size();
+	}
+
+	/**
+     * Returns the value for the cell at <code>columnIndex</code> and
+     * <code>rowIndex</code>.
+     *
+     * @param	rowIndex	the row whose value is to be queried
+     * @param	columnIndex 	the column whose value is to be queried
+     * @return	the value Object at the specified cell
+     */
+	public Object getValueAt(int rowIndex, int columnIndex) {
+		if ( rowIndex >= rows.size() ) {
+			return null;
+		}
+		ValidationJob job = rows.get( rowIndex );
+		ArchiveFileBase archiveFile = job.archiveFile;
+		long elapsed = job.getElapsed();
+		long consumed = archiveFile.consumed;
+		switch ( columnIndex ) {
+			case 0:
+				if ( job.isRunningPaused() ) {
+					return ValidationJob.STATE_NAMES[ ValidationJob.RUNNING_PAUSED ];
+				}
+				return ValidationJob.STATE_NAMES[ job.getState() ];
+			case 1:
+				return job.getPriority();
+			case 2:
+				if ( archiveFile.fileSize <= 0 ) {
+					return "";
+				}
+				return String.format( "%.1f%%", (double)consumed * 100.0 / (double)archiveFile.fileSize );
+			case 3:
+				if ( elapsed <= 0 ) {
+					return "";
+				}
+				return String.format( "%.1f", (double)consumed * 1000.0 / (double)elapsed / (1024.0 * 1024.0) );
+			case 4:
+				if ( elapsed <= 0 ) {
+					return "";
+				}
+				return String.format( "%.0f", (double)archiveFile.records * 1000.0 / (double)elapsed );
+			case 5:
+				return formatDuration( elapsed );
+			case 6:
+				if ( job.getState() != ValidationJob.RUNNING || elapsed <= 0 || consumed <= 0 ) {
+					return "";
+				}
+				return formatDuration( (long)((double)(archiveFile.fileSize - consumed) * (double)elapsed / (double)consumed) );
+			case 7:
+				return Long.toString( archiveFile.fileSize );
+			case 8:
+				return archiveFile.filename;
+			default:
+				return null;
+		}
+	}
+
+	/**
+	 * Format a duration as h:mm:ss.
+	 * @param millis duration in milliseconds
+	 * @return formatted duration or an empty string if there is none
+	 */
+	public static String formatDuration(long millis) {
+		if ( millis <= 0 ) {
+			return "";
+		}
+		long seconds = millis / 1000;
+		return String.format( "%d:%02d:%02d", seconds / 3600, (seconds / 60) % 60, seconds % 60 );
+	}
+
+    /**
+     * Returns true if the cell at <code>rowIndex</code> and
+     * <code>columnIndex</code>
+     * is editable.  Otherwise, <code>setValueAt</code> on the cell will not
+     * change the value of that cell.
+     *
+     * @param	rowIndex	the row whose value to be queried
+     * @param	columnIndex	the column whose value to be queried
+     * @return	true if the cell is editable
+     * @see #setValueAt
+     */
+	public boolean isCellEditable(int rowIndex, int columnIndex) {
+		return false;
+	}
+
+    /**
+     * Sets the value in the cell at <code>columnIndex</code> and
+     * <code>rowIndex</code> to <code>aValue</code>.
+     *
+     * @param	aValue		 the new value
+     * @param	rowIndex	 the row whose value is to be changed
+     * @param	columnIndex 	 the column whose value is to be changed
+     * @see #getValueAt
+     * @see #isCellEditable
+     */
+	public void setValueAt(Object aValue, int rowIndex, int columnIndex) {
+	}
+
+	/** Set of registered listeners. */
+	private Set<TableModelListener> listenerSet = new HashSet<TableModelListener>();
+
+    /**
+     * Adds a listener to the list that is notified each time a change
+     * to the data model occurs.
+     *
+     * @param	l		the TableModelListener
+     */
+	public void addTableModelListener(TableModelListener l) {
+		synchronized ( listenerSet ) {
+			listenerSet.add( l );
+		}
+	}
+
+    /**
+     * Removes a listener from the list that is notified each time a
+     * change to the data model occurs.
+     *
+     * @param	l		the TableModelListener
+     */
+	public void removeTableModelListener(TableModelListener l) {
+		synchronized ( listenerSet ) {
+			listenerSet.remove( l );
+		}
+	}
+
+	/**
+	 * Send <code>TableModelEvent</code> to all registered listeners.
+	 * @param event <code>TableModelEvent</code> object.
+	 */
+	public void eventToListeners(TableModelEvent event) {
+		if ( event != null ) {
+			Iterator<TableModelListener> listeners = listenerSet.iterator();
+			TableModelListener listener;
+			while ( listeners.hasNext() ) {
+				listener = listeners.next();
+				listener.tableChanged( event );
+			}
+		}
+	}
+
+}
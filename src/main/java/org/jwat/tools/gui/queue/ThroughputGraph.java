@@ -0,0 +1,81 @@
+package org.jwat.tools.gui.queue;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+
+import javax.swing.JComponent;
+
+/**
+ * Rolling graph of the aggregate validation throughput, one sample per refresh.
+ * The vertical scale follows the highest sample currently shown.
+ */
+public class ThroughputGraph extends JComponent {
+
+	/**
+	 * UID.
+	 */
+	private static final long serialVersionUID = 2740986114235587206L;
+
+	/** Circular buffer of samples in bytes per second. */
+	protected double[] samples;
+
+	/** Index of the next sample to write. */
+	protected int next = 0;
+
+	protected int count = 0;
+
+	public ThroughputGraph(int capacity) {
+		samples = new double[ capacity ];
+		setPreferredSize( new Dimension( 480, 100 ) );
+		setBackground( Color.BLACK );
+		setOpaque( true );
+	}
+
+	/**
+	 * Append a sample and repaint. Must be called on the EDT.
+	 * @param throughput throughput in bytes per second
+	 */
+	public void addSample(double throughput) {
+		samples[ next ] = throughput;
+		next = (next + 1) % samples.length;
+		if ( count < samples.length ) {
+			++count;
+		}
+		repaint();
+	}
+
+	@Override
+	protected void paintComponent(Graphics g) {
+		int width = getWidth();
+		int height = getHeight();
+		g.setColor( getBackground() );
+		g.fillRect( 0, 0, width, height );
+		double max = 1.0;
+		for ( int i=0; i<count; ++i ) {
+			max = Math.max( max, samples[ i ] );
+		}
+		g.setColor( Color.DARK_GRAY );
+		for ( int i=1; i<4; ++i ) {
+			g.drawLine( 0, height * i / 4, width, height * i / 4 );
+		}
+		g.setColor( Color.GREEN );
+		int first = (next - count + samples.length) % samples.length;
+		int x0 = 0;
+		int y0 = 0;
+		int x;
+		int y;
+		for ( int i=0; i<count; ++i ) {
+			x = (samples.length > 1) ? width - 1 - (count - 1 - i) * (width - 1) / (samples.length - 1) : 0;
+			y = height - 1 - (int)(samples[ (first + i) % samples.length ] * (height - 2) / max);
+			if ( i > 0 ) {
+				g.drawLine( x0, y0, x, y );
+			}
+			x0 = x;
+			y0 = y;
+		}
+		g.setColor( Color.LIGHT_GRAY );
+		g.drawString( String.format( "%.1f MB/s", max / (1024.0 * 1024.0) ), 4, 14 );
+	}
+
+}
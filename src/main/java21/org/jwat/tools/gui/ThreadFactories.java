@@ -0,0 +1,57 @@
+package org.jwat.tools.gui;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads of the scanner, validator and range validation pools.
+ * This Java 21 version creates virtual threads when
+ * <code>jwattools.threads.virtual</code> is set, so blocking reads from
+ * slow mounts park a virtual thread instead of holding a platform thread.
+ * CPU heavy record parsing is bounded separately by <code>InflateGate</code>.
+ * Must keep the same public methods as the Java 8 version.
+ */
+public class ThreadFactories {
+
+	private static final boolean bVirtual = Settings.getBoolean( "jwattools.threads.virtual", false );
+
+	protected ThreadFactories() {
+	}
+
+	/**
+	 * Returns true if pools run their tasks on virtual threads.
+	 * @return true in virtual thread mode
+	 */
+	public static boolean isVirtual() {
+		return bVirtual;
+	}
+
+	/**
+	 * Create a thread factory for a pool.
+	 * @param name thread name
+	 * @param bDaemon create daemon threads, virtual threads are always daemon threads
+	 * @return thread factory
+	 */
+	public static ThreadFactory newThreadFactory(String name, boolean bDaemon) {
+		if ( bVirtual ) {
+			return Thread.ofVirtual().name( name + "-", 0 ).factory();
+		}
+		return Thread.ofPlatform().name( name ).daemon( bDaemon ).factory();
+	}
+
+	/**
+	 * Create an executor for blocking tasks, a fixed pool of platform threads
+	 * or a thread per task in virtual thread mode.
+	 * @param name thread name
+	 * @param threads number of platform threads
+	 * @return executor
+	 */
+	public static ExecutorService newTaskExecutor(String name, int threads) {
+		if ( bVirtual ) {
+			return Executors.newThreadPerTaskExecutor( newThreadFactory( name, true ) );
+		}
+		return Executors.newFixedThreadPool( threads, newThreadFactory( name, true ) );
+	}
+
+}
@@ -8,7 +8,7 @@ if "%JAVA_DEBUG_OPTS%" == "" (
 )
 
 if "%JAVA_OPTS%" == "" (
-   set JAVA_OPTS=-Xms256m -Xmx1024m -XX:PermSize=64M -XX:MaxPermSize=256M
+   set JAVA_OPTS=-Xms256m -Xmx1024m
 )
 
 %JAVA% %JAVA_DEBUG_OPTS% %JAVA_OPTS% -cp "%CP%" ${assembly.main.class.name} %*